@@ -0,0 +1,81 @@
+package parse_phylobayes;
+
+/**
+ * Allocation-free view of the substitution path on the branch above a node, from the parent node down to
+ * the node. The path is a sequence of segments: the first segment starts in the state of the parent node,
+ * each event of the branch ends a segment and starts the next one in its state, and the last segment ends
+ * at the node, where the state changes to the state of the node.
+ * One BranchPath can be reset to the nodes of many trees:
+ * <pre>
+ *   BranchPath path = new BranchPath();
+ *   path.reset(node);
+ *   while (path.next()) {
+ *       ... path.getState(), path.getDuration(), path.getNextState()
+ *   }
+ * </pre>
+ * @author Hui-Jie
+ *
+ */
+public class BranchPath {
+
+	/** Node at the lower end of the branch */
+	private TreeNode node;
+	/** Index of the current segment, -1 before the first call to next() */
+	private int segment;
+
+	/**
+	 * Start at the parent of a node, before the first segment.
+	 * @param node node at the lower end of the branch, not the root
+	 * @return this
+	 */
+	public BranchPath reset(TreeNode node) {
+		this.node = node;
+		this.segment = -1;
+		return this;
+	}
+
+	/**
+	 * Move to the next segment.
+	 * @return false after the last segment
+	 */
+	public boolean next() {
+		if (segment >= node.getNumEvents()) {
+			return false;
+		}
+		segment++;
+		return true;
+	}
+
+	/**
+	 * Return the number of segments, number of events + 1
+	 * @return number of segments
+	 */
+	public int getNumSegments() {
+		return node.getNumEvents() + 1;
+	}
+
+	/**
+	 * Return the ASCII code of the state during the current segment
+	 * @return state code
+	 */
+	public byte getState() {
+		return (segment == 0) ? node.parent().getStateCode() : node.getEventState(segment - 1);
+	}
+
+	/**
+	 * Return the ASCII code of the state at the end of the current segment: the state of the next event,
+	 * or the state of the node after the last segment
+	 * @return state code
+	 */
+	public byte getNextState() {
+		return (segment < node.getNumEvents()) ? node.getEventState(segment) : node.getStateCode();
+	}
+
+	/**
+	 * Return the duration of the current segment
+	 * @return time
+	 */
+	public double getDuration() {
+		return (segment < node.getNumEvents()) ? node.getEventTime(segment) : node.getTime();
+	}
+}
@@ -0,0 +1,193 @@
+package parse_phylobayes;
+
+/**
+ * Parse a window of k consecutive sites (k odd) at a time and count the changes of the middle site by
+ * their context, the k-mer around it, with the tables of a ContextTable.
+ * On each branch the events of the k sites are merged in the order of their time from the parent node,
+ * in one pass: the cost grows with the number of events of the branch, not with the 4^k contexts.
+ * Events at exactly the same time are applied one after the other in the order of the sites, separated
+ * by time intervals of 0, as in TripletParser. The change from the last context of the path to the
+ * context of the node is classified like the events.
+ * With ContextTable.centered(TripletClassifier.CPG, 3) the counts are those of TripletParser; option 3 of
+ * MappingParser uses ContextTable.flankingGC(TripletClassifier.CPG, k).
+ * @author Hui-Jie
+ *
+ */
+public class ContextSiteParser implements SiteParser {
+
+	/** Store k trees for k sites **/
+	private Tree[] trees;
+
+	/** Classifies the changes and the dwell states of the contexts **/
+	private ContextTable table;
+
+	/** Store number of changes of each type
+	 *  dim = numTypes x (# of branches)
+	 **/
+	private int[][] numberOfChanges;
+
+	/** Store number of changes in each group
+	 *  dim = numGroups x (# of branches)
+	 **/
+	private int[][] changesInGroups;
+
+	/** Store the total time spent in each dwell state on branches
+	 *  dim = numDwellStates x (# of branches)
+	 **/
+	private double[][] timeOfStates;
+
+	/** Store the branch lengths for each branch
+	 *  dim = # of branches
+	 **/
+	private double[] branchLengths;
+
+	/** Store the proportion of time in each dwell state on branches
+	 *  dim = numDwellStates x (# of branches)
+	 **/
+	private double[][] propStates;
+
+	/**
+	 * Constructor
+	 * @param trees k trees for k sites, k = table.getWidth()
+	 * @param table tables of the types, groups and dwell states
+	 */
+	public ContextSiteParser(Tree[] trees, ContextTable table) {
+		if (trees.length != table.getWidth()) {
+			throw new IllegalArgumentException("Expected " + table.getWidth() + " trees, got " + trees.length);
+		}
+		this.trees = trees;
+		this.table = table;
+		int numBranches = trees[0].getNumBranches();
+		numberOfChanges = new int[table.getNumTypes()][numBranches];
+		changesInGroups = new int[table.getNumGroups()][numBranches];
+		timeOfStates = new double[table.getNumDwellStates()][numBranches];
+		propStates = new double[table.getNumDwellStates()][numBranches];
+		//branch lengths are supposed to be the same for all sites, but in case of rounding error, I pick the middle site
+		branchLengths = new double[numBranches];
+		System.arraycopy(trees[table.getWidth() / 2].getBranchLength(), 0, branchLengths, 0, numBranches);
+
+		TreeNode[] node = new TreeNode[trees.length];
+		int[] index = new int[trees.length];
+		double[] next = new double[trees.length];
+		for (int j = 0; j < numBranches; j++) {
+			countBranch(j, node, index, next);
+		}
+		for (int i = 0; i < propStates.length; i++) {
+			for (int j = 0; j < numBranches; j++) {
+				propStates[i][j] = timeOfStates[i][j]/branchLengths[j];
+			}
+		}
+	}
+
+	/**
+	 * Merge the events of the k sites on a branch and count the changes and the time in each dwell state.
+	 * @param branchIndex index of the branch (the index of the node that ends the branch)
+	 * @param node work array of k nodes
+	 * @param index work array: index of the next event of each site
+	 * @param next work array: cumulative time of the next event of each site
+	 */
+	private void countBranch(int branchIndex, TreeNode[] node, int[] index, double[] next) {
+		int width = node.length;
+		int middle = width / 2;
+		int remainder = table.getRemainderState();
+		int total = 0;
+		int context = 0;
+		for (int i = 0; i < width; i++) {
+			node[i] = trees[i].getNodeByNodeNum(branchIndex);
+			context = ContextTable.append(context, node[i].parent().getStateCode());
+			index[i] = 0;
+			next[i] = (node[i].getNumEvents() > 0) ? node[i].getEventTime(0) : Double.POSITIVE_INFINITY;
+			total += node[i].getNumEvents();
+		}
+		double previous = 0.0;
+		for (int e = 0; e < total; e++) {
+			//earliest next event, ties go to the first site
+			int position = 0;
+			for (int i = 1; i < width; i++) {
+				if (next[i] < next[position]) position = i;
+			}
+			byte state = node[position].getEventState(index[position]);
+			int dwell = table.getDwellState(context);
+			if (dwell != remainder) {
+				timeOfStates[dwell][branchIndex] += next[position] - previous;
+			}
+			previous = next[position];
+			if (position == middle) {
+				count(context, state, branchIndex);
+			}
+			context = table.replace(context, position, state);
+			index[position]++;
+			next[position] = (index[position] < node[position].getNumEvents())
+					? next[position] + node[position].getEventTime(index[position]) : Double.POSITIVE_INFINITY;
+		}
+		//last interval (branch length - last event time), then the change to the state of the node
+		int dwell = table.getDwellState(context);
+		if (dwell != remainder) {
+			timeOfStates[dwell][branchIndex] += branchLengths[branchIndex] - previous;
+		}
+		count(context, node[middle].getStateCode(), branchIndex);
+		//subtract from the last state to the first
+		timeOfStates[remainder][branchIndex] = branchLengths[branchIndex];
+		for (int k = timeOfStates.length - 1; k >= 0; k--) {
+			if (k != remainder) {
+				timeOfStates[remainder][branchIndex] -= timeOfStates[k][branchIndex];
+			}
+		}
+	}
+
+	private void count(int context, byte state, int branchIndex) {
+		int type = table.getType(context, state);
+		if (type >= 0) {
+			numberOfChanges[type][branchIndex]++;
+			changesInGroups[table.getGroup(context, state)][branchIndex]++;
+		}
+	}
+
+	/** Return the number of branches in the tree
+	 * @return number of branches
+	 */
+	public int numberOfBranches() {
+		return branchLengths.length;
+	}
+
+	/**
+	 * Get proportion of time in each dwell state for each branch.
+	 * dim = numDwellStates x (# of branches)
+	 * @return propStates
+	 */
+	public double[][] getPropStates() {
+		return propStates;
+	}
+
+	/**
+	 * Return the number of changes of each type (scenario 1) on branches
+	 * @return numberOfChanges
+	 */
+	public int[][] getNumberOfChanges() {
+		return numberOfChanges;
+	}
+
+	/**
+	 * Return the number of changes in each group (scenario 2) on branches
+	 * @return changesInGroups
+	 */
+	public int[][] getChangesInGroups() {
+		return changesInGroups;
+	}
+
+	/**
+	 * Return the total time in each dwell state on each branch
+	 * @return timeOfStates
+	 */
+	public double[][] getTimeOfStates() {
+		return timeOfStates;
+	}
+
+	/**
+	 * Return the branch length on each branch
+	 * @return branchLengths
+	 */
+	public double[] getBranchLengths() {
+		return branchLengths;
+	}
+}
@@ -0,0 +1,288 @@
+package parse_phylobayes;
+
+/**
+ * Lookup tables that classify the substitutions at the middle site of a window of k consecutive sites
+ * (k odd, a k-mer) by their context. The k-mer is encoded with 2 bits per site, the first site in the
+ * highest bits, with A = 0, G = 1, C = 2, T = 3 (the order of SingleSiteParser.NUCLEOTIDE_ORDER), so there
+ * are 4^k contexts; for k = 3 the codes are those of TripletClassifier.
+ * A change of the middle site is classified by the context before the change and the new nucleotide at the
+ * middle site: tables of 4^k x 4 entries give its type (scenario 1) and its group (scenario 2), -1 if it is
+ * not counted; a table of 4^k entries gives the dwell state of each context.
+ * Changes of the flanking sites are never counted, they only change the context.
+ * The tables of a scheme that only looks at the middle triplet are built by centered(); flankingGC() splits
+ * the types, groups and dwell states of a triplet scheme into classes by the GC content of the flanking sites,
+ * so that the type of a change and the state of a context depend on the k-mer.
+ * @author Hui-Jie
+ *
+ */
+public class ContextTable {
+
+	/** Largest window width, the tables of a 9-mer have 4^10 entries */
+	public static final int MAX_WIDTH = 9;
+
+	/** Nucleotides in the order of their codes */
+	private static final String NUCLEOTIDES = "AGCT";
+
+	/** Number of sites in the window, odd */
+	private int width;
+	/** Type of a change of the middle site: [4 * context + new nucleotide], -1 if not counted */
+	private byte[] type;
+	/** Group of a change of the middle site: [4 * context + new nucleotide], -1 if not counted */
+	private byte[] group;
+	/** Dwell state of each context */
+	private byte[] dwell;
+	/** Number of types */
+	private int numTypes;
+	/** Number of groups */
+	private int numGroups;
+	/** Number of dwell states */
+	private int numDwellStates;
+	/** Dwell state whose time is the branch length minus the time of the other states */
+	private int remainderState;
+	/** Number of classes of the flanking sites of flankingGC(), 1 for the other tables */
+	private int numClasses = 1;
+
+	/**
+	 * Constructor
+	 * @param width number of sites in the window, odd, 3 to MAX_WIDTH
+	 * @param type type of each change [4 * context + new nucleotide], -1 if the change is not counted
+	 * @param group group of each change [4 * context + new nucleotide], -1 if the change is not counted
+	 * @param dwell dwell state of each context
+	 * @param numTypes number of types
+	 * @param numGroups number of groups
+	 * @param numDwellStates number of dwell states
+	 * @param remainderState dwell state whose time is the branch length minus the time of the other states
+	 */
+	public ContextTable(int width, byte[] type, byte[] group, byte[] dwell, int numTypes, int numGroups,
+			int numDwellStates, int remainderState) {
+		checkWidth(width);
+		int numContexts = 1 << (2 * width);
+		if (type.length != 4 * numContexts || group.length != 4 * numContexts || dwell.length != numContexts) {
+			throw new IllegalArgumentException("Tables must have 4^" + width + " x 4 changes and 4^" + width + " contexts");
+		}
+		this.width = width;
+		this.type = type;
+		this.group = group;
+		this.dwell = dwell;
+		this.numTypes = numTypes;
+		this.numGroups = numGroups;
+		this.numDwellStates = numDwellStates;
+		this.remainderState = remainderState;
+	}
+
+	/**
+	 * Build the tables of a window of k sites from a triplet scheme: the type, group and dwell state of a
+	 * context are those of its middle triplet. centered(TripletClassifier.CPG, 3) gives the counts of
+	 * TripletParser; for k = 5 and more the flanking sites are ignored, and the counts are those of
+	 * TripletParser on the middle triplets of the windows.
+	 * @param scheme classifier of the middle triplet
+	 * @param width number of sites in the window, odd, 3 to MAX_WIDTH
+	 * @return tables
+	 */
+	public static ContextTable centered(TripletClassifier scheme, int width) {
+		checkWidth(width);
+		int numContexts = 1 << (2 * width);
+		//shift of the middle triplet in the code of a context
+		int shift = 2 * (width / 2 - 1);
+		byte[] type = new byte[4 * numContexts];
+		byte[] group = new byte[4 * numContexts];
+		byte[] dwell = new byte[numContexts];
+		for (int context = 0; context < numContexts; context++) {
+			int triplet = (context >> shift) & 63;
+			dwell[context] = (byte) scheme.getDwellState(triplet);
+			for (int n = 0; n < 4; n++) {
+				int after = (triplet & ~(3 << 2)) | (n << 2);
+				type[4 * context + n] = (byte) scheme.getType(triplet, after);
+				group[4 * context + n] = (byte) scheme.getGroup(triplet, after);
+			}
+		}
+		return new ContextTable(width, type, group, dwell, scheme.getNumTypes(), scheme.getNumGroups(),
+				scheme.getNumDwellStates(), scheme.getRemainderState());
+	}
+
+	/**
+	 * Build the tables of a window of k sites that split each type, group and dwell state of a triplet scheme
+	 * by the GC content of the k - 3 flanking sites (the sites around the middle triplet): class 1 if at least
+	 * half of them are G or C, class 0 otherwise. Type t of the scheme in class c is type
+	 * c * scheme.getNumTypes() + t, and likewise for the groups and the dwell states, so that a change of a
+	 * flanking site moves the middle triplet from one class to the other. For k = 3 there is no flanking
+	 * site and the tables are those of centered().
+	 * @param scheme classifier of the middle triplet
+	 * @param width number of sites in the window, odd, 3 to MAX_WIDTH
+	 * @return tables
+	 */
+	public static ContextTable flankingGC(TripletClassifier scheme, int width) {
+		ContextTable centered = centered(scheme, width);
+		if (width == 3) {
+			return centered;
+		}
+		int numContexts = 1 << (2 * width);
+		byte[] type = new byte[4 * numContexts];
+		byte[] group = new byte[4 * numContexts];
+		byte[] dwell = new byte[numContexts];
+		for (int context = 0; context < numContexts; context++) {
+			int c = gcRichFlanks(context, width) ? 1 : 0;
+			dwell[context] = (byte) (c * scheme.getNumDwellStates() + centered.dwell[context]);
+			for (int n = 0; n < 4; n++) {
+				int t = centered.type[4 * context + n];
+				type[4 * context + n] = (byte) ((t < 0) ? -1 : c * scheme.getNumTypes() + t);
+				int g = centered.group[4 * context + n];
+				group[4 * context + n] = (byte) ((g < 0) ? -1 : c * scheme.getNumGroups() + g);
+			}
+		}
+		//the remainder state of class 0, the time of the others is summed
+		ContextTable table = new ContextTable(width, type, group, dwell, 2 * scheme.getNumTypes(),
+				2 * scheme.getNumGroups(), 2 * scheme.getNumDwellStates(), scheme.getRemainderState());
+		table.numClasses = 2;
+		return table;
+	}
+
+	/**
+	 * Return true if at least half of the flanking sites of a context (the sites outside the middle triplet)
+	 * are G or C
+	 * @param context code of the window
+	 * @param width number of sites in the window
+	 * @return true for GC-rich flanks
+	 */
+	private static boolean gcRichFlanks(int context, int width) {
+		int middle = width / 2;
+		int gc = 0;
+		for (int position = 0; position < width; position++) {
+			if (Math.abs(position - middle) > 1) {
+				int n = (context >> (2 * (width - 1 - position))) & 3;
+				if (n == 1 || n == 2) { //G or C
+					gc++;
+				}
+			}
+		}
+		return 2 * gc >= width - 3;
+	}
+
+	private static void checkWidth(int width) {
+		if (width < 3 || width > MAX_WIDTH || width % 2 == 0) {
+			throw new IllegalArgumentException("The window width must be odd, 3 to " + MAX_WIDTH + ": " + width);
+		}
+	}
+
+	/**
+	 * Shift a nucleotide into the lowest bits of a context, used to encode the sites of a window in order
+	 * @param context code of the previous sites
+	 * @param state ASCII code of the next nucleotide
+	 * @return code of the sites so far
+	 * @throws IllegalArgumentException if the state is not A, G, C or T
+	 */
+	public static int append(int context, byte state) {
+		return (context << 2) | code(state);
+	}
+
+	/**
+	 * Replace one site of a context
+	 * @param context code of the window
+	 * @param position 0 to width - 1
+	 * @param state ASCII code of the new nucleotide at the position
+	 * @return code of the window
+	 */
+	public int replace(int context, int position, byte state) {
+		int shift = 2 * (width - 1 - position);
+		return (context & ~(3 << shift)) | (code(state) << shift);
+	}
+
+	/**
+	 * Decode a context
+	 * @param context code of the window
+	 * @return the nucleotides of the window, e.g. "AACGT"
+	 */
+	public String decode(int context) {
+		StringBuilder s = new StringBuilder(width);
+		for (int position = 0; position < width; position++) {
+			s.append(NUCLEOTIDES.charAt((context >> (2 * (width - 1 - position))) & 3));
+		}
+		return s.toString();
+	}
+
+	private static int code(byte state) {
+		int n = TransitionKernel.nucleotideIndex(state);
+		if (n < 0) {
+			throw new IllegalArgumentException("Context states must be A, G, C or T: " + (char) state);
+		}
+		return n;
+	}
+
+	/**
+	 * Return the type of a change of the middle site, -1 if it is not counted
+	 * @param context window before the change
+	 * @param state ASCII code of the middle nucleotide after the change
+	 * @return type
+	 */
+	public int getType(int context, byte state) {
+		return type[4 * context + code(state)];
+	}
+
+	/**
+	 * Return the group of a change of the middle site, -1 if it is not counted
+	 * @param context window before the change
+	 * @param state ASCII code of the middle nucleotide after the change
+	 * @return group
+	 */
+	public int getGroup(int context, byte state) {
+		return group[4 * context + code(state)];
+	}
+
+	/**
+	 * Return the dwell state of a context
+	 * @param context code of the window
+	 * @return dwell state
+	 */
+	public int getDwellState(int context) {
+		return dwell[context];
+	}
+
+	/**
+	 * Return the number of sites in the window
+	 * @return width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Return the number of types
+	 * @return numTypes
+	 */
+	public int getNumTypes() {
+		return numTypes;
+	}
+
+	/**
+	 * Return the number of groups
+	 * @return numGroups
+	 */
+	public int getNumGroups() {
+		return numGroups;
+	}
+
+	/**
+	 * Return the number of dwell states
+	 * @return numDwellStates
+	 */
+	public int getNumDwellStates() {
+		return numDwellStates;
+	}
+
+	/**
+	 * Return the number of classes of the flanking sites: the types, groups and dwell states of the triplet
+	 * scheme are repeated for each class (see flankingGC())
+	 * @return numClasses
+	 */
+	public int getNumClasses() {
+		return numClasses;
+	}
+
+	/**
+	 * Return the dwell state whose time is the branch length minus the time of the other states
+	 * @return remainderState
+	 */
+	public int getRemainderState() {
+		return remainderState;
+	}
+}
@@ -0,0 +1,271 @@
+package parse_phylobayes;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Variance-covariance matrix of theta between the branches, for one type of substitution.
+ * The samples of a type are B rows (branches) of C iterations in the layout of SampleLayout, i.e. the
+ * transpose of the C x B sample matrix X. The rows are centred once, and X^T X is computed by blocks:
+ * the rows are cut into blocks of BLOCK rows and the iterations into chunks of CHUNK, so that two blocks of
+ * a chunk stay in the cache while every pair of their rows is multiplied, two rows by two rows at a time.
+ * Only the upper triangle is computed, and the blocks of rows are shared between threads.
+ * Each entry is summed over the iterations in order whatever the blocks and the number of threads, so the
+ * result does not depend on them, and the diagonal is the sum of squares of MappingParser before the kernel.
+ * The iterations can also be added chunk by chunk, in order, with add() and finish(), e.g. for the
+ * streaming moments of MappingParser: the result is the same as covariance() on all the iterations.
+ * The threads of a kernel are created by its first add() and reused by the next ones until finish(); the
+ * kernels of a run can also share one pool made by newPool().
+ * <pre>
+ *   cov[i][i] = sum_c (theta_ic - mean_i)^2 / (C-1) + mean of var(theta_i)
+ *   cov[i][j] = sum_c (theta_ic - mean_i) (theta_jc - mean_j) / (C-1)
+ * </pre>
+ * @author Hui-Jie
+ *
+ */
+public class CovarianceKernel {
+
+	/** Number of rows (branches) in a block */
+	static final int BLOCK = 32;
+	/** Number of iterations in a chunk, 2 blocks of a chunk use 2 x 32 x 256 x 8 bytes = 128 KB */
+	static final int CHUNK = 256;
+
+	/** Running sums of the products, upper triangle */
+	private double[][] cov;
+	/** Number of rows (branches) */
+	private int branchNum;
+	/** Number of threads */
+	private int threads;
+	/** Threads of add(), null until the first add() on more than one thread */
+	private ExecutorService pool;
+	/** True if the pool was created by this kernel and is shut down by finish() */
+	private boolean ownPool;
+
+	/**
+	 * Constructor of an empty sum of products
+	 * @param branchNum number of branches B
+	 * @param threads number of threads
+	 */
+	public CovarianceKernel(int branchNum, int threads) {
+		this(branchNum, threads, null);
+	}
+
+	/**
+	 * Constructor of an empty sum of products on the threads of a pool shared with other kernels
+	 * @param branchNum number of branches B
+	 * @param threads number of threads
+	 * @param pool pool of at least threads threads made by newPool(), shut down by the caller; null for a
+	 *        pool of the kernel
+	 */
+	public CovarianceKernel(int branchNum, int threads, ExecutorService pool) {
+		this.cov = new double[branchNum][branchNum];
+		this.branchNum = branchNum;
+		this.threads = threads;
+		this.pool = pool;
+		this.ownPool = (pool == null);
+	}
+
+	/**
+	 * Return a pool of daemon threads for the kernels of a run
+	 * @param threads number of threads
+	 * @return pool, null for a single thread
+	 */
+	public static ExecutorService newPool(int threads) {
+		if (threads <= 1) {
+			return null;
+		}
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "covariance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Compute the covariance matrix of one type.
+	 * @param theta samples, row i (branch i) starts at offset + i * C
+	 * @param var variance of theta given each sample, same layout as theta
+	 * @param offset index of the first iteration of branch 0
+	 * @param branchNum number of branches B
+	 * @param C number of iterations
+	 * @param threads number of threads
+	 * @return B x B covariance matrix
+	 */
+	public static double[][] covariance(double[] theta, double[] var, int offset, int branchNum, int C, int threads) {
+		/**
+		 * Compute average of theta and of its variance, and centre the samples
+		 */
+		final double[] x = new double[branchNum * C];
+		double[] varBar = new double[branchNum];
+		for (int i = 0; i < branchNum; i++) {
+			int row = offset + i * C;
+			double mean = 0;
+			for (int k = 0; k < C; k++) {
+				mean += theta[row+k];
+				varBar[i] += var[row+k];
+			}
+			mean = mean / C;
+			varBar[i] = varBar[i] / C;
+			for (int k = 0; k < C; k++) {
+				x[i * C + k] = theta[row+k] - mean;
+			}
+		}
+
+		CovarianceKernel kernel = new CovarianceKernel(branchNum, threads);
+		kernel.add(x, 0, C, C);
+		return kernel.finish(varBar, C);
+	}
+
+	/**
+	 * Add the products of the next iterations of centred samples
+	 * @param x centred samples, row i (branch i) starts at offset + i * stride
+	 * @param offset index of the first iteration of branch 0
+	 * @param stride distance between two rows
+	 * @param length number of iterations in each row
+	 */
+	public void add(final double[] x, final int offset, final int stride, final int length) {
+		//upper triangle of X^T X, one task per block of rows, the largest first
+		final int numBlocks = (branchNum + BLOCK - 1) / BLOCK;
+		final AtomicInteger nextBlock = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				for (int b = nextBlock.getAndIncrement(); b < numBlocks; b = nextBlock.getAndIncrement()) {
+					rowBlock(x, offset, stride, length, b * BLOCK);
+				}
+			}
+		};
+		int numThreads = Math.max(1, Math.min(threads, numBlocks));
+		if (numThreads == 1) {
+			task.run();
+		} else {
+			run(task, numThreads);
+		}
+	}
+
+	/**
+	 * Return the covariance matrix after all the iterations are added
+	 * @param varBar mean of the variance of theta given each sample, for each branch
+	 * @param C number of iterations
+	 * @return B x B covariance matrix
+	 */
+	public double[][] finish(double[] varBar, int C) {
+		if (ownPool && pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		for (int i = 0; i < branchNum; i++) {
+			// var(theta) = var(E(theta|M_c)) + E(var(theta|M_c))
+			cov[i][i] = cov[i][i] / (C-1) + varBar[i];
+			for (int j = i + 1; j < branchNum; j++) {
+				cov[i][j] = cov[i][j] / (C-1);
+				cov[j][i] = cov[i][j];
+			}
+		}
+		return cov;
+	}
+
+	private void run(Runnable task, int numThreads) {
+		if (pool == null) {
+			pool = newPool(threads);
+		}
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < numThreads; t++) {
+			results.add(pool.submit(task));
+		}
+		try {
+			for (int t = 0; t < numThreads; t++) {
+				results.get(t).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing the covariance");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Sum the products of the rows of a block with the rows of the same block and of the next blocks,
+	 * chunk by chunk, into the upper triangle of cov.
+	 * @param x centred samples, row i starts at offset + i * stride
+	 * @param offset index of the first iteration of row 0
+	 * @param stride distance between two rows
+	 * @param length number of iterations in each row
+	 * @param first first row of the block
+	 */
+	private void rowBlock(double[] x, int offset, int stride, int length, int first) {
+		int B = branchNum;
+		int last = Math.min(first + BLOCK, B);
+		for (int k0 = 0; k0 < length; k0 += CHUNK) {
+			int k1 = Math.min(k0 + CHUNK, length);
+			for (int firstJ = first; firstJ < B; firstJ += BLOCK) {
+				int lastJ = Math.min(firstJ + BLOCK, B);
+				for (int i = first; i < last; i += 2) {
+					//in the diagonal block, start at the pair of rows of i: the entries below the diagonal
+					//of the pair are computed too, with the same value as their mirror
+					int startJ = (firstJ == first) ? i : firstJ;
+					for (int j = startJ; j < lastJ; j += 2) {
+						if (i + 1 < last && j + 1 < lastJ) {
+							tile(x, cov, offset, stride, i, j, k0, k1);
+						} else {
+							edge(x, cov, offset, stride, i, Math.min(i + 2, last), j, Math.min(j + 2, lastJ), k0, k1);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the products of rows i, i+1 with rows j, j+1 over the iterations k0 to k1-1: four running sums
+	 * that share their loads.
+	 */
+	private static void tile(double[] x, double[][] cov, int offset, int stride, int i, int j, int k0, int k1) {
+		double s00 = cov[i][j];
+		double s01 = cov[i][j+1];
+		double s10 = cov[i+1][j];
+		double s11 = cov[i+1][j+1];
+		int a = offset + i * stride;
+		int b = offset + (i + 1) * stride;
+		int c = offset + j * stride;
+		int d = offset + (j + 1) * stride;
+		for (int k = k0; k < k1; k++) {
+			double xa = x[a+k];
+			double xb = x[b+k];
+			double xc = x[c+k];
+			double xd = x[d+k];
+			s00 += xa * xc;
+			s01 += xa * xd;
+			s10 += xb * xc;
+			s11 += xb * xd;
+		}
+		cov[i][j] = s00;
+		cov[i][j+1] = s01;
+		cov[i+1][j] = s10;
+		cov[i+1][j+1] = s11;
+	}
+
+	/**
+	 * Add the products of the rows i0 to i1-1 with the rows j0 to j1-1 over the iterations k0 to k1-1,
+	 * for the last row or column of a block.
+	 */
+	private static void edge(double[] x, double[][] cov, int offset, int stride, int i0, int i1, int j0, int j1,
+			int k0, int k1) {
+		for (int i = i0; i < i1; i++) {
+			for (int j = j0; j < j1; j++) {
+				double s = cov[i][j];
+				for (int k = k0; k < k1; k++) {
+					s += x[offset + i * stride + k] * x[offset + j * stride + k];
+				}
+				cov[i][j] = s;
+			}
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package parse_phylobayes;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Formatter of doubles into a char buffer, without allocation, for the output files.
+ * The digits are the shortest decimal that reads back as the same double (Schubfach, R. Giulietti, "The
+ * Schubfach way to render doubles", 2020), laid out in one of three ways:
+ * <pre>
+ *   fixed(p)    at most p fraction digits, as DecimalFormat("#.###") with p #: plain notation, no trailing
+ *               zero, HALF_EVEN on the exact value of the double, "-0" for negative values that round to 0
+ *   shortest()  all the shortest digits in plain notation, e.g. 0.000123 or 120000, reads back as the same double
+ *   javaStyle() the layout of Double.toString(), e.g. 1.23E-4 or 0.5
+ * </pre>
+ * fixed(17) is the format of the covariance matrices, DecimalFormat("#.#################") before this
+ * class; DecimalFormat of JDK 17 starts from the digits of Double.toString(), which are the shortest digits
+ * except for rare values where it gives one more digit.
+ * A formatter has no state, it can be used by several threads.
+ * @author Hui-Jie
+ *
+ */
+public class DoubleFormatter {
+
+	/** Precision of shortest(): all the digits */
+	public static final int SHORTEST = -1;
+	/** Maximum number of fraction digits of fixed() */
+	public static final int MAX_PRECISION = 17;
+	/** Maximum number of chars of a double: 309 integer digits of 1.8E308, a sign and 17 fraction digits */
+	public static final int MAX_CHARS = 330;
+
+	/** Number of bits of the significand */
+	private static final int P = 53;
+	/** Exponent of the smallest subnormal */
+	private static final int Q_MIN = -1074;
+	/** Hidden bit of the significand */
+	private static final long C_MIN = 1L << 52;
+	/** Subnormal significands below C_TINY have too few digits for the algorithm */
+	private static final int C_TINY = 3;
+	/** Range of the powers of 10 of the table */
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+	private static final long MASK_63 = (1L << 63) - 1;
+	/** g = floor(10^-k 2^(125 - floor(-k log2(10)))) + 1 for k = K_MIN..K_MAX, 63 high bits then 63 low bits */
+	private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+	/** 10^i */
+	private static final long[] POW10 = new long[19];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = 10 * POW10[i - 1];
+		}
+		for (int k = K_MIN; k <= K_MAX; k++) {
+			int s = 125 - flog2pow10(-k);
+			BigInteger num = (k <= 0) ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+			BigInteger den = (k > 0) ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+			if (s >= 0) {
+				num = num.shiftLeft(s);
+			} else {
+				den = den.shiftLeft(-s);
+			}
+			BigInteger g = num.divide(den).add(BigInteger.ONE);
+			G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+			G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+		}
+	}
+
+	/** Layouts */
+	private static final int FIXED = 0;
+	private static final int PLAIN = 1;
+	private static final int JAVA = 2;
+
+	/** Layout of the digits */
+	private final int layout;
+	/** Maximum number of fraction digits of FIXED */
+	private final int precision;
+
+	private DoubleFormatter(int layout, int precision) {
+		this.layout = layout;
+		this.precision = precision;
+	}
+
+	/**
+	 * Formatter with at most p fraction digits, as DecimalFormat("#.###") with p #
+	 * @param p number of fraction digits, 0 to MAX_PRECISION
+	 * @return formatter
+	 */
+	public static DoubleFormatter fixed(int p) {
+		if (p < 0 || p > MAX_PRECISION) {
+			throw new IllegalArgumentException("precision must be 0 to " + MAX_PRECISION);
+		}
+		return new DoubleFormatter(FIXED, p);
+	}
+
+	/**
+	 * Formatter with the shortest digits that read back as the same double, in plain notation
+	 * @return formatter
+	 */
+	public static DoubleFormatter shortest() {
+		return new DoubleFormatter(PLAIN, SHORTEST);
+	}
+
+	/**
+	 * Formatter with the layout of Double.toString()
+	 * @return formatter
+	 */
+	public static DoubleFormatter javaStyle() {
+		return new DoubleFormatter(JAVA, SHORTEST);
+	}
+
+	/**
+	 * Formatter of a precision
+	 * @param precision number of fraction digits, or SHORTEST
+	 * @return fixed(precision) or shortest()
+	 */
+	public static DoubleFormatter of(int precision) {
+		return (precision == SHORTEST) ? shortest() : fixed(precision);
+	}
+
+	/**
+	 * Format a double into a buffer
+	 * @param v value
+	 * @param buf buffer, with at least MAX_CHARS chars from pos
+	 * @param pos index of the first char
+	 * @return index after the last char
+	 */
+	public int format(double v, char[] buf, int pos) {
+		long bits = Double.doubleToRawLongBits(v);
+		boolean negative = bits < 0;
+		long t = bits & (C_MIN - 1);
+		int bq = (int) (bits >>> 52) & 0x7ff;
+		if (bq == 0x7ff) {
+			String s = (t != 0) ? "NaN" : (layout == JAVA) ? "Infinity" : "\u221E";
+			if (negative && t == 0) {
+				buf[pos++] = '-';
+			}
+			s.getChars(0, s.length(), buf, pos);
+			return pos + s.length();
+		}
+		if (bq != 0) {
+			int mq = -Q_MIN + 1 - bq;
+			long c = C_MIN | t;
+			//integers below 2^53
+			if (0 < mq && mq < P) {
+				long f = c >> mq;
+				if (f << mq == c) {
+					return write(v, negative, f, 0, buf, pos);
+				}
+			}
+			return toDecimal(v, negative, -mq, c, 0, buf, pos);
+		}
+		if (t != 0) {
+			return (t < C_TINY) ? toDecimal(v, negative, Q_MIN, 10 * t, -1, buf, pos)
+					: toDecimal(v, negative, Q_MIN, t, 0, buf, pos);
+		}
+		return write(v, negative, 0, 0, buf, pos);
+	}
+
+	/**
+	 * Format a double into a String
+	 * @param v value
+	 * @return formatted value
+	 */
+	public String format(double v) {
+		char[] buf = new char[MAX_CHARS];
+		return new String(buf, 0, format(v, buf, 0));
+	}
+
+	/**
+	 * Shortest decimal f 10^e in the rounding interval of c 2^q
+	 */
+	private int toDecimal(double v, boolean negative, int q, long c, int dk, char[] buf, int pos) {
+		int out = (int) c & 1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+		//the interval is asymmetric at the powers of 2
+		if (c != C_MIN | q == Q_MIN) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		int h = q + flog2pow10(-k) + 2;
+		long g1 = G[2 * (k - K_MIN)];
+		long g0 = G[2 * (k - K_MIN) + 1];
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+		long s = vb >> 2;
+		if (s >= 100) {
+			//one digit less if a multiple of 10 is in the interval
+			long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + out <= vbr;
+			if (upin != wpin) {
+				return write(v, negative, upin ? sp10 : tp10, k, buf, pos);
+			}
+		}
+		long t = s + 1;
+		boolean uin = vbl + out <= s << 2;
+		boolean win = (t << 2) + out <= vbr;
+		if (uin != win) {
+			return write(v, negative, uin ? s : t, k + dk, buf, pos);
+		}
+		//both in the interval: the closest, the even one if halfway
+		long cmp = vb - (s + t << 1);
+		return write(v, negative, (cmp < 0 || cmp == 0 && (s & 1) == 0) ? s : t, k + dk, buf, pos);
+	}
+
+	/**
+	 * Round the product of g = g1 2^63 + g0 and cp, see Giulietti
+	 */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = Math.multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = Math.multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | (z & MASK_63) + MASK_63 >>> 63;
+	}
+
+	/** floor(q log10(2)) */
+	private static int flog10pow2(int q) {
+		return (int) (q * 661_971_961_083L >> 41);
+	}
+
+	/** floor(q log10(2) + log10(3/4)) */
+	private static int flog10threeQuartersPow2(int q) {
+		return (int) (q * 661_971_961_083L + -274_743_187_321L >> 41);
+	}
+
+	/** floor(e log2(10)) */
+	private static int flog2pow10(int e) {
+		return (int) (e * 913_124_641_741L >> 38);
+	}
+
+	/**
+	 * Write f 10^e in the layout of this formatter
+	 * @param v value, for the ties of fixed()
+	 * @param negative sign
+	 * @param f digits
+	 * @param e exponent of the last digit
+	 */
+	private int write(double v, boolean negative, long f, int e, char[] buf, int pos) {
+		//no trailing zero
+		while (f != 0 && f % 10 == 0) {
+			f = f / 10;
+			e++;
+		}
+		if (layout == FIXED && -e > precision) {
+			int drop = -e - precision;
+			int len = numDigits(f);
+			long q = 0;
+			boolean up = false;
+			if (drop <= len) {
+				long pow = POW10[drop];
+				q = f / pow;
+				long r = f % pow;
+				long half = pow / 2;
+				//halfway between the shortest digits: the exact value of the double decides, as in DecimalFormat
+				up = r > half || r == half && roundUpTie(v, q, e + drop);
+			}
+			f = (up) ? q + 1 : q;
+			e = -precision;
+			while (f != 0 && f % 10 == 0) {
+				f = f / 10;
+				e++;
+			}
+		}
+		if (negative) {
+			buf[pos++] = '-';
+		}
+		if (layout == JAVA) {
+			return writeJava(f, e, buf, pos);
+		}
+		if (f == 0) {
+			buf[pos++] = '0';
+			return pos;
+		}
+		return writePlain(f, e, buf, pos);
+	}
+
+	/**
+	 * Return true if |v| rounds up to q + 1 at 10^e, |v| being halfway between q and q + 1 in its shortest digits
+	 */
+	private static boolean roundUpTie(double v, long q, int e) {
+		BigDecimal middle = BigDecimal.valueOf(10 * q + 5, 1 - e);
+		int cmp = new BigDecimal(Math.abs(v)).compareTo(middle);
+		return cmp > 0 || cmp == 0 && (q & 1) == 1;
+	}
+
+	/**
+	 * Write f 10^e in plain notation, f > 0
+	 */
+	private static int writePlain(long f, int e, char[] buf, int pos) {
+		int len = numDigits(f);
+		if (e >= 0) {
+			pos = writeDigits(f, len, buf, pos);
+			for (int i = 0; i < e; i++) {
+				buf[pos++] = '0';
+			}
+			return pos;
+		}
+		int fraction = -e;
+		if (len > fraction) {
+			pos = writeDigits(f / POW10[fraction], len - fraction, buf, pos);
+			buf[pos++] = '.';
+			return writeDigits(f % POW10[fraction], fraction, buf, pos);
+		}
+		buf[pos++] = '0';
+		buf[pos++] = '.';
+		for (int i = len; i < fraction; i++) {
+			buf[pos++] = '0';
+		}
+		return writeDigits(f, len, buf, pos);
+	}
+
+	/**
+	 * Write f 10^e as Double.toString(): plain from 10^-3 to 10^7, d.dddEn otherwise, at least one fraction digit
+	 */
+	private static int writeJava(long f, int e, char[] buf, int pos) {
+		if (f == 0) {
+			buf[pos++] = '0';
+			buf[pos++] = '.';
+			buf[pos++] = '0';
+			return pos;
+		}
+		int len = numDigits(f);
+		int exponent = e + len - 1;
+		if (exponent >= -3 && exponent < 7) {
+			pos = writePlain(f, e, buf, pos);
+			if (e >= 0) {
+				buf[pos++] = '.';
+				buf[pos++] = '0';
+			}
+			return pos;
+		}
+		pos = writeDigits(f / POW10[len - 1], 1, buf, pos);
+		buf[pos++] = '.';
+		pos = (len > 1) ? writeDigits(f % POW10[len - 1], len - 1, buf, pos) : writeDigits(0, 1, buf, pos);
+		buf[pos++] = 'E';
+		if (exponent < 0) {
+			buf[pos++] = '-';
+			exponent = -exponent;
+		}
+		return writeDigits(exponent, numDigits(exponent), buf, pos);
+	}
+
+	/**
+	 * Write the len last digits of f, with leading zeros
+	 */
+	private static int writeDigits(long f, int len, char[] buf, int pos) {
+		for (int i = pos + len - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + f % 10);
+			f = f / 10;
+		}
+		return pos + len;
+	}
+
+	/**
+	 * Number of digits of f, 1 for 0
+	 */
+	private static int numDigits(long f) {
+		int len = 1;
+		while (len < POW10.length && f >= POW10[len]) {
+			len++;
+		}
+		return len;
+	}
+}
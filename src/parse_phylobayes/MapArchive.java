@@ -0,0 +1,242 @@
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-container input: the .map files of a chain concatenated into one file <chain>.maparc,
+ * with an index of the offset of each site. Reading one container instead of thousands of loose
+ * <chain>_<i>.map files spares the metadata servers of shared file systems (Lustre, NFS), and the index
+ * gives random access to any site (the triplet window reads sites i, i+1, i+2).
+ *
+ * Layout of a .maparc file (big-endian):
+ * <pre>
+ *   magic "MAPARC01" (8 bytes)
+ *   int N
+ *   long siteOffset[N+1]    offset of the text of each site, siteOffset[N] is the end of the file
+ *   text of <chain>_0.map, <chain>_1.map, ..., <chain>_{N-1}.map
+ * </pre>
+ * The text of a site is stored as it is in the .map file (decompressed if the loose file was compressed),
+ * so MapTextSource maps and scans it exactly like a loose file.
+ * Run the packer with: java parse_phylobayes.MapArchive N chain [--input-dir dir] [--output file]
+ * @author Hui-Jie
+ *
+ */
+public class MapArchive {
+
+	/** First bytes of a .maparc file */
+	static final byte[] MAGIC = {'M', 'A', 'P', 'A', 'R', 'C', '0', '1'};
+
+	/** Extension of the container file */
+	public static final String EXTENSION = ".maparc";
+
+	/** Container file */
+	private File file;
+	/** Offset of the text of each site, siteOffset[N] is the end of the file */
+	private long[] siteOffset;
+
+	/**
+	 * Open a container and read its index. The file is closed when the index is read, the archive holds
+	 * no open file and has nothing to close: the sites are read by MapFileReader.
+	 * @param file .maparc file
+	 * @throws IOException if the file is not a complete .maparc file
+	 */
+	public MapArchive(File file) throws IOException {
+		this.file = file;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+			readFully(channel, header, 0);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (header.get(i) != MAGIC[i]) {
+					throw new IOException(file + " is not a .maparc file");
+				}
+			}
+			int N = header.getInt(MAGIC.length);
+			ByteBuffer index = ByteBuffer.allocate(8 * (N + 1));
+			readFully(channel, index, header.capacity());
+			siteOffset = new long[N + 1];
+			for (int i = 0; i <= N; i++) {
+				siteOffset[i] = index.getLong(8 * i);
+			}
+			if (siteOffset[N] != channel.size()) {
+				throw new IOException(file + " is incomplete");
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Return the container file
+	 * @return file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the number of sites in the container
+	 * @return N
+	 */
+	public int getNumSites() {
+		return siteOffset.length - 1;
+	}
+
+	/**
+	 * Return the offset of the text of a site
+	 * @param site index of the site
+	 * @return offset in the file
+	 */
+	public long getStart(int site) {
+		return siteOffset[site];
+	}
+
+	/**
+	 * Return the end of the text of a site (exclusive)
+	 * @param site index of the site
+	 * @return offset in the file
+	 */
+	public long getEnd(int site) {
+		return siteOffset[site + 1];
+	}
+
+	/**
+	 * Pack the loose .map files of a chain (plain or compressed) into one container.
+	 * The file is written under a temporary name and renamed when it is complete, a failed packing
+	 * deletes it.
+	 * @param N number of sites
+	 * @param name filename prefix
+	 * @param inputDir directory that contains the .map files
+	 * @param output .maparc file to write
+	 * @throws IOException
+	 */
+	public static void pack(int N, String name, File inputDir, File output) throws IOException {
+		File partial = new File(output.getPath() + ".part");
+		FileChannel out = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		long[] siteOffset = new long[N + 1];
+		boolean complete = false;
+		try {
+			long position = MAGIC.length + 4 + 8L * (N + 1);
+			for (int i = 0; i < N; i++) {
+				siteOffset[i] = position;
+				String fileName = name+"_"+i+".map";
+				File plain = new File(inputDir, fileName);
+				if (plain.exists()) {
+					FileChannel in = FileChannel.open(plain.toPath(), StandardOpenOption.READ);
+					try {
+						long size = in.size();
+						for (long done = 0; done < size; ) {
+							done += in.transferTo(done, size - done, out.position(position + done));
+						}
+						position += size;
+					} finally {
+						in.close();
+					}
+				} else {
+					File compressed = MapPrefetcher.compressedFile(inputDir, fileName);
+					if (compressed == null) {
+						throw new IOException("Couldn't find " + plain);
+					}
+					ByteBuffer content = MapPrefetcher.decompress(compressed);
+					position += writeFully(out, content, position);
+				}
+			}
+			siteOffset[N] = position;
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 8 * (N + 1));
+			header.put(MAGIC);
+			header.putInt(N);
+			for (int i = 0; i <= N; i++) {
+				header.putLong(siteOffset[i]);
+			}
+			header.flip();
+			writeFully(out, header, 0);
+			complete = true;
+		} finally {
+			out.close();
+			if (!complete) {
+				partial.delete();
+			}
+		}
+		if (output.exists() && !output.delete() || !partial.renameTo(output)) {
+			throw new IOException("Couldn't rename " + partial + " to " + output);
+		}
+	}
+
+	/**
+	 * Read bytes from a channel until the buffer is full.
+	 * @param channel channel
+	 * @param b buffer
+	 * @param position position in the channel
+	 * @throws IOException at the end of the channel
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	/**
+	 * Write all the remaining bytes of a buffer.
+	 * @param channel channel
+	 * @param b buffer
+	 * @param position position in the channel
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	private static long writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		long written = 0;
+		while (b.hasRemaining()) {
+			written += channel.write(b, position + written);
+		}
+		return written;
+	}
+
+	/**
+	 * Main function
+	 * @param args N chain [--input-dir dir] [--output file], the default output is <chain>.maparc in the input directory
+	 */
+	public static void main(String args[]) throws IOException {
+		String[] pos = new String[2];
+		int numPos = 0;
+		File inputDir = new File(".");
+		File output = null;
+		String error = null;
+		for (int i = 0; i < args.length && error == null; i++) {
+			if (args[i].equals("--input-dir") && i + 1 < args.length) {
+				inputDir = new File(args[++i]);
+			} else if (args[i].equals("--output") && i + 1 < args.length) {
+				output = new File(args[++i]);
+			} else if (args[i].startsWith("--")) {
+				error = "Unknown option or missing value: " + args[i];
+			} else if (numPos < pos.length) {
+				pos[numPos++] = args[i];
+			} else {
+				error = "Unexpected argument: " + args[i];
+			}
+		}
+		if (error == null && numPos < pos.length) {
+			error = "Missing arguments";
+		}
+		if (error != null) {
+			System.out.println(error);
+			System.out.println("Usage: MapArchive N chain [--input-dir dir] [--output file]");
+			return;
+		}
+		int N = Integer.parseInt(pos[0]);
+		String name = pos[1];
+		if (output == null) {
+			output = new File(inputDir, name + EXTENSION);
+		}
+		long startTime = System.nanoTime();
+		pack(N, name, inputDir, output);
+		System.out.println(String.format("Wrote %s (%.1f MB) in %.2f s", output.getPath(),
+				output.length() / (1024.0 * 1024.0), (System.nanoTime() - startTime) / 1e9));
+	}
+}
@@ -0,0 +1,193 @@
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the substitution histories from a binary columnar cache <chain>.mapbin written by MapBinWriter.
+ * The records of a site are memory-mapped when the site is opened, and next() copies the states and
+ * times of a record straight from the mapped buffer into the nodes of a tree of the template:
+ * no text is tokenized and no number is parsed.
+ * See MapBinWriter for the layout of the file.
+ * @author Hui-Jie
+ *
+ */
+public class MapBinReader implements MappingSource {
+
+	/** Channel of the .mapbin file */
+	private FileChannel channel;
+	/** Number of sites in the file */
+	private int numSites;
+	/** Number of trees per site in the file */
+	private int numTrees;
+	/** Number of nodes of each tree */
+	private int numNodes;
+	/** Topology read from the header */
+	private TopologyTemplate template;
+	/** .mapbin file */
+	private File file;
+	/** Names of the files the sites were read from, in the directory of the .map files */
+	private String[] sourceNames;
+	/** Size of each source file when the cache was written */
+	private long[] sourceSizes;
+	/** Modification time of each source file when the cache was written */
+	private long[] sourceModified;
+	/** Offset of the first record of each site, siteOffset[numSites] is the end of the records */
+	private long[] siteOffset;
+	/** Records of the current site */
+	private MappedByteBuffer buffer;
+	/** Position of the next record in buffer */
+	private int pos;
+	/** Number of bytes of records read */
+	private long bytesRead;
+
+	/**
+	 * Open a .mapbin file and read its header.
+	 * @param file .mapbin file
+	 * @throws IOException if the file is not a complete .mapbin file
+	 */
+	public MapBinReader(File file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			readHeader(file);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the header: sizes, topology and site offsets.
+	 * @param file .mapbin file, for the error messages
+	 * @throws IOException
+	 */
+	private void readHeader(File file) throws IOException {
+		long size = channel.size();
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+		for (int i = 0; i < MapBinWriter.MAGIC.length; i++) {
+			if (header.get() != MapBinWriter.MAGIC[i]) {
+				throw new IOException(file + " is not a .mapbin file of this version, convert the chain again.");
+			}
+		}
+		numSites = header.getInt();
+		numTrees = header.getInt();
+		numNodes = header.getInt();
+		long fingerprint = header.getLong();
+		int[] parent = new int[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			parent[n] = header.getInt();
+		}
+		String[] names = new String[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			char[] c = new char[header.getInt()];
+			for (int i = 0; i < c.length; i++) {
+				c[i] = (char) (header.get() & 0xff);
+			}
+			names[n] = new String(c);
+		}
+		int numSources = header.getInt();
+		sourceNames = new String[numSources];
+		sourceSizes = new long[numSources];
+		sourceModified = new long[numSources];
+		for (int f = 0; f < numSources; f++) {
+			byte[] b = new byte[header.getInt()];
+			header.get(b);
+			sourceNames[f] = new String(b, "UTF-8");
+			sourceSizes[f] = header.getLong();
+			sourceModified[f] = header.getLong();
+		}
+		siteOffset = new long[numSites + 1];
+		for (int i = 0; i <= numSites; i++) {
+			siteOffset[i] = header.getLong();
+		}
+		if (siteOffset[numSites] != size) {
+			throw new IOException(file + " is incomplete");
+		}
+		template = new TopologyTemplate(parent, names, fingerprint);
+	}
+
+	/**
+	 * Return the number of sites in the file
+	 * @return N
+	 */
+	public int getNumSites() {
+		return numSites;
+	}
+
+	/**
+	 * Return the number of trees per site in the file
+	 * @return C
+	 */
+	public int getNumTrees() {
+		return numTrees;
+	}
+
+	/**
+	 * Check that the files the cache was written from have not changed since: same size and same
+	 * modification time. A file that no longer exists is not checked, the cache then replaces it.
+	 * @param directory directory that contains the .map files
+	 * @throws IOException if a file has changed
+	 */
+	public void checkSources(File directory) throws IOException {
+		for (int f = 0; f < sourceNames.length; f++) {
+			File source = new File(directory, sourceNames[f]);
+			if (source.exists() && (source.length() != sourceSizes[f] || source.lastModified() != sourceModified[f])) {
+				throw new IOException(source + " has changed since " + file + " was written, delete it or convert the chain again.");
+			}
+		}
+	}
+
+	public TopologyTemplate getTemplate() {
+		return template;
+	}
+
+	public void openSite(int site) throws IOException {
+		long length = siteOffset[site + 1] - siteOffset[site];
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Site " + site + " is larger than 2 GB");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, siteOffset[site], length);
+		pos = 0;
+	}
+
+	public void next(Tree dest) throws IOException {
+		//columns of the record
+		int states = pos;
+		int times = states + numNodes;
+		int eventEnds = times + 8 * numNodes;
+		int eventStates = eventEnds + 4 * numNodes;
+		int numEvents = buffer.getInt(eventEnds + 4 * (numNodes - 1));
+		int eventTimes = eventStates + numEvents;
+		int first = 0;
+		//tree.nodes is in preorder, as the nodes of the record
+		for (int n = 0; n < numNodes; n++) {
+			TreeNode node = dest.nodes.get(n);
+			node.setState(buffer.get(states + n));
+			node.setTime(buffer.getDouble(times + 8 * n));
+			//the events are stored from the node up to its parent, the node from the parent down
+			int last = buffer.getInt(eventEnds + 4 * n);
+			node.setNumEvents(last - first);
+			for (int k = first; k < last; k++) {
+				node.setEvent(last - 1 - k, buffer.get(eventStates + k), buffer.getDouble(eventTimes + 8 * k));
+			}
+			first = last;
+		}
+		dest.clearStatistics();
+		int length = 13 * numNodes + 9 * numEvents;
+		pos += length;
+		bytesRead += length;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public void close() throws IOException {
+		buffer = null;
+		channel.close();
+	}
+}
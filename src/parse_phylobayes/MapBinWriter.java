@@ -0,0 +1,210 @@
+package parse_phylobayes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashSet;
+
+/**
+ * One-time converter from the .map text files of a chain (<chain>_0.map ... <chain>_{N-1}.map,
+ * plain or compressed, see MapTextSource)
+ * to the binary columnar cache <chain>.mapbin read by MapBinReader.
+ * Once the cache exists, MappingParser reads it instead of the text files, so a chain can be
+ * re-analyzed (option 1, option 2, other groupings) without tokenizing the text again.
+ * The header records the size and the modification time of each file the sites were read from;
+ * MappingParser refuses a cache whose files have changed since (see MapBinReader.checkSources()).
+ *
+ * Layout of a .mapbin file (big-endian, as DataOutputStream and ByteBuffer):
+ * <pre>
+ * header:
+ *   magic "MAPBIN02" (8 bytes)
+ *   int N, int C, int numNodes
+ *   long fingerprint                      topology fingerprint (MappingScanner.getTopologyHash())
+ *   int parent[numNodes]                  preorder, -1 for the root
+ *   numNodes x (int length, byte[length]) names of the nodes
+ *   int numSources                        files the sites were read from (.map, .map.gz, .map.xz or .maparc)
+ *   numSources x (int length, byte[length] name, long size, long lastModified)
+ *   long siteOffset[N+1]                  offset of the first record of each site, end of the file
+ * records, C per site, sites in order:
+ *   byte state[numNodes]                  state of each node (ASCII)
+ *   double time[numNodes]                 time from the node to its first event
+ *   int eventEnd[numNodes]                cumulative number of events, node n owns events [eventEnd[n-1], eventEnd[n])
+ *   byte eventState[E]                    path state of each event, E = eventEnd[numNodes-1]
+ *   double eventTime[E]                   path time of each event
+ * </pre>
+ * Run with: java parse_phylobayes.MapBinWriter N C chain [--input-dir dir]
+ * @author Hui-Jie
+ *
+ */
+public class MapBinWriter {
+
+	/** First bytes of a .mapbin file */
+	static final byte[] MAGIC = {'M', 'A', 'P', 'B', 'I', 'N', '0', '2'};
+
+	/** Extension of the cache file */
+	public static final String EXTENSION = ".mapbin";
+
+	/**
+	 * Convert the .map files of a chain. The file is written under a temporary name and renamed
+	 * when it is complete, so a failed conversion never leaves a partial cache behind.
+	 * @param N number of sites
+	 * @param C number of trees per site
+	 * @param name filename prefix
+	 * @param inputDir directory that contains the .map files
+	 * @param output .mapbin file to write
+	 * @throws IOException
+	 */
+	public static void convert(int N, int C, String name, File inputDir, File output) throws IOException {
+		MapTextSource source = new MapTextSource(inputDir, name);
+		MappingScanner scanner = source.getScanner();
+		TopologyTemplate template = source.getTemplate();
+		int numNodes = template.getNumNodes();
+		long[] siteOffset = new long[N + 1];
+		//files of the sites, in order, each once (a .maparc holds all the sites)
+		LinkedHashSet<File> sources = new LinkedHashSet<File>();
+		for (int i = 0; i < N; i++) {
+			sources.add(source.getSiteFile(i));
+		}
+
+		File partial = new File(output.getPath() + ".part");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16));
+		long indexPosition;
+		boolean complete = false;
+		try {
+			out.write(MAGIC);
+			out.writeInt(N);
+			out.writeInt(C);
+			out.writeInt(numNodes);
+			out.writeLong(template.getFingerprint());
+			for (int n = 0; n < numNodes; n++) {
+				out.writeInt(template.getParent(n));
+			}
+			for (int n = 0; n < numNodes; n++) {
+				byte[] b = template.getName(n).getBytes("US-ASCII");
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(sources.size());
+			for (File f : sources) {
+				byte[] b = f.getName().getBytes("UTF-8");
+				out.writeInt(b.length);
+				out.write(b);
+				out.writeLong(f.length());
+				out.writeLong(f.lastModified());
+			}
+			indexPosition = out.size();
+			for (int i = 0; i <= N; i++) {
+				out.writeLong(0); //filled at the end
+			}
+
+			long position = out.size();
+			for (int i = 0; i < N; i++) {
+				siteOffset[i] = position;
+				source.openSite(i);
+				for (int j = 0; j < C; j++) {
+					source.scanNext();
+					if (!template.matches(scanner)) {
+						throw new IllegalArgumentException("Topology of tree " + j + " in " + name+"_"+i+".map"
+								+ " differs from the first tree of the chain.");
+					}
+					position += writeRecord(out, scanner);
+				}
+			}
+			siteOffset[N] = position;
+			complete = true;
+		} finally {
+			out.close();
+			if (!complete) {
+				partial.delete();
+			}
+			source.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+		try {
+			raf.seek(indexPosition);
+			for (int i = 0; i <= N; i++) {
+				raf.writeLong(siteOffset[i]);
+			}
+		} finally {
+			raf.close();
+		}
+		if (output.exists() && !output.delete() || !partial.renameTo(output)) {
+			throw new IOException("Couldn't rename " + partial + " to " + output);
+		}
+	}
+
+	/**
+	 * Write the last tree scanned as one record.
+	 * @param out output
+	 * @param scanner scanner holding the tree
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	private static long writeRecord(DataOutputStream out, MappingScanner scanner) throws IOException {
+		int numNodes = scanner.getNumNodes();
+		int numEvents = 0;
+		for (int n = 0; n < numNodes; n++) {
+			out.writeByte(scanner.getState(n));
+		}
+		for (int n = 0; n < numNodes; n++) {
+			out.writeDouble(scanner.getTime(n));
+		}
+		for (int n = 0; n < numNodes; n++) {
+			numEvents += scanner.getEventCount(n);
+			out.writeInt(numEvents);
+		}
+		for (int n = 0; n < numNodes; n++) {
+			for (int k = 0; k < scanner.getEventCount(n); k++) {
+				out.writeByte(scanner.getEventState(n, k));
+			}
+		}
+		for (int n = 0; n < numNodes; n++) {
+			for (int k = 0; k < scanner.getEventCount(n); k++) {
+				out.writeDouble(scanner.getEventTime(n, k));
+			}
+		}
+		return numNodes * 13L + numEvents * 9L;
+	}
+
+	/**
+	 * Main function
+	 * @param args N C chain [--input-dir dir]
+	 */
+	public static void main(String args[]) throws IOException {
+		String[] pos = new String[3];
+		int numPos = 0;
+		File inputDir = new File(".");
+		String error = null;
+		for (int i = 0; i < args.length && error == null; i++) {
+			if (args[i].equals("--input-dir") && i + 1 < args.length) {
+				inputDir = new File(args[++i]);
+			} else if (args[i].startsWith("--")) {
+				error = "Unknown option or missing value: " + args[i];
+			} else if (numPos < pos.length) {
+				pos[numPos++] = args[i];
+			} else {
+				error = "Unexpected argument: " + args[i];
+			}
+		}
+		if (error == null && numPos < pos.length) {
+			error = "Missing arguments";
+		}
+		if (error != null) {
+			System.out.println(error);
+			System.out.println("Usage: MapBinWriter N C chain [--input-dir dir]");
+			return;
+		}
+		int N = Integer.parseInt(pos[0]);
+		int C = Integer.parseInt(pos[1]);
+		String name = pos[2];
+		File output = new File(inputDir, name + EXTENSION);
+		long startTime = System.nanoTime();
+		convert(N, C, name, inputDir, output);
+		System.out.println(String.format("Wrote %s (%.1f MB) in %.2f s", output.getPath(),
+				output.length() / (1024.0 * 1024.0), (System.nanoTime() - startTime) / 1e9));
+	}
+}
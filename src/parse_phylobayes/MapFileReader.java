@@ -0,0 +1,257 @@
+package parse_phylobayes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class reads .map files from an input directory through a memory-mapped FileChannel.
+ * The files are PhyloBayes output and are plain ASCII, so the bytes are never decoded into a charset.
+ * Each call to nextLine() moves to the next line and exposes it as a slice [lineStart, lineEnd) of the
+ * mapped buffer, so no String is created per line.
+ * One reader is reused for all the sites: open() closes the previous file and maps the next one.
+ * A file that has already been decompressed in memory (see MapPrefetcher) is read the same way
+ * through open(ByteBuffer).
+ * @author Hui-Jie
+ *
+ */
+public class MapFileReader implements Closeable {
+
+	/** Largest region of a file that is mapped at once (1 GB) */
+	private static final long MAX_WINDOW = 1L << 30;
+
+	/** Directory that contains the .map files */
+	private File directory;
+	/** Channel of the file currently opened */
+	private FileChannel channel;
+	/** Name of the file currently opened */
+	private String channelName;
+	/** Mapped region of the file currently opened, or the content of a decompressed file */
+	private ByteBuffer buffer;
+	/** End of the region of the file currently read (the size of the file, or the end of a site in a container) */
+	private long fileSize;
+	/** Offset of the mapped region in the file */
+	private long windowStart;
+	/** Start of the current line in the mapped region (inclusive) */
+	private int lineStart;
+	/** End of the current line in the mapped region (exclusive, line terminator not included) */
+	private int lineEnd;
+	/** Position where the next line starts in the mapped region */
+	private int next;
+	/** Total number of bytes consumed by nextLine() since this reader was created */
+	private long bytesRead;
+	/** Reader handed to the tree parser, reset to the current line by lineReader() */
+	private LineReader lineReader;
+
+	/**
+	 * Constructor
+	 * @param directory the directory that contains the .map files
+	 */
+	public MapFileReader(File directory) {
+		this.directory = directory;
+		this.lineReader = new LineReader();
+	}
+
+	/**
+	 * Open a file in the input directory. The file opened before (if any) is closed.
+	 * @param fileName name of the file, e.g. chain_0.map
+	 * @throws IOException
+	 */
+	public void open(String fileName) throws IOException {
+		close();
+		channel = FileChannel.open(new File(directory, fileName).toPath(), StandardOpenOption.READ);
+		channelName = fileName;
+		fileSize = channel.size();
+		map(0);
+	}
+
+	/**
+	 * Read the lines of the region [start, end) of a file, e.g. one site of a MapArchive.
+	 * The channel is kept open when the same file was opened before, so reading all the sites of a
+	 * container opens the file once.
+	 * @param fileName name of the file
+	 * @param start start of the region
+	 * @param end end of the region (exclusive)
+	 * @throws IOException
+	 */
+	public void open(String fileName, long start, long end) throws IOException {
+		if (channel == null || !fileName.equals(channelName)) {
+			open(fileName);
+		}
+		fileSize = end;
+		map(start);
+	}
+
+	/**
+	 * Read the lines of a file already held in memory, e.g. a decompressed .map.gz file.
+	 * The file opened before (if any) is closed.
+	 * @param content content of the file, from position 0 to its limit
+	 * @throws IOException
+	 */
+	public void open(ByteBuffer content) throws IOException {
+		close();
+		buffer = content;
+		fileSize = content.limit();
+		windowStart = 0;
+		lineStart = 0;
+		lineEnd = 0;
+		next = 0;
+	}
+
+	/**
+	 * Map the region of the file that starts at the given offset.
+	 * @param offset offset in the file
+	 * @throws IOException
+	 */
+	private void map(long offset) throws IOException {
+		windowStart = offset;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_WINDOW, fileSize - offset));
+		lineStart = 0;
+		lineEnd = 0;
+		next = 0;
+	}
+
+	/**
+	 * Move to the next line.
+	 * @return false if the end of the file has been reached
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		if (buffer == null) {
+			return false;
+		}
+		int limit = buffer.limit();
+		if (next >= limit) {
+			if (windowStart + limit >= fileSize) {
+				return false;
+			}
+			map(windowStart + limit);
+			limit = buffer.limit();
+		}
+		int i = next;
+		while (i < limit && buffer.get(i) != '\n') {
+			i++;
+		}
+		if (i == limit && windowStart + limit < fileSize) {
+			//the line runs past the mapped region, map again from the start of the line
+			if (next == 0) {
+				throw new IOException("Line longer than " + MAX_WINDOW + " bytes");
+			}
+			map(windowStart + next);
+			return nextLine();
+		}
+		lineStart = next;
+		lineEnd = i;
+		next = (i < limit) ? i + 1 : i;
+		bytesRead += next - lineStart;
+		if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+			lineEnd--;
+		}
+		return true;
+	}
+
+	/**
+	 * Return the buffer holding the current line
+	 * @return buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Return the start of the current line in the buffer
+	 * @return lineStart
+	 */
+	public int getLineStart() {
+		return lineStart;
+	}
+
+	/**
+	 * Return the end of the current line in the buffer (exclusive)
+	 * @return lineEnd
+	 */
+	public int getLineEnd() {
+		return lineEnd;
+	}
+
+	/**
+	 * Return the length of the current line
+	 * @return length
+	 */
+	public int getLineLength() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * Return a Reader over the current line. The same Reader object is reused for every line.
+	 * @return reader positioned at the start of the current line
+	 */
+	public Reader lineReader() {
+		lineReader.reset(lineStart, lineEnd);
+		return lineReader;
+	}
+
+	/**
+	 * Return the number of bytes read since this reader was created
+	 * @return bytesRead
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Close the file currently opened
+	 */
+	public void close() throws IOException {
+		buffer = null;
+		if (channel != null) {
+			channel.close();
+			channel = null;
+			channelName = null;
+		}
+	}
+
+	/**
+	 * Reader over a slice of the buffer. Each byte is one ASCII character.
+	 */
+	private class LineReader extends Reader {
+		/** Current position in the buffer */
+		private int pos;
+		/** End of the slice (exclusive) */
+		private int end;
+
+		/**
+		 * Point the reader to a new slice
+		 * @param start start of the slice
+		 * @param end end of the slice (exclusive)
+		 */
+		void reset(int start, int end) {
+			this.pos = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() {
+			if (pos >= end) return -1;
+			return buffer.get(pos++) & 0xff;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (pos >= end) return -1;
+			int n = Math.min(len, end - pos);
+			for (int i = 0; i < n; i++) {
+				cbuf[off + i] = (char) (buffer.get(pos++) & 0xff);
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package parse_phylobayes;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses the compressed .map files of a chain (<chain>_<site>.map.gz or <chain>_<site>.map.xz)
+ * on background threads, ahead of the parser.
+ * When the parser asks for site s, the decompression of the next sites is started, so that by the time
+ * the parser has finished with site s the next file is already in memory.
+ * .gz files are read with GZIPInputStream. The JDK has no xz decoder, so .xz files are piped through
+ * the external command `xz -dc`.
+ * @author Hui-Jie
+ *
+ */
+public class MapPrefetcher implements Closeable {
+
+	/** Extensions of the compressed .map files, in the order they are looked for */
+	public static final String[] EXTENSIONS = {".gz", ".xz"};
+
+	/** Directory that contains the .map files */
+	private File directory;
+	/** Filename prefix */
+	private String name;
+	/** Number of sites decompressed ahead of the site being parsed */
+	private int ahead;
+	/** Threads that decompress the files */
+	private ExecutorService pool;
+	/** Decompressed files that have not been asked for yet, by site */
+	private HashMap<Integer, Future<ByteBuffer>> pending;
+
+	/**
+	 * Constructor
+	 * @param directory directory that contains the .map files
+	 * @param name filename prefix
+	 * @param threads number of decompression threads
+	 */
+	public MapPrefetcher(File directory, String name, int threads) {
+		this.directory = directory;
+		this.name = name;
+		this.ahead = threads;
+		this.pending = new HashMap<Integer, Future<ByteBuffer>>();
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "map-decompress");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Return the number of decompression threads of each prefetcher of a run, so that the prefetchers of
+	 * all the parser threads together use the cores left by the parsers, and at least one thread each.
+	 * @param parserThreads number of parser threads, each reading its own sites through its own prefetcher
+	 * @return number of threads of one prefetcher
+	 */
+	public static int threadsPerParser(int parserThreads) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, (cores - parserThreads) / parserThreads);
+	}
+
+	/**
+	 * Return the compressed file of a site, or null if there is none.
+	 * @param directory directory that contains the .map files
+	 * @param fileName name of the .map file, e.g. chain_0.map
+	 * @return compressed file
+	 */
+	public static File compressedFile(File directory, String fileName) {
+		for (int i = 0; i < EXTENSIONS.length; i++) {
+			File f = new File(directory, fileName + EXTENSIONS[i]);
+			if (f.exists()) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the decompressed content of a site, and start decompressing the next sites.
+	 * @param site index of the site
+	 * @return content of <chain>_<site>.map
+	 * @throws IOException if the file is missing or cannot be decompressed
+	 */
+	public ByteBuffer get(int site) throws IOException {
+		Future<ByteBuffer> f = pending.remove(site);
+		if (f == null) {
+			f = submit(site);
+			if (f == null) {
+				throw new IOException("Couldn't find " + new File(directory, fileName(site)) + " (.gz or .xz)");
+			}
+		}
+		for (int s = site + 1; s <= site + ahead; s++) {
+			if (!pending.containsKey(s)) {
+				Future<ByteBuffer> next = submit(s);
+				if (next == null) {
+					break; //no more sites
+				}
+				pending.put(s, next);
+			}
+		}
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing " + fileName(site));
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Couldn't decompress " + fileName(site), cause);
+		}
+	}
+
+	/**
+	 * Start decompressing a site
+	 * @param site index of the site
+	 * @return pending result, null if the site has no compressed file
+	 */
+	private Future<ByteBuffer> submit(int site) {
+		final File file = compressedFile(directory, fileName(site));
+		if (file == null) {
+			return null;
+		}
+		return pool.submit(new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws IOException {
+				return decompress(file);
+			}
+		});
+	}
+
+	/**
+	 * Return the name of the .map file of a site
+	 * @param site index of the site
+	 * @return file name
+	 */
+	private String fileName(int site) {
+		return name+"_"+site+".map";
+	}
+
+	/**
+	 * Decompress a .gz or .xz file into memory.
+	 * @param file compressed file
+	 * @return content
+	 * @throws IOException
+	 */
+	public static ByteBuffer decompress(File file) throws IOException {
+		if (file.getName().endsWith(".gz")) {
+			InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+			try {
+				return readFully(in, gzipSize(file));
+			} finally {
+				in.close();
+			}
+		}
+		Process p = new ProcessBuilder("xz", "-dc", file.getPath()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		InputStream in = new BufferedInputStream(p.getInputStream(), 1 << 16);
+		try {
+			ByteBuffer content = readFully(in, (int) Math.min(file.length() * 8, Integer.MAX_VALUE - 8));
+			int status = p.waitFor();
+			if (status != 0) {
+				throw new IOException("xz -dc " + file + " failed with status " + status);
+			}
+			return content;
+		} catch (InterruptedException e) {
+			p.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing " + file);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Return the size of the decompressed content of a .gz file as stored in its last 4 bytes
+	 * (modulo 2^32, only used as a first guess of the buffer size).
+	 * @param file .gz file
+	 * @return size
+	 * @throws IOException
+	 */
+	private static int gzipSize(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < 4) {
+				return 0;
+			}
+			raf.seek(raf.length() - 4);
+			int size = Integer.reverseBytes(raf.readInt());
+			return (size < 0) ? 0 : size;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read a stream to its end.
+	 * @param in input
+	 * @param sizeHint expected size
+	 * @return content, position 0 and limit the number of bytes read
+	 * @throws IOException
+	 */
+	private static ByteBuffer readFully(InputStream in, int sizeHint) throws IOException {
+		byte[] b = new byte[Math.max(sizeHint, 1 << 16) + 1];
+		int length = 0;
+		while (true) {
+			if (length == b.length) {
+				if (b.length == Integer.MAX_VALUE - 8) {
+					throw new IOException("Decompressed .map file larger than 2 GB");
+				}
+				byte[] c = new byte[(int) Math.min(b.length * 2L, Integer.MAX_VALUE - 8)];
+				System.arraycopy(b, 0, c, 0, length);
+				b = c;
+			}
+			int n = in.read(b, length, b.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		return ByteBuffer.wrap(b, 0, length);
+	}
+
+	/**
+	 * Stop the decompression threads
+	 */
+	public void close() {
+		pool.shutdownNow();
+		pending.clear();
+	}
+}
@@ -0,0 +1,173 @@
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the substitution histories from the .map text files <chain>_<site>.map.
+ * Each iteration in a .map file has two trees followed by an empty line, only the first tree is kept.
+ * The lines are read by a MapFileReader, scanned by a MappingScanner and filled into the trees of the
+ * TopologyTemplate built from the first tree of <chain>_0.map.
+ * If <chain>_<site>.map does not exist, <chain>_<site>.map.gz or <chain>_<site>.map.xz is read instead:
+ * the compressed files are decompressed by a MapPrefetcher on background threads ahead of the parser.
+ * If the container <chain>.maparc exists (see MapArchive), the sites are read from it instead of
+ * the loose files.
+ * @author Hui-Jie
+ *
+ */
+public class MapTextSource implements MappingSource {
+
+	/** Directory that contains the .map files */
+	private File inputDir;
+	/** Filename prefix */
+	private String name;
+	/** Container of all the sites, null to read the loose files */
+	private MapArchive archive;
+	/** Decompresses the compressed .map files, created when the first compressed file is found */
+	private MapPrefetcher prefetcher;
+	/** Number of parser threads of the run, each with its own source (--threads) */
+	private int parserThreads;
+	/** Reader for the .map files */
+	private MapFileReader reader;
+	/** Scanner that parses the trees of the .map files */
+	private MappingScanner scanner;
+	/** Topology of all the trees */
+	private TopologyTemplate template;
+	/** File of the site currently opened, for the error messages */
+	private File siteFile;
+	/** Site currently opened */
+	private int site;
+	/** Index of the next sample of the site */
+	private int sample;
+
+	/**
+	 * Constructor. Reads the first tree of <chain>_0.map to build the topology template.
+	 * @param inputDir directory that contains the .map files
+	 * @param name filename prefix
+	 * @throws IOException
+	 */
+	public MapTextSource(File inputDir, String name) throws IOException {
+		this(inputDir, name, 1);
+	}
+
+	/**
+	 * Constructor of one of the sources of a run on several threads. The compressed files are
+	 * decompressed by MapPrefetcher.threadsPerParser(parserThreads) threads.
+	 * @param inputDir directory that contains the .map files
+	 * @param name filename prefix
+	 * @param parserThreads number of parser threads of the run, each with its own source
+	 * @throws IOException
+	 */
+	public MapTextSource(File inputDir, String name, int parserThreads) throws IOException {
+		this.inputDir = inputDir;
+		this.name = name;
+		this.parserThreads = parserThreads;
+		this.reader = new MapFileReader(inputDir);
+		this.scanner = new MappingScanner();
+		File container = new File(inputDir, name + MapArchive.EXTENSION);
+		if (container.exists()) {
+			this.archive = new MapArchive(container);
+		}
+		openSite(0);
+		nextTree();
+		scanLine();
+		this.template = new TopologyTemplate(scanner);
+		reader.close();
+	}
+
+	/**
+	 * Return the scanner, holding the first tree of the chain right after the constructor.
+	 * @return scanner
+	 */
+	public MappingScanner getScanner() {
+		return scanner;
+	}
+
+	public TopologyTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Return the file a site is read from: the container, <chain>_<site>.map, or its compressed file
+	 * @param site index of the site
+	 * @return file, which may not exist
+	 */
+	public File getSiteFile(int site) {
+		if (archive != null) {
+			return archive.getFile();
+		}
+		File file = new File(inputDir, name+"_"+site+".map");
+		File compressed = MapPrefetcher.compressedFile(inputDir, file.getName());
+		return (file.exists() || compressed == null) ? file : compressed;
+	}
+
+	public void openSite(int site) throws IOException {
+		this.site = site;
+		this.sample = 0;
+		this.siteFile = getSiteFile(site);
+		if (archive != null) {
+			if (site >= archive.getNumSites()) {
+				throw new IOException(archive.getFile() + " has only " + archive.getNumSites() + " sites");
+			}
+			reader.open(archive.getFile().getName(), archive.getStart(site), archive.getEnd(site));
+			return;
+		}
+		if (siteFile.getName().endsWith(".map")) {
+			reader.open(siteFile.getName());
+			return;
+		}
+		if (prefetcher == null) {
+			prefetcher = new MapPrefetcher(inputDir, name, MapPrefetcher.threadsPerParser(parserThreads));
+		}
+		reader.open(prefetcher.get(site));
+	}
+
+	public void next(Tree dest) throws IOException {
+		scanNext();
+		template.fill(dest, scanner);
+	}
+
+	/**
+	 * Scan the next tree of the current site into the scanner, without filling a tree.
+	 * @throws IOException
+	 */
+	public void scanNext() throws IOException {
+		//read first tree
+		nextTree();
+		scanLine();
+		//read second tree, discard this tree
+        //REMOVE THIS LINE IF PHYLOBAYES HAS BEEN CHANGED TO INCLUDE ONLY ONE MAPPING PER MCMC ITERATION
+		nextTree();
+		//read "" and discard it, the last iteration of a file may have none.
+		reader.nextLine();
+		sample++;
+	}
+
+	/**
+	 * Move the reader to the next line, which must hold a tree.
+	 * @throws IOException if the site has no more lines: a truncated .map file, or C larger than the number of samples
+	 */
+	private void nextTree() throws IOException {
+		if (!reader.nextLine()) {
+			throw new IOException(siteFile + " is truncated at sample " + sample + " of site " + site);
+		}
+	}
+
+	/**
+	 * Scan the current line of the reader.
+	 */
+	private void scanLine() {
+		scanner.scan(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+	}
+
+	public long getBytesRead() {
+		return reader.getBytesRead();
+	}
+
+	public void close() throws IOException {
+		reader.close();
+		if (prefetcher != null) {
+			prefetcher.close();
+		}
+	}
+}
@@ -1,14 +1,20 @@
 package parse_phylobayes;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.StringReader;
-import java.text.DecimalFormat;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class reads multiple .map files and calculates / exports substitution lengths for each type of
@@ -31,43 +37,85 @@ public class MappingParser {
 	private String name;
     /** Number of branches */
 	private int branchNum;
+	/** Layout of the flat arrays below: [type][branch][iteration], see SampleLayout */
+	private SampleLayout layout;
 	/** Store theta (mu in the manuscript) */
-	private double[][][] theta;
+	private double[] theta;
 	/** Store theta (mu) for groups of changes. i.e. grouping by strand symmetry*/
-	private double[][][] theta_ss;
-	/** Store theta_ss average over all iterations */
-	private double[][] theta_ss_bar;	
+	private double[] theta_ss;
+	/** Store theta_ss average over all iterations: [group * branchNum + branch] */
+	private double[] theta_ss_bar;	
 	/** Store variance of theta */
-	private double[][][] theta_var;
+	private double[] theta_var;
 	/** Store variance of theta_ss*/
-	private double[][][] theta_ss_var;
+	private double[] theta_ss_var;
+	/** Streaming moments: theta and theta_ss are not stored, see computeMoments() */
+	private boolean streaming;
+	/** Streaming moments: sums of theta over the iterations, [type * branchNum + branch] */
+	private double[] thetaSum;
+	/** Streaming moments: sums of theta_ss over the iterations, [group * branchNum + branch] */
+	private double[] thetaSsSum;
+	/** Streaming moments: covariance matrices of theta for each type */
+	private double[][][] thetaCov;
+	/** Streaming moments: covariance matrices of theta_ss for each group */
+	private double[][][] thetaSsCov;
     /** Store proportion of states*/
-	private double[][][] propStates;
+	private double[] propStates;
 	/** Store time of states */
-	private double[][][] timeStates;
+	private double[] timeStates;
 	/** Store branch lengths */
-	private double[][] br;
+	private double[] br;
 	/** Store number of changes */
-	private int[][][] numberOfChanges;
+	private int[] numberOfChanges;
 	/** Store changes in each substitution group */
-	private int[][][] changesInGroups;
-	/** Store the tree structure to produce newick format for Multidivtime output file */
-	private Tree tree[];
+	private int[] changesInGroups;
+	/** Store the tree structure (outgroup removed) to produce newick format for Multidivtime output file */
+	private Tree tree;
 	/** Store the filename of the outgroup */
 	private String outgroupFileName;
+	/** Directory that contains the .map files */
+	private File inputDir;
+	/** Number of threads that process the sites */
+	private int threads;
+	/** First site (option 1) or window (options 2 and 3) to process */
+	private int sitesFrom;
+	/** End of the sites or windows to process (exclusive) */
+	private int sitesTo;
+	/** Sums over the processed sites */
+	private SiteAccumulator statistics;
+	/** Source of the trees: the .map files or the .mapbin cache */
+	private MappingSource source;
+	/** Taxa in the outgroup, read once from the outgroup file */
+	private OutgroupSpec outgroup;
+	/** Topology of all the trees, built from the first tree of the chain */
+	private TopologyTemplate template;
+	/** Outgroup branch mask: node number in the unrooted trees -> branch index, -1 for outgroup branches */
+	private int[] branchMask;
 	/** The number of types of changes. 12 for SingleSiteParser, 4 for TripletParser */
 	private int numTypeChanges;
 	/** The number of types of states. 4 for SingleSiteParser, 3 for TripletParser */
 	private int numTypeStates;
 	/** Store the option */
 	private int option;
+	/** Number of sites in a window: 1 for SingleSiteParser, 3 for TripletParser, k for ContextSiteParser */
+	private int width;
+	/** Tables of ContextSiteParser (option 3) */
+	private ContextTable table;
 	/** Store number of groups of changes. 6 for SingleSiteParser with strand symmetry
 	 *                                     9 for TripletParser with strand symmetry
 	 */
 	private int numGroup;
+	/** Option 1: the two states whose time is the denominator of each group, G+C or A+T */
+	private static final int[][] GROUP_STATES = {{1, 2}, {1, 2}, {0, 3}, {0, 3}, {1, 2}, {0, 3}};
+	/** Size of the buffers of the output files */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** Stage timings, throughput and allocation of the run, see RunMetrics */
+	private RunMetrics metrics;
+	/** Formatter of the covariance matrices, fixed(17) unless --precision is given */
+	private DoubleFormatter formatter = DoubleFormatter.fixed(DoubleFormatter.MAX_PRECISION);
 	
 	/**
-	 * Constructor
+	 * Constructor. The .map files are read from the current directory.
 	 * @param N
 	 * @param C
 	 * @param name
@@ -75,69 +123,259 @@ public class MappingParser {
 	 * @param outgroupFileName
 	 */
 	public MappingParser(int N, int C, String name, int option, String outgroupFileName) {
+		this(N, C, name, option, outgroupFileName, new File("."));
+	}
+	
+	/**
+	 * Constructor
+	 * @param N
+	 * @param C
+	 * @param name
+	 * @param option 1: SingleSiteParser, 2: TripletParser
+	 * @param outgroupFileName
+	 * @param inputDir directory that contains the .map files
+	 */
+	public MappingParser(int N, int C, String name, int option, String outgroupFileName, File inputDir) {
+		this(N, C, name, option, outgroupFileName, optionsFor(inputDir));
+	}
+	
+	/**
+	 * Constructor
+	 * @param N
+	 * @param C
+	 * @param name
+	 * @param option 1: SingleSiteParser, 2: TripletParser, 3: ContextSiteParser
+	 * @param outgroupFileName
+	 * @param options input directory, number of threads, window width of option 3, streaming moments,
+	 *                precision of the covariance matrices
+	 */
+	public MappingParser(int N, int C, String name, int option, String outgroupFileName, RunOptions options) {
 		this.N = N;
 		this.C = C;
 		this.name = name;
 		this.option = option;
 		this.outgroupFileName = outgroupFileName;
+		this.inputDir = options.getInputDir();
+		this.threads = options.getThreads();
+		this.streaming = options.isStreaming();
+		this.formatter = DoubleFormatter.of(options.getPrecision());
+		startMetrics(options);
+		setOption(option, options.getContextWidth());
+		this.sitesFrom = options.getSitesFrom();
+		this.sitesTo = Math.min(options.getSitesTo(), PartialStatistics.numberOfUnits(width, N));
 		
+		try {
+			//read the outgroup once, relative paths are in the input directory
+			outgroup = OutgroupSpec.NONE;
+			if (!outgroupFileName.equals("")) {
+				File f = new File(outgroupFileName);
+				outgroup = OutgroupSpec.load(f.isAbsolute() ? f : new File(inputDir, outgroupFileName));
+			}
+			//need to figure out the number of branches first so that 
+			//i can declare the size of the array to store info
+			source = openSource();
+			//once per run, the sources of the other ranges of sites read the same file
+			if (source instanceof MapBinReader) {
+				System.out.println("Reading " + new File(inputDir, name + MapBinWriter.EXTENSION).getPath());
+			} else if (new File(inputDir, name + MapArchive.EXTENSION).exists()) {
+				System.out.println("Reading " + new File(inputDir, name + MapArchive.EXTENSION).getPath());
+			}
+			this.template = source.getTemplate();
+            //store the tree structure here
+            //note that this tree shares the same node/branch numbering and ancestral with all other trees
+            this.tree = template.newTree();
+            if (outgroup.appliesTo(tree)) {
+            	tree.removeOutgroup(outgroup.getTaxa());
+            }
+            //the other trees are filled into the template and keep the outgroup, their branches are mapped through the mask
+            this.branchMask = outgroup.branchMask(template.newTree());
+            this.branchNum = tree.getNumBranches();
+		} catch (IOException e) {
+			//no tree to parse, e.g. a missing or truncated .map file: stop before any output is written
+			metrics.stopLog();
+			throw new RuntimeException(e);
+        } 
+		
+		try {
+			setUp();
+			source.close();
+		} catch (IOException e) {
+			metrics.stopLog();
+			throw new RuntimeException(e);
+		}
+		computeTheta();
+	}
+	
+	/**
+	 * Constructor for the merge command: computes theta from the merged statistics of the shards of a run.
+	 * @param merged statistics of all the sites, see PartialStatistics.merge()
+	 */
+	public MappingParser(PartialStatistics merged) {
+		this(merged, new RunOptions());
+	}
+	
+	/**
+	 * Constructor for the merge command, with the number of threads of the covariance matrices and the
+	 * streaming moments of the options
+	 * @param merged statistics of all the sites, see PartialStatistics.merge()
+	 * @param options number of threads, streaming moments, precision of the covariance matrices
+	 */
+	public MappingParser(PartialStatistics merged, RunOptions options) {
+		this.N = merged.getN();
+		this.C = merged.getC();
+		this.option = merged.getOption();
+		this.outgroupFileName = "";
+		this.threads = options.getThreads();
+		this.streaming = options.isStreaming();
+		this.formatter = DoubleFormatter.of(options.getPrecision());
+		startMetrics(options);
+		setOption(option, merged.getWidth());
+		this.outgroup = merged.getOutgroup();
+		this.template = merged.getTemplate();
+		this.tree = template.newTree();
+		if (outgroup.appliesTo(tree)) {
+			tree.removeOutgroup(outgroup.getTaxa());
+		}
+		this.branchNum = tree.getNumBranches();
+		this.sitesFrom = merged.getFrom();
+		this.sitesTo = merged.getTo();
+		useStatistics(merged.getStatistics());
+		computeTheta();
+	}
+	
+	/**
+	 * Create the metrics of the run and start their periodic log if --metrics-interval is not 0
+	 * @param options number of threads, interval of the log
+	 */
+	private void startMetrics(RunOptions options) {
+		metrics = new RunMetrics(threads);
+		if (options.getMetricsInterval() > 0) {
+			metrics.startLog(options.getMetricsInterval(), System.out);
+		}
+	}
+	
+	/**
+	 * Stop the periodic log of the metrics, print the totals (unless --metrics-interval is 0) and write the JSON summary
+	 * if --metrics is given
+	 * @param options interval of the log, file of the summary
+	 */
+	public void finishMetrics(RunOptions options) {
+		metrics.stopLog();
+		if (options.getMetricsInterval() > 0) {
+			System.out.println(metrics.logLine());
+		}
+		if (options.getMetricsFile() != null) {
+			try {
+				metrics.writeJson(options.getMetricsFile());
+			} catch (IOException e) {
+				System.out.println("Problem creating file " + options.getMetricsFile().getName() + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Return the metrics of the run
+	 * @return stage timings, throughput and allocation
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Return the number of classes of the flanking sites of option 3, 1 for the other options
+	 * @return number of classes
+	 */
+	private int numClasses() {
+		return (table == null) ? 1 : table.getNumClasses();
+	}
+	
+	/**
+	 * Set the window width and the numbers of types of changes, states and groups of an option
+	 * @param option 1: SingleSiteParser, 2: TripletParser, 3: ContextSiteParser
+	 * @param contextWidth number of sites in the window of option 3
+	 */
+	private void setOption(int option, int contextWidth) {
 		switch(option) {
 		case 1: //SingleSiteParser
+			this.width = 1;
 			this.numTypeChanges = 12;
 			this.numTypeStates = 4;
 			this.numGroup = 6;
-			this.tree = new Tree[1];
 			break;
 		case 2: //TripletSiteParser
+			this.width = 3;
 			this.numTypeChanges = 4;
 			this.numTypeStates = 3;
 			this.numGroup = 9;
-			this.tree = new Tree[3];
+			break;
+		case 3: //ContextSiteParser, CpG scheme of the middle triplet split by the GC content of the flanks
+			this.width = contextWidth;
+			this.table = ContextTable.flankingGC(TripletClassifier.CPG, contextWidth);
+			this.numTypeChanges = table.getNumTypes();
+			this.numTypeStates = table.getNumDwellStates();
+			this.numGroup = table.getNumGroups();
 			break;
 		default:
 			System.out.println("Error!!");
+		}
 	}
-		System.out.println(new File("").getPath().toString());
-		
-		String inputMap = name+"_0.map";
-
-		try {
-			// returns the ClassLoader object associated with this Class
-	        //ClassLoader cLoader = this.getClass().getClassLoader();
-	        // input stream
-			//InputStream inStream = cLoader.getResourceAsStream("./parse_phylobayes/"+inputMap);
-			//InputStream inStream = MappingParser.class.getClassLoader().getResourceAsStream(inputMap);
-			InputStream inStream = this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());
-			BufferedReader r = new BufferedReader(new InputStreamReader(inStream));
-			//need to figure out the number of branches first so that 
-			//i can declare the size of the array to store info
-			String line = r.readLine();
-			StringReader str = new StringReader(line);
-            TreeParser tp = new TreeParser(str, outgroupFileName);
-            //store the tree structure here
-            //note that this tree shares the same node/branch numbering and ancestral with all other trees
-            this.tree[0] = tp.tokenize();
-            this.branchNum = tree[0].getNumBranches();
-            r.close();
-            inStream.close();
-		} catch (IOException e) {
-            e.printStackTrace();
-        } 
-		
-		//12 = # of substitution types for single nucleotide / adapt it so that it works for triplet
-		theta = new double[numTypeChanges][branchNum][C];
-		theta_ss = new double[numGroup][branchNum][C];
-		theta_ss_bar = new double[numGroup][branchNum];
-		theta_var = new double[numTypeChanges][branchNum][C];
-		theta_ss_var = new double[numGroup][branchNum][C];
-		try {
-			setUp();
-		} catch (IOException e) {
-			e.printStackTrace();
+	
+	/**
+	 * Allocate theta and compute theta, theta_ss and theta_ss_bar from the sums over the sites,
+	 * or only their moments in streaming mode
+	 */
+	private void computeTheta() {
+		theta_ss_bar = new double[numGroup * branchNum];
+		if (streaming) {
+			computeMoments();
+			return;
 		}
+		//12 = # of substitution types for single nucleotide / adapt it so that it works for triplet
+		theta = layout.newDoubles(numTypeChanges);
+		theta_ss = layout.newDoubles(numGroup);
+		theta_var = layout.newDoubles(numTypeChanges);
+		theta_ss_var = layout.newDoubles(numGroup);
+		RunMetrics.Recorder rec = metrics.recorder();
+		long t = System.nanoTime();
 		calculateTheta();
 		calculateThetaSS();
 		calculateThetaSSbar();
+		rec.stop(RunMetrics.THETA, t);
+		rec.updateAllocation();
+	}
+	
+	/**
+	 * Use the sums of an accumulator as the statistics of this run
+	 * @param acc sums over the sites
+	 */
+	private void useStatistics(SiteAccumulator acc) {
+		statistics = acc;
+		layout = acc.getLayout();
+		numberOfChanges = acc.getNumberOfChanges();
+		changesInGroups = acc.getChangesInGroups();
+		timeStates = acc.getTimeStates();
+		br = acc.getBranchLengths();
+		propStates = acc.getPropStates();
+	}
+	
+	/**
+	 * Return the sums over the processed sites, to be written to a partial file when only a shard of
+	 * the sites is processed (--sites a:b).
+	 * @return statistics of the shard
+	 */
+	public PartialStatistics getPartialStatistics() {
+		return new PartialStatistics(option, width, N, C, sitesFrom, Math.max(sitesFrom, sitesTo), template, outgroup, statistics);
+	}
+	
+	/**
+	 * Return default options that read the .map files from a directory
+	 * @param inputDir directory that contains the .map files
+	 * @return options
+	 */
+	private static RunOptions optionsFor(File inputDir) {
+		RunOptions options = new RunOptions();
+		options.setInputDir(inputDir);
+		return options;
 	}
 	
 	/**
@@ -159,146 +397,267 @@ public class MappingParser {
 	 *             
 	 */
 	public void setUp() throws IOException {
+		//option 1 processes sites 0..N-1, option 2 processes the windows 0..N-3 (sites i, i+1, i+2),
+		//option 3 the windows 0..N-width (sites i to i+width-1)
+		//a shard (--sites a:b) processes the sites or windows a..b-1 only
+		int first = sitesFrom;
+		int units = Math.max(0, sitesTo - first);
+		//one contiguous range of sites per thread, each with its own source, trees and accumulator
+		final int numRanges = Math.max(1, Math.min(threads, units));
+		final SiteAccumulator[] acc = new SiteAccumulator[numRanges];
+		final int[] from = new int[numRanges + 1];
+		for (int r = 0; r <= numRanges; r++) {
+			from[r] = first + (int) ((long) units * r / numRanges);
+		}
+		for (int r = 0; r < numRanges; r++) {
+			acc[r] = new SiteAccumulator(numTypeChanges, numTypeStates, numGroup, branchNum, C, branchMask);
+		}
 		
-		// 12 = # of substitution types for single nucleotide / adapt it so that it works for triplet
-		// 4 = # of nucleotide types for single site / adapt it so that it works for triplet
-		numberOfChanges = new int[numTypeChanges][branchNum][C];
-		changesInGroups = new int[numGroup][branchNum][C]; 
-		timeStates = new double[numTypeStates][branchNum][C];
-		br = new double[branchNum][C];
-		propStates = new double[numTypeStates][branchNum][C];
-				
+		if (numRanges == 1) {
+			accumulateRange(source, from[0], from[1], acc[0]);
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(numRanges);
+			ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int r = 0; r < numRanges; r++) {
+				final int range = r;
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						MappingSource s = (range == 0) ? source : openSource();
+						try {
+							accumulateRange(s, from[range], from[range + 1], acc[range]);
+							return null;
+						} finally {
+							if (s != source) {
+								s.close();
+							}
+						}
+					}
+				}));
+			}
+			try {
+				for (int r = 0; r < numRanges; r++) {
+					results.get(r).get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while processing the sites");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+			//merge in the order of the ranges
+			for (int r = 1; r < numRanges; r++) {
+				acc[0].merge(acc[r], from[r + 1] > from[r]);
+			}
+		}
+		
+		useStatistics(acc[0]);
+	}
+	
+	/**
+	 * Process a range of sites (option 1) or of windows of 3 sites (option 2) or width sites (option 3)
+	 * into an accumulator.
+	 * @param src source of the trees, used by this range only
+	 * @param from first site or window of the range
+	 * @param to end of the range (exclusive)
+	 * @param acc accumulator of the range
+	 * @throws IOException
+	 */
+	private void accumulateRange(MappingSource src, int from, int to, SiteAccumulator acc) throws IOException {
+		long before = src.getBytesRead();
+		long last = before;
+		long trees = 0;
+		RunMetrics.Recorder rec = metrics.recorder();
+		PipelineEvents.Accumulate range = new PipelineEvents.Accumulate();
+		range.begin();
 		if (option == 1) { //SingleSiteParser, parse 1 file at a time
-			String inputMap = null;
-			File f = null;
-			//process N files (sites)
-			for (int i = 0; i < N; i++) {
-				inputMap = name+"_"+i+".map";
-				//InputStream inStream = MappingParser.class.getClassLoader().getResourceAsStream(inputMap);
-				InputStream inStream = this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());
-				BufferedReader r = new BufferedReader(new InputStreamReader(inStream));
-				System.out.println("i="+i);
+			Tree sample = template.newTree();
+			//process the files (sites) of the range
+			for (int i = from; i < to; i++) {
+				PipelineEvents.Site site = new PipelineEvents.Site();
+				site.begin();
+				long t = System.nanoTime();
+				src.openSite(i);
+				t = rec.stop(RunMetrics.READ, t);
 				
-				String line = null;
-				StringReader str = null;
 				for (int j = 0; j < C; j++) {
-					//read first tree
-					try {
-						line = r.readLine();
-						str = new StringReader(line);
-		                TreeParser tp = new TreeParser(str, outgroupFileName);
-		                tree[0] = tp.tokenize();
-		                
-		                SiteParser parse = new SingleSiteParser(tree[0]);
-
-		                for (int l = 0; l < branchNum; l++) {
-		                	br[l][j] = parse.getBranchLengths()[l]; //br is the same for all sites in the same iteration
-		                	// 4 = # of nucleotide types for single site / adapt it so that it works for triplet
-		                	for (int k = 0; k < numTypeStates; k++) {
-		                		numberOfChanges[k][l][j] += parse.getNumberOfChanges()[k][l];
-		                		timeStates[k][l][j] += parse.getTimeOfStates()[k][l];
-		                		propStates[k][l][j] += parse.getPropStates()[k][l];
-		                	}//end k
-		                	//12 = # of substitution types for single nucleotide / adapt it so that it works for triplet
-		                	for (int k = numTypeStates; k < numTypeChanges; k++) {
-		                		numberOfChanges[k][l][j]+=parse.getNumberOfChanges()[k][l];
-		                	}//end k			                	
-		                	for (int k = 0; k < numGroup; k++) {
-		                		changesInGroups[k][l][j]+= parse.getChangesInGroups()[k][l];
-		                	}
-		                }//end l	
-		             		           
-		                	//read second tree, discard this tree;
-                            //REMOVE THIS LINE IF PHYLOBAYES HAS BEEN CHANGED TO INCLUDE ONLY ONE MAPPING PER MCMC ITERATION
-		                	line = r.readLine();
-		                	//read "" and discard it.
-		                	line = r.readLine();	                
-					 } catch (IOException e) {
-					    // TODO Auto-generated catch block
-					    e.printStackTrace();
-					 } 				
+					PipelineEvents.TreeTokenize tokenize = new PipelineEvents.TreeTokenize();
+					long bytes = src.getBytesRead();
+					tokenize.begin();
+					src.next(sample);
+					tokenize.end();
+					if (tokenize.shouldCommit()) {
+						tokenize.site = i;
+						tokenize.sample = j;
+						tokenize.bytes = src.getBytesRead() - bytes;
+						tokenize.commit();
+					}
+					t = rec.stop(RunMetrics.TOKENIZE, t);
+					PipelineEvents.TreeClassify classify = new PipelineEvents.TreeClassify();
+					classify.begin();
+					SingleSiteParser parser = new SingleSiteParser(sample);
+					commit(classify, parser, i, j);
+					t = rec.stop(RunMetrics.CLASSIFY, t);
+	                acc.add(parser, j);
+					t = rec.stop(RunMetrics.ACCUMULATE, t);
 				}//end j
-				try {
-	                inStream.close();
-	            } catch (IOException e) {
-	                e.printStackTrace();
-	            }
-				r.close();
+				trees += C;
+				rec.trees(C);
+				rec.site(src.getBytesRead() - last);
+				site.end();
+				if (site.shouldCommit()) {
+					site.site = i;
+					site.trees = C;
+					site.bytes = src.getBytesRead() - last;
+					site.commit();
+				}
+				last = src.getBytesRead();
 		    } //end i
 			
-			
-			
-		} else if (option == 2) { //TripletParser, parse 3 files at a time
-			String inputMap = null;
-			//File f = null;
-			//move window from site 1 (index 0) to site N-2 (index N-3)
-			for (int i = 0; i < (N-2); i++) {
-				
-				System.out.println("i="+i);
-				String[] line = new String[3];
-				StringReader[] str = new StringReader[3];
-				BufferedReader[] r = new BufferedReader[3];
-				InputStream[] inStream = new InputStream[3];
-				for (int j = i; j < (i+3); j++) { //construct 3 bufferedreader
-					inputMap = name+"_"+j+".map";
-					//f = new File(inputMap);
-					//r[j-i] = new BufferedReader(new FileReader(f));
-					//inStream[j-i] = MappingParser.class.getClassLoader().getResourceAsStream(inputMap);
-					inStream[j-i] = this.getClass().getResourceAsStream(new File("../" + inputMap).getPath().toString());					
-					r[j-i] = new BufferedReader(new InputStreamReader(inStream[j-i]));
+		} else if (option == 2 || option == 3) { //TripletParser or ContextSiteParser, slide a window of width sites
+			//ring buffer of the parsed trees of the last width sites, site s is stored in slot s % width
+			Tree[][] window = new Tree[width][C];
+			for (int k = 0; k < width; k++) {
+				for (int j = 0; j < C; j++) {
+					window[k][j] = template.newTree();
+				}
+			}
+			if (to > from) {
+				for (int k = 0; k < width - 1; k++) {
+					readSite(src, from+k, window[(from+k) % width], rec);
+					trees += C;
 				}
+			}
+			//move window from site from+1 (index from) to site to (index to-1)
+			for (int i = from; i < to; i++) {
+				PipelineEvents.Site site = new PipelineEvents.Site();
+				site.begin();
 				
-				for (int j = 0; j < C; j++) { //read C trees for each file 
-					try {
-						for (int k = 0; k < 3; k++) { //repeat for each file (total 3 files at a time)
-							//read first tree
-							line[k] = r[k].readLine();
-							str[k] = new StringReader(line[k]);
-			                TreeParser tp = new TreeParser(str[k], outgroupFileName);
-			                tree[k] = tp.tokenize();
-			              //read second tree, discard this tree
-                          //REMOVE THIS LINE IF PHYLOBAYES HAS BEEN CHANGED TO INCLUDE ONLY ONE MAPPING PER MCMC ITERATION
-		                	line[k] = r[k].readLine();
-		                	//read "" and discard it.
-		                	line[k] = r[k].readLine();
-						}
-						SiteParser parse = new TripletParser(tree);
-						
-						for (int l = 0; l < branchNum; l++) {
-							//br = new double[branchNum][C];
-		                	br[l][j] = parse.getBranchLengths()[l]; 
-		                	for (int k = 0; k < numTypeStates; k++) {
-		                		//numberOfChanges = new int[4][trees[0].getNumBranches()];
-		                		numberOfChanges[k][l][j] += parse.getNumberOfChanges()[k][l];
-		                		//timeOfStates = new double[3][trees[0].getNumBranches()];
-		                		timeStates[k][l][j] += parse.getTimeOfStates()[k][l];
-		                		//propStates = new double[3][trees[0].getNumBranches()];
-		                		propStates[k][l][j] += parse.getPropStates()[k][l];
-		                	}//end k
-		                	for (int k = numTypeStates; k < numTypeChanges; k++) {
-		                		numberOfChanges[k][l][j]+=parse.getNumberOfChanges()[k][l];
-		                	}//end k
-		                	for (int k = 0; k < numGroup; k++) {
-		                		changesInGroups[k][l][j]+= parse.getChangesInGroups()[k][l];
-		                	}
-		                }//end l	
-						
-					 } catch (IOException e) {
-					    // TODO Auto-generated catch block
-					    e.printStackTrace();
-					 } 
-					
-				}//end j
+				//read only the new site, the others are already in the ring buffer
+				readSite(src, i+width-1, window[(i+width-1) % width], rec);
+				trees += C;
 				
-				//close bufferedreader
-				for (int k = 0; k < 3; k++) {
-					r[k].close();
-					inStream[k].close();
+				Tree[] sites = new Tree[width];
+				long t = System.nanoTime();
+				for (int j = 0; j < C; j++) { 
+					for (int k = 0; k < width; k++) {
+						sites[k] = window[(i+k) % width][j];
+					}
+					PipelineEvents.TreeClassify classify = new PipelineEvents.TreeClassify();
+					classify.begin();
+					SiteParser parser;
+					if (option == 2) {
+						parser = new TripletParser(sites);
+					} else {
+						parser = new ContextSiteParser(sites, table);
+					}
+					commit(classify, parser, i, j);
+					t = rec.stop(RunMetrics.CLASSIFY, t);
+					acc.add(parser, j);
+					t = rec.stop(RunMetrics.ACCUMULATE, t);
+				}//end j
+				rec.site(src.getBytesRead() - last);
+				site.end();
+				if (site.shouldCommit()) {
+					site.site = i;
+					site.trees = C;
+					site.bytes = src.getBytesRead() - last;
+					site.commit();
 				}
+				last = src.getBytesRead();
 				
 		    } //end i
 		}
-			
+		range.end();
+		if (range.shouldCommit()) {
+			range.from = from;
+			range.to = to;
+			range.trees = trees;
+			range.bytes = src.getBytesRead() - before;
+			range.commit();
+		}
+	}
+	
+	/**
+	 * Commit the event of the classification of a sample if it is recorded
+	 * @param classify event, begun before the parser was constructed
+	 * @param parser parser of the sample
+	 * @param site index of the site or window
+	 * @param sample index of the sample
+	 */
+	private static void commit(PipelineEvents.TreeClassify classify, SiteParser parser, int site, int sample) {
+		classify.end();
+		if (classify.shouldCommit()) {
+			int changes = 0;
+			for (int[] row : parser.getNumberOfChanges()) {
+				for (int n : row) {
+					changes += n;
+				}
+			}
+			classify.site = site;
+			classify.sample = sample;
+			classify.changes = changes;
+			classify.commit();
+		}
+	}
+	
+	/**
+	 * Open the source of the trees: the .mapbin cache <chain>.mapbin if it exists in the input directory
+	 * (see MapBinWriter), the .map files otherwise.
+	 * @return source
+	 * @throws IOException if the cache does not match N and C, or its .map files have changed since
+	 */
+	private MappingSource openSource() throws IOException {
+		File cache = new File(inputDir, name + MapBinWriter.EXTENSION);
+		if (!cache.exists()) {
+			return new MapTextSource(inputDir, name, threads);
+		}
+		MapBinReader bin = new MapBinReader(cache);
+		if (bin.getNumTrees() != C || bin.getNumSites() < N) {
+			bin.close();
+			throw new IOException(cache + " was written for N=" + bin.getNumSites() + " C=" + bin.getNumTrees()
+					+ ", delete it or convert the chain again.");
+		}
+		try {
+			bin.checkSources(inputDir);
+		} catch (IOException e) {
+			bin.close();
+			throw e;
+		}
+		return bin;
+	}
+	
+	/**
+	 * Read the C trees of a site into the trees of the given array.
+	 * @param src source of the trees
+	 * @param site index of the site
+	 * @param dest array of C trees made by template.newTree(), filled in place
+	 * @param rec metrics of the thread
+	 * @throws IOException
+	 */
+	private void readSite(MappingSource src, int site, Tree[] dest, RunMetrics.Recorder rec) throws IOException {
+		long t = System.nanoTime();
+		src.openSite(site);
+		t = rec.stop(RunMetrics.READ, t);
+		for (int j = 0; j < C; j++) {
+			PipelineEvents.TreeTokenize tokenize = new PipelineEvents.TreeTokenize();
+			long bytes = src.getBytesRead();
+			tokenize.begin();
+			src.next(dest[j]);
+			tokenize.end();
+			if (tokenize.shouldCommit()) {
+				tokenize.site = site;
+				tokenize.sample = j;
+				tokenize.bytes = src.getBytesRead() - bytes;
+				tokenize.commit();
+			}
+		}
+		rec.stop(RunMetrics.TOKENIZE, t);
+		rec.trees(C);
 	}
 	
 	/**
@@ -309,42 +668,49 @@ public class MappingParser {
 	 * 
 	 */
 	public void calculateTheta() {
-		//theta = new double[numTypeChanges][branchNum][C];
-		//numberOfChanges = new int[numTypeChanges][branchNum][C];
-		//timeStates = new double[numTypeStates][branchNum][C];
-		//br = new double[branchNum][C];
-		//propStates = new double[numTypeStates][branchNum][C];		
+		calculateTheta(theta, theta_var, layout, 0, C);
+	}
+	
+	/**
+	 * Calculate theta and theta_var of the iterations from to to-1
+	 * @param thetaOut theta, iteration k of a row at out.offset(type, branch) + k - from
+	 * @param varOut theta_var, same layout as thetaOut
+	 * @param out layout of thetaOut and varOut
+	 * @param from first iteration
+	 * @param to end of the iterations (exclusive)
+	 */
+	private void calculateTheta(double[] thetaOut, double[] varOut, SampleLayout out, int from, int to) {
+		ThetaKernel kernel = new ThetaKernel(to - from);
 		if(option == 1) {
 			for (int i = 0; i < numTypeChanges; i++) {
 				for (int j = 0; j < branchNum; j++) {
-					for (int k = 0; k < C; k++) {
-						theta[i][j][k] = numberOfChanges[i][j][k]/propStates[i/3][j][k]; 
-						theta_var[i][j][k] = theta[i][j][j]/propStates[i/3][j][k];
-					}
+					kernel.loadChanges(numberOfChanges, layout.offset(i, j) + from);
+					kernel.loadTime(propStates, layout.offset(i/3, j) + from);
+					kernel.ratio();
+					kernel.store(thetaOut, varOut, out.offset(i, j));
 				}
 			}
-		} else if (option == 2) {
-			for (int j = 0; j < branchNum; j++) {
-				for (int k = 0; k < C; k++) {
-					for (int i = 0; i < 2; i++) {
-						if (numberOfChanges[i][j][k] == 0 && (propStates[0][j][k] + propStates[1][j][k] ) == 0) {
-							theta[i][j][k] = 0;
-							theta_var[i][j][k] = 0;
-						} else {
-							theta[i][j][k] = numberOfChanges[i][j][k]/(propStates[0][j][k]+propStates[1][j][k]);
-							theta_var[i][j][k] = theta[i][j][k] / (propStates[0][j][k]+propStates[1][j][k]);
-						}
+		} else if (option == 2 || option == 3) {
+			//the 4 types and 3 states of the triplet scheme, repeated for each class of the flanks of option 3
+			for (int c = 0; c < numClasses(); c++) {
+				int type = 4 * c;
+				int state = 3 * c;
+				for (int j = 0; j < branchNum; j++) {
+					//non-CpG changes over the time in non-CpG C+G and A+T
+					kernel.loadTime(propStates, layout.offset(state, j) + from);
+					kernel.addTime(propStates, layout.offset(state + 1, j) + from);
+					for (int i = type; i < type + 2; i++) {
+						kernel.loadChanges(numberOfChanges, layout.offset(i, j) + from);
+						kernel.ratioOrZero();
+						kernel.store(thetaOut, varOut, out.offset(i, j));
 					}
-					for (int i = 2; i < 4; i++) {
-						if (numberOfChanges[i][j][k] == 0 && propStates[2][j][k] == 0) {
-							theta[i][j][k] = 0;
-							theta_var[i][j][k] = 0;
-						} else {
-							theta[i][j][k] = numberOfChanges[i][j][k]/propStates[2][j][k];
-							theta_var[i][j][k] = theta[i][j][k] / propStates[2][j][k];
-						}
+					//CpG changes over the time in CpG
+					kernel.loadTime(propStates, layout.offset(state + 2, j) + from);
+					for (int i = type + 2; i < type + 4; i++) {
+						kernel.loadChanges(numberOfChanges, layout.offset(i, j) + from);
+						kernel.ratioOrZero();
+						kernel.store(thetaOut, varOut, out.offset(i, j));
 					}
-					
 				}
 			}
 		}
@@ -368,56 +734,40 @@ public class MappingParser {
 	 *  group 6-7: CpG transversion
 	 *  group 8: CpG transition
 	 *  state 0: non-CpG C+G, state 1: non-CpG A+T, state 2: CpG
+	 *  
+	 *  Option 3 with k = 5 and more: groups 0-8 and states 0-2 of option 2 for the windows whose flanking
+	 *  sites are less than half G or C, groups 9-17 and states 3-5 for the others (see ContextTable.flankingGC)
 	 */
 	public void calculateThetaSS() {
-		for (int j = 0; j < branchNum; j++) {
-			for (int k = 0; k < C; k++) {
+		calculateThetaSS(theta_ss, theta_ss_var, layout, 0, C);
+	}
+	
+	/**
+	 * Calculate theta_ss and theta_ss_var of the iterations from to to-1
+	 * @param thetaOut theta_ss, iteration k of a row at out.offset(group, branch) + k - from
+	 * @param varOut theta_ss_var, same layout as thetaOut
+	 * @param out layout of thetaOut and varOut
+	 * @param from first iteration
+	 * @param to end of the iterations (exclusive)
+	 */
+	private void calculateThetaSS(double[] thetaOut, double[] varOut, SampleLayout out, int from, int to) {
+		ThetaKernel kernel = new ThetaKernel(to - from);
+		for (int g = 0; g < numGroup; g++) {
+			for (int j = 0; j < branchNum; j++) {
+				kernel.loadChanges(changesInGroups, layout.offset(g, j) + from);
 				if (option == 1) {
-					theta_ss[0][j][k] = changesInGroups[0][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss[1][j][k] = changesInGroups[1][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss[2][j][k] = changesInGroups[2][j][k]/(propStates[0][j][k]+propStates[3][j][k]);
-					theta_ss[3][j][k] = changesInGroups[3][j][k]/(propStates[0][j][k]+propStates[3][j][k]);
-					theta_ss[4][j][k] = changesInGroups[4][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss[5][j][k] = changesInGroups[5][j][k]/(propStates[0][j][k]+propStates[3][j][k]);	
-					theta_ss_var[0][j][k] = theta_ss[0][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss_var[1][j][k] = theta_ss[1][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss_var[2][j][k] = theta_ss[2][j][k]/(propStates[0][j][k]+propStates[3][j][k]);
-					theta_ss_var[3][j][k] = theta_ss[3][j][k]/(propStates[0][j][k]+propStates[3][j][k]);
-					theta_ss_var[4][j][k] = theta_ss[4][j][k]/(propStates[1][j][k]+propStates[2][j][k]);
-					theta_ss_var[5][j][k] = theta_ss[5][j][k]/(propStates[0][j][k]+propStates[3][j][k]);	
-				} else if (option == 2) {
-					for (int i = 0; i < 4; i++) {
-						if (changesInGroups[i][j][k] == 0 && propStates[i/2][j][k] == 0) {
-							theta_ss[i][j][k] = 0;
-							theta_ss_var[i][j][k] = 0;
-						} else {
-							theta_ss[i][j][k] = changesInGroups[i][j][k]/propStates[i/2][j][k];
-							theta_ss_var[i][j][k] = theta_ss[i][j][k]/propStates[i/2][j][k];
-						}
-					}
-					
-					for (int i = 4; i< 6; i++) {
-						if (changesInGroups[i][j][k] == 0 && propStates[i/5][j][k] == 0) {
-							theta_ss[i][j][k] = 0;
-							theta_ss_var[i][j][k] = 0;
-						} else {
-							theta_ss[i][j][k] = changesInGroups[i][j][k]/propStates[i/5][j][k];
-							theta_ss_var[i][j][k] = theta_ss[i][j][k]/propStates[i/5][j][k];
-						}
-					}
-					
-					for (int i = 6; i < numGroup; i++) {
-						if (changesInGroups[i][j][k] == 0 && propStates[2][j][k] == 0) {
-							theta_ss[i][j][k] = 0;
-							theta_ss_var[i][j][k] = 0;
-						} else {
-							theta_ss[i][j][k] = changesInGroups[i][j][k]/propStates[2][j][k];
-							theta_ss_var[i][j][k] = theta_ss[i][j][k]/propStates[2][j][k];
-						}
-					}
-					
-					
+					//time in G+C for the groups 0, 1, 4, time in A+T for the groups 2, 3, 5
+					kernel.loadTime(propStates, layout.offset(GROUP_STATES[g][0], j) + from);
+					kernel.addTime(propStates, layout.offset(GROUP_STATES[g][1], j) + from);
+					kernel.ratio();
+				} else if (option == 2 || option == 3) {
+					//groups 0-3 over states 0, 0, 1, 1; groups 4-5 over states 0, 1; CpG groups over state 2
+					int gg = g % 9;
+					int state = 3 * (g / 9) + ((gg < 4) ? gg/2 : (gg < 6) ? gg/5 : 2);
+					kernel.loadTime(propStates, layout.offset(state, j) + from);
+					kernel.ratioOrZero();
 				}
+				kernel.store(thetaOut, varOut, out.offset(g, j));
 			}
 		}
 	}
@@ -428,93 +778,220 @@ public class MappingParser {
 	public void calculateThetaSSbar() {
 		for (int g = 0; g < numGroup; g++) {
 			for (int j = 0; j < branchNum; j++ ){
+				int row = layout.offset(g, j);
+				double sum = 0;
 				for (int k = 0; k < C; k++) {
-					theta_ss_bar[g][j] += theta_ss[g][j][k];
+					sum += theta_ss[row+k];
 				}
-				theta_ss_bar[g][j] = theta_ss_bar[g][j] / C;
+				theta_ss_bar[g * branchNum + j] = sum / C;
 			}
 		}
 	}
 	
-	/*
-	 * Get the covariance matrix of theta_g
-	 * g = the index of the type of substitutions
-	 * g has the same order as `SUBSTITUTION_ORDER'
-	 * @param g index
-	 * @param option 0 for theta, 1 for theta_ss
-	 * @return covariance matrix of a certain type
+	/**
+	 * Streaming moments: compute the sums and the covariance matrices of theta and theta_ss, and theta_ss_bar,
+	 * without storing theta and theta_ss for all the iterations. They are computed from the sums over the sites
+	 * for CovarianceKernel.CHUNK iterations at a time, twice: the first pass sums theta and its variance over
+	 * the iterations for the means, the second centres the chunk and adds its products to the covariance
+	 * matrices. Every sum runs over the iterations in order, as in the stored path, so the outputs are the same;
+	 * memory is O((types + groups) * B^2) instead of four arrays of (types or groups) x B x C.
 	 */
-	public double[][] getCovarianceMatrix(int g, int option) {
-		double[][] thetaG;
-		double[][] thetaG_var;
-		if (option == 0) {
-			thetaG = theta[g];
-			thetaG_var = theta_var[g];
-		} else {
-			thetaG = theta_ss[g];
-			thetaG_var = theta_ss_var[g];
+	private void computeMoments() {
+		int chunk = Math.min(CovarianceKernel.CHUNK, C);
+		SampleLayout chunkLayout = new SampleLayout(branchNum, chunk);
+		double[] t = chunkLayout.newDoubles(numTypeChanges);
+		double[] tVar = chunkLayout.newDoubles(numTypeChanges);
+		double[] ss = chunkLayout.newDoubles(numGroup);
+		double[] ssVar = chunkLayout.newDoubles(numGroup);
+		thetaSum = new double[numTypeChanges * branchNum];
+		thetaSsSum = new double[numGroup * branchNum];
+		double[] varSum = new double[numTypeChanges * branchNum];
+		double[] ssVarSum = new double[numGroup * branchNum];
+		RunMetrics.Recorder rec = metrics.recorder();
+		long time = System.nanoTime();
+		for (int from = 0; from < C; from += chunk) {
+			int to = Math.min(from + chunk, C);
+			calculateTheta(t, tVar, chunkLayout, from, to);
+			calculateThetaSS(ss, ssVar, chunkLayout, from, to);
+			addSums(t, tVar, chunkLayout, to - from, thetaSum, varSum);
+			addSums(ss, ssVar, chunkLayout, to - from, thetaSsSum, ssVarSum);
 		}
+		time = rec.stop(RunMetrics.THETA, time);
 		
-		/**
-		 * Compute average of theta or theta_ss
-		 * Compute average of theta_var or theta_ss_var
-		 */
-		double[] theta_bar = new double[branchNum];
-		double[] theta_var_bar = new double[branchNum];
-		for (int i = 0; i < branchNum; i++) {
-			for (int j = 0; j < C; j++) {
-				theta_bar[i] += thetaG[i][j];
-				theta_var_bar[i] += thetaG_var[i][j];
+		//one pool for all the kernels and all the chunks
+		ExecutorService pool = CovarianceKernel.newPool(threads);
+		CovarianceKernel[] types = new CovarianceKernel[numTypeChanges];
+		CovarianceKernel[] groups = new CovarianceKernel[numGroup];
+		for (int g = 0; g < types.length; g++) {
+			types[g] = new CovarianceKernel(branchNum, threads, pool);
+		}
+		for (int g = 0; g < groups.length; g++) {
+			groups[g] = new CovarianceKernel(branchNum, threads, pool);
+		}
+		try {
+			for (int from = 0; from < C; from += chunk) {
+				int to = Math.min(from + chunk, C);
+				calculateTheta(t, tVar, chunkLayout, from, to);
+				calculateThetaSS(ss, ssVar, chunkLayout, from, to);
+				time = rec.stop(RunMetrics.THETA, time);
+				addProducts(t, chunkLayout, to - from, thetaSum, types);
+				addProducts(ss, chunkLayout, to - from, thetaSsSum, groups);
+				time = rec.stop(RunMetrics.COVARIANCE, time);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
 			}
-			theta_bar[i] = theta_bar[i] / C;
-			theta_var_bar[i] = theta_var_bar[i] / C;
 		}
-		
-		double[][] cov = new double[branchNum][branchNum];
-		
-		//diagonal first, variance
-		for (int i = 0; i < branchNum; i++) {
-				double sum = 0;
-				for (int k = 0; k < C; k++) {
-					//theta = new double[12][branchNum][C];
-					if (option == 0) {
-						sum += Math.pow((theta[g][i][k] - theta_bar[i]),2);
-					} else {
-						sum += Math.pow((theta_ss[g][i][k] - theta_bar[i]),2);
-					}
-					
-			
+		thetaCov = finishMoments(types, varSum);
+		thetaSsCov = finishMoments(groups, ssVarSum);
+		for (int i = 0; i < theta_ss_bar.length; i++) {
+			theta_ss_bar[i] = thetaSsSum[i] / C;
+		}
+		rec.stop(RunMetrics.COVARIANCE, time);
+		rec.updateAllocation();
+	}
+	
+	/**
+	 * Streaming moments: add a chunk of theta and of its variance to the sums over the iterations
+	 * @param t theta of the chunk
+	 * @param var variance of theta of the chunk
+	 * @param chunkLayout layout of the chunk
+	 * @param length number of iterations in the chunk
+	 * @param sum sums of theta, [type * branchNum + branch]
+	 * @param varSum sums of the variance, [type * branchNum + branch]
+	 */
+	private void addSums(double[] t, double[] var, SampleLayout chunkLayout, int length, double[] sum, double[] varSum) {
+		for (int g = 0; g < sum.length / branchNum; g++) {
+			for (int j = 0; j < branchNum; j++) {
+				int row = chunkLayout.offset(g, j);
+				double s = sum[g * branchNum + j];
+				double v = varSum[g * branchNum + j];
+				for (int k = 0; k < length; k++) {
+					s += t[row+k];
+					v += var[row+k];
 				}
-				// var(theta) = var(E(theta|M_c)) + E(var(theta|M_c))
-				cov[i][i] = sum / (C-1) + theta_var_bar[i];
+				sum[g * branchNum + j] = s;
+				varSum[g * branchNum + j] = v;
+			}
 		}
-		
-		//off diagonal, covariance
-		for (int i = 0; i < branchNum; i++) {
+	}
+	
+	/**
+	 * Streaming moments: centre a chunk of theta in place and add its products to the covariance matrices
+	 * @param t theta of the chunk
+	 * @param chunkLayout layout of the chunk
+	 * @param length number of iterations in the chunk
+	 * @param sum sums of theta over all the iterations, [type * branchNum + branch]
+	 * @param kernels sums of products of each type
+	 */
+	private void addProducts(double[] t, SampleLayout chunkLayout, int length, double[] sum, CovarianceKernel[] kernels) {
+		for (int g = 0; g < kernels.length; g++) {
 			for (int j = 0; j < branchNum; j++) {
-				if (i != j) {
-					double sum = 0;
-					for (int k = 0; k < C; k++) {
-						if (option == 0){
-							sum += theta[g][i][k] * theta[g][j][k];
-						} else {
-							sum += theta_ss[g][i][k] * theta_ss[g][j][k];
-						}
-					}
-					cov[i][j] = (sum - theta_bar[i]*theta_bar[j]*C) / (C-1);
+				int row = chunkLayout.offset(g, j);
+				double mean = sum[g * branchNum + j] / C;
+				for (int k = 0; k < length; k++) {
+					t[row+k] = t[row+k] - mean;
 				}
 			}
+			kernels[g].add(t, chunkLayout.offset(g, 0), chunkLayout.getC(), length);
+		}
+	}
+	
+	/**
+	 * Streaming moments: covariance matrices of the kernels
+	 * @param kernels sums of products of each type
+	 * @param varSum sums of the variance of theta over the iterations, [type * branchNum + branch]
+	 * @return covariance matrix of each type
+	 */
+	private double[][][] finishMoments(CovarianceKernel[] kernels, double[] varSum) {
+		double[][][] cov = new double[kernels.length][][];
+		for (int g = 0; g < kernels.length; g++) {
+			double[] varBar = new double[branchNum];
+			for (int j = 0; j < branchNum; j++) {
+				varBar[j] = varSum[g * branchNum + j] / C;
+			}
+			cov[g] = kernels[g].finish(varBar, C);
+		}
+		return cov;
+	}
+	
+	/**
+	 * Return the sums of theta or theta_ss over the iterations for each branch
+	 * @param g index of the type or group
+	 * @param option 0 for theta, 1 for theta_ss
+	 * @return sum for each branch
+	 */
+	private double[] sumOverIterations(int g, int option) {
+		double[] sum = new double[branchNum];
+		if (streaming) {
+			System.arraycopy((option == 0) ? thetaSum : thetaSsSum, g * branchNum, sum, 0, branchNum);
+			return sum;
+		}
+		double[] thetaAll = (option == 0) ? theta : theta_ss;
+		for (int i = 0; i < branchNum; i++) {
+			int row = layout.offset(g, i);
+			for (int k = 0; k < C; k++) {
+				sum[i] += thetaAll[row+k];
+			}
+		}
+		return sum;
+	}
+	
+	/*
+	 * Get the covariance matrix of theta_g, computed by CovarianceKernel on the threads of the run
+	 * g = the index of the type of substitutions
+	 * g has the same order as `SUBSTITUTION_ORDER'
+	 * @param g index
+	 * @param option 0 for theta, 1 for theta_ss
+	 * @return covariance matrix of a certain type, computed once by computeMoments() in streaming mode
+	 */
+	public double[][] getCovarianceMatrix(int g, int option) {
+		return covarianceMatrix(g, option, threads);
+	}
+	
+	/**
+	 * Get the covariance matrix of theta_g on a number of threads
+	 * @param g index
+	 * @param option 0 for theta, 1 for theta_ss
+	 * @param kernelThreads number of threads of CovarianceKernel
+	 * @return covariance matrix of a certain type
+	 */
+	private double[][] covarianceMatrix(int g, int option, int kernelThreads) {
+		if (streaming) {
+			return (option == 0) ? thetaCov[g] : thetaSsCov[g];
+		}
+		double[] thetaG;
+		double[] thetaG_var;
+		if (option == 0) {
+			thetaG = theta;
+			thetaG_var = theta_var;
+		} else {
+			thetaG = theta_ss;
+			thetaG_var = theta_ss_var;
 		}
 		
+		PipelineEvents.Covariance event = new PipelineEvents.Covariance();
+		event.begin();
+		double[][] cov = CovarianceKernel.covariance(thetaG, thetaG_var, layout.offset(g, 0), branchNum, C, kernelThreads);
+		event.end();
+		if (event.shouldCommit()) {
+			event.type = g;
+			event.grouped = (option == 1);
+			event.branches = branchNum;
+			event.iterations = C;
+			event.commit();
+		}
 		return cov;
 	}
 	
     /**
      * Return the number of changes for each substitution type (scenario 1) on branches for each MCMC iteration.
+     * The getters return [type][branch][iteration] copies of the flat arrays.
      * @return numberOfChanges
      */
 	public int[][][] getNumberOfChanges() {
-		return numberOfChanges;
+		return layout.toJagged(numberOfChanges);
 	}
 	
     /**
@@ -522,7 +999,7 @@ public class MappingParser {
      * @return numberOfChanges
      */
 	public int[][][] getChangesInGroups() {
-		return changesInGroups;
+		return layout.toJagged(changesInGroups);
 	}
 	
     /**
@@ -530,7 +1007,7 @@ public class MappingParser {
 	 * @return propStates
 	 */
 	public double[][][] getPropStates() {
-		return propStates;
+		return layout.toJagged(propStates);
 	}
 	
     /**
@@ -538,7 +1015,7 @@ public class MappingParser {
 	 * @return br
 	 */
 	public double[][] getBranchLengths() {
-		return br;
+		return layout.toJagged(br)[0];
 	}
 
     /**
@@ -546,15 +1023,19 @@ public class MappingParser {
      * @return timeStates
      */
 	public double[][][] getTimeStates() {
-		return timeStates;
+		return layout.toJagged(timeStates);
 	}
 	
     /**
      * Return theta (mu) for each substitution type and each branch for each MCMC iteration
      * @return theta
+     * @throws IllegalStateException in streaming mode, which does not store theta
      */
 	public double[][][] getTheta() {
-		return theta;
+		if (streaming) {
+			throw new IllegalStateException("theta is not stored in streaming mode");
+		}
+		return layout.toJagged(theta);
 	}
 	
     /** 
@@ -569,85 +1050,149 @@ public class MappingParser {
      *
      * substitutionLength.txt file stores the estimated substitution lengths for each strand symmetric substitution type.
      * This makes it easier to report results.
+     *
+     * The o.estb files are written concurrently on the threads of the run (--threads), each through a buffer.
      **/
 	public void printOutput() {
-		for (int g = 0; g < numTypeChanges; g++) {
-			File output;
-			output = new File("o.estb.type"+g);
-			String newick = getNewickTree(theta[g]);
-			PrintStream print = null;
-			
-		  	  try{
-		  		print = new PrintStream(output);	 
-		  		//print tree in newick format with branch lengths averaged over iterations
-			  	  print.print(newick);
-			  	  print.println();
-			  	  print.print(printNodeInfo());
-			  	  print.print(printCovarianceMatrix(g,0));
-	  	  	  } catch(FileNotFoundException e){
-	  	  	  	  System.out.println("Problem creating file!");	  
-	  	  	  } finally {
-	  	        if (print != null) print.close();
-	  	    }
-		  	  
+		PipelineEvents.Output event = new PipelineEvents.Output();
+		event.begin();
+		//the node information is the same in all the files
+		final String nodeInfo = printNodeInfo();
+		//one file per task, on the threads of the run; each covariance matrix gets the threads left over
+		int numFiles = numTypeChanges + numGroup;
+		int numWriters = Math.max(1, Math.min(threads, numFiles));
+		final int kernelThreads = Math.max(1, threads / numWriters);
+		ArrayList<Runnable> files = new ArrayList<Runnable>();
+		for (int g = 0; g < numFiles; g++) {
+			final int type = (g < numTypeChanges) ? g : g - numTypeChanges;
+			final int option = (g < numTypeChanges) ? 0 : 1;
+			files.add(new Runnable() {
+				public void run() {
+					writeEstb(type, option, nodeInfo, kernelThreads);
+				}
+			});
 		}
-		
-		for (int g = 0; g < numGroup; g++) {
-			File output;
-			output = new File("o.estb.group"+g);
-			String newick = getNewickTree(theta_ss[g]);
-			PrintStream print = null;
-			
-		  	  try{
-		  		print = new PrintStream(output);
-		  	//print tree in newick format with branch lengths averaged over iterations
-			  	  print.print(newick);
-			  	  print.println();
-			  	  print.print(printNodeInfo());
-			  	  print.print(printCovarianceMatrix(g,1));
-		  		
-	  	  	  } catch(FileNotFoundException e){
-	  	  	  	  System.out.println("Problem creating file!");	  
-	  	  	  } finally {
-		  	        if (print != null) print.close();
-		  	    }
-		  	  
+		if (numWriters == 1) {
+			for (Runnable file : files) {
+				file.run();
+			}
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(numWriters);
+			ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+			for (Runnable file : files) {
+				results.add(pool.submit(file));
+			}
+			try {
+				for (Future<?> result : results) {
+					result.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while writing the output files");
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
 		}
 		
+		RunMetrics.Recorder rec = metrics.recorder();
+		long t = System.nanoTime();
 		File output;
 		output = new File("substitutionLength.txt");
-		PrintStream print = null;
+		BufferedWriter print = null;
 		try {
-			print = new PrintStream(output);
-			// print substitution lengths for branch 0 to the last branch to file
+			print = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output)), BUFFER_SIZE);
+			// print substitution lengths for branch 0 to the last branch to file, as Double.toString()
+			DoubleFormatter length = DoubleFormatter.javaStyle();
+			char[] buf = new char[DoubleFormatter.MAX_CHARS];
 			for (int g = 0; g < numGroup; g++) {
-				print.println("Substitution length type "+ g);
+				print.write("Substitution length type "+ g);
+				print.newLine();
 				for (int j = 0; j < branchNum; j++) {
-					print.println(theta_ss_bar[g][j]);
+					print.write(buf, 0, length.format(theta_ss_bar[g * branchNum + j], buf, 0));
+					print.newLine();
 				}
 			}
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			System.out.println("Problem creating substitution length file!");
 		} finally {
-  	        if (print != null) print.close();
-  	    }
-			
+			if (print != null) {
+				try {
+					print.close();
+				} catch (IOException e) {
+					System.out.println("Problem creating substitution length file!");
+				}
+			}
+		}
+		rec.stop(RunMetrics.OUTPUT, t);
+		rec.updateAllocation();
+		event.end();
+		if (event.shouldCommit()) {
+			long bytes = output.length();
+			for (int g = 0; g < numFiles; g++) {
+				bytes += new File(((g < numTypeChanges) ? "o.estb.type" + g : "o.estb.group" + (g - numTypeChanges))).length();
+			}
+			event.files = numFiles + 1;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Write o.estb.type<g> or o.estb.group<g>: the newick tree with theta averaged over the iterations,
+	 * the node information and the covariance matrix, through a buffer
+	 * @param g index of the type or group
+	 * @param option 0 for theta (o.estb.type), 1 for theta_ss (o.estb.group)
+	 * @param nodeInfo node information, see printNodeInfo()
+	 * @param kernelThreads number of threads of the covariance matrix
+	 */
+	private void writeEstb(int g, int option, String nodeInfo, int kernelThreads) {
+		File output = new File(((option == 0) ? "o.estb.type" : "o.estb.group") + g);
+		BufferedWriter out = null;
+		RunMetrics.Recorder rec = metrics.recorder();
+		long t = System.nanoTime();
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output)), BUFFER_SIZE);
+			//print tree in newick format with branch lengths averaged over iterations
+			out.write(getNewickTree(g, option));
+			out.newLine();
+			out.write(nodeInfo);
+			t = rec.stop(RunMetrics.OUTPUT, t);
+			double[][] cov = covarianceMatrix(g, option, kernelThreads);
+			t = rec.stop(RunMetrics.COVARIANCE, t);
+			writeCovarianceMatrix(cov, formatter, out);
+		} catch (IOException e) {
+			System.out.println("Problem creating file " + output.getName() + ": " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					System.out.println("Problem creating file " + output.getName() + ": " + e.getMessage());
+				}
+			}
+		}
+		rec.stop(RunMetrics.OUTPUT, t);
+		rec.updateAllocation();
 	}
 	
     /**
      * This function print some output to screen. 
      * It prints the number of substitutions per type per branch, the proportion of time of each type per branch,
-     * and the sume of theta (mu) for each type per branch to screen.
+     * and the sume of theta (mu) for each type per branch to screen, through a buffer.
+     * Off by default in main (--print-screen yes), see exportReport() for the samples of each iteration.
      **/
 	public void printToScreen(){
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, BUFFER_SIZE));
 		for (int g = 0; g < numTypeChanges; g++) {
 			for (int j = 0; j < branchNum; j++) {
+				int row = layout.offset(g, j);
 				int count = 0;
 				for (int k = 0; k < C; k++) {
-					//numberOfChanges = new int[numTypeChanges][branchNum][C];
-					count += numberOfChanges[g][j][k];
+					count += numberOfChanges[row+k];
 				}
-				System.out.println("Type "+g+" changes on branch "+j+": "+count);
+				out.println("Type "+g+" changes on branch "+j+": "+count);
 			}
 		}
 		
@@ -664,66 +1209,87 @@ public class MappingParser {
 	    //group 1: A->G, T->C 
 		for (int g = 0; g < numGroup; g++) {
 			for (int j = 0; j < branchNum; j++) {
+				int row = layout.offset(g, j);
 				int count = 0;
 				for (int k = 0; k < C; k++) {
-					//numberOfChanges = new int[numTypeChanges][branchNum][C];
-					count += changesInGroups[g][j][k];
+					count += changesInGroups[row+k];
 				}
-				System.out.println("Group "+g+" changes on branch "+j+": "+count);
+				out.println("Group "+g+" changes on branch "+j+": "+count);
 			}
 		}
 		
 		for (int g = 0; g < numTypeStates; g++) {
 			for (int j = 0; j < branchNum; j++) {
+				int row = layout.offset(g, j);
 				double prop = 0.0;
 				for (int k = 0; k < C; k++) {
-					//propStates = new double[numTypeStates][branchNum][C];
-					prop += propStates[g][j][k];
+					prop += propStates[row+k];
 				}
-				System.out.println("Proportion of time in state "+g+" on branch "+j+": "+prop);
+				out.println("Proportion of time in state "+g+" on branch "+j+": "+prop);
 			}
 		}
-		//theta = new double[numTypeChanges][branchNum][C];
 		
 		for (int i = 0; i < numTypeChanges; i++) {
+			double[] theta_k = sumOverIterations(i, 0);
 			for (int j  = 0; j < branchNum; j++) {
-				double theta_k = 0;
-				for (int k = 0; k < C; k++) {
-					theta_k += theta[i][j][k];
-				}
-				System.out.println("Type "+i+" branch "+j+" theta sum: "+theta_k);
+				out.println("Type "+i+" branch "+j+" theta sum: "+theta_k[j]);
 			}
 		}
 		
 		for (int i = 0; i < numGroup; i++) {
+			double[] theta_k = sumOverIterations(i, 1);
 			for (int j  = 0; j < branchNum; j++) {
-				double theta_k = 0;
-				for (int k = 0; k < C; k++) {
-					theta_k += theta_ss[i][j][k];
-				}
-				System.out.println("Group "+i+" branch "+j+" theta_ss sum: "+theta_k);
+				out.println("Group "+i+" branch "+j+" theta_ss sum: "+theta_k[j]);
 			}
 		}
+		out.flush();
+	}
+
+	/**
+	 * Write the samples of each type, branch and iteration of some quantities, see ReportExporter
+	 * @param quantities bits of ReportExporter: COUNTS, PROPORTIONS, THETA, THETA_SS
+	 * @param file destination, compressed with gzip if its name ends with .gz
+	 * @param binary true for the binary matrices, false for TSV
+	 * @throws IOException
+	 */
+	public void exportReport(int quantities, File file, boolean binary) throws IOException {
+		if (streaming && (quantities & (ReportExporter.THETA | ReportExporter.THETA_SS)) != 0) {
+			throw new IllegalStateException("theta is not stored in streaming mode");
+		}
+		RunMetrics.Recorder rec = metrics.recorder();
+		long t = System.nanoTime();
+		ReportExporter report = new ReportExporter(branchNum, C);
+		if ((quantities & ReportExporter.COUNTS) != 0) {
+			report.add("changes", numberOfChanges, numTypeChanges);
+			report.add("groups", changesInGroups, numGroup);
+		}
+		if ((quantities & ReportExporter.PROPORTIONS) != 0) {
+			report.add("proportion", propStates, numTypeStates);
+		}
+		if ((quantities & ReportExporter.THETA) != 0) {
+			report.add("theta", theta, numTypeChanges);
+		}
+		if ((quantities & ReportExporter.THETA_SS) != 0) {
+			report.add("theta_ss", theta_ss, numGroup);
+		}
+		report.write(file, binary);
+		rec.stop(RunMetrics.OUTPUT, t);
+		rec.updateAllocation();
 	}
 
 	/**
 	 * Store newick tree with theta averaging over C iterations into a String.
-	 * theta = new double[12][branchNum][C];
-	 * @param theta[g], g = specific types of substitutions
+	 * @param g specific types of substitutions
+	 * @param option 0 for theta, 1 for theta_ss
 	 */
-	public String getNewickTree(double[][] thetaG) {
+	public String getNewickTree(int g, int option) {
 		//compute theta_g averaging over C
-		double[] theta_bar = new double[branchNum];
+		double[] theta_bar = sumOverIterations(g, option);
 		for (int i = 0; i < branchNum; i++) {
-			for (int j = 0; j < C; j++) {
-				theta_bar[i] += thetaG[i][j];
-			}
 			theta_bar[i] = theta_bar[i] / C;
 		}
 		
-		String newick = inOrderNewick(tree[0].root, theta_bar);		
-		
-		return newick;
+		return inOrderNewick(tree.root, theta_bar);
 	}
 	
 	
@@ -733,23 +1299,32 @@ public class MappingParser {
 	 * @return newick tree
 	 */
 	public String inOrderNewick(TreeNode root, double[] theta) {
+		StringBuilder output = new StringBuilder();
+		inOrderNewick(root, theta, output);
+		return output.toString();
+	}
+	
+	/**
+	 * Recursive print newick format into a StringBuilder
+	 * @param root cursor to traverse the tree
+	 * @param theta branch lengths
+	 * @param output newick tree
+	 */
+	private static void inOrderNewick(TreeNode root, double[] theta, StringBuilder output) {
 		if (!root.isLeaf()) {
-	          String output = "";
-	          output += "(";
-	          output += inOrderNewick(root.firstChild(), theta);
-	          output += ",";
-	          output += inOrderNewick(root.lastChild(), theta);
-	          output += ")";
-	          if (root.isRoot()) {
-	        	  output += ";";
-	          } else {
-	        	output += ":" + theta[root.getNodeNum()];  
-	          }
-	          return output;
-	      } else {
-	    	  
-	          return root.getName() + ":" + theta[root.getNodeNum()];
-	      }
+			output.append('(');
+			inOrderNewick(root.firstChild(), theta, output);
+			output.append(',');
+			inOrderNewick(root.lastChild(), theta, output);
+			output.append(')');
+			if (root.isRoot()) {
+				output.append(';');
+			} else {
+				output.append(':').append(theta[root.getNodeNum()]);
+			}
+		} else {
+			output.append(root.getName()).append(':').append(theta[root.getNodeNum()]);
+		}
 	}
 	
 	/**
@@ -759,19 +1334,19 @@ public class MappingParser {
 	 * @return String containing the info
 	 */
 	public String printNodeInfo() {
-		String info = "list of names and tip numbers follows:\n";
-		for (int i = 0; i < tree[0].getNumLeaves(); i++) {
-			info += tree[0].getNodeByNodeNum(i).getName();
-			info += "  " + i + "\n";
+		StringBuilder info = new StringBuilder("list of names and tip numbers follows:\n");
+		for (int i = 0; i < tree.getNumLeaves(); i++) {
+			info.append(tree.getNodeByNodeNum(i).getName());
+			info.append("  ").append(i).append('\n');
 		}
 		
-		info += "list of child1, child2, ..., parent follows:\n";
-		for (int i = tree[0].getNumLeaves(); i < tree[0].getTotalNodeCount(); i++) {
-			info += tree[0].getNodeByNodeNum(i).getChild(0).getNodeNum() + " ";
-			info += tree[0].getNodeByNodeNum(i).getChild(1).getNodeNum() + " ";
-			info += i + "\n";
+		info.append("list of child1, child2, ..., parent follows:\n");
+		for (int i = tree.getNumLeaves(); i < tree.getTotalNodeCount(); i++) {
+			info.append(tree.getNodeByNodeNum(i).getChild(0).getNodeNum()).append(' ');
+			info.append(tree.getNodeByNodeNum(i).getChild(1).getNodeNum()).append(' ');
+			info.append(i).append('\n');
 		}
-		return info;
+		return info.toString();
 	}
 	
 	/**
@@ -781,17 +1356,59 @@ public class MappingParser {
 	 * @return covariance matrix
 	 */
 	public String printCovarianceMatrix(int g, int option) {
-		DecimalFormat formatter = new DecimalFormat("#.#################");
-		String cov = "variance-covariance matrix follows:\n";
-		double[][] covMatrix = getCovarianceMatrix(g, option);
-		for (int i = 0; i < branchNum; i ++) {
-			for (int j = 0; j < branchNum; j ++) {
-				cov += formatter.format(covMatrix[i][j]) + " ";
+		StringWriter cov = new StringWriter();
+		try {
+			writeCovarianceMatrix(getCovarianceMatrix(g, option), formatter, cov);
+		} catch (IOException e) {
+			//a StringWriter does not throw
+			throw new RuntimeException(e);
+		}
+		return cov.toString();
+	}
+	
+	/**
+	 * Write a covariance matrix row by row, the values formatted into one char buffer without allocation
+	 * @param covMatrix B x B covariance matrix
+	 * @param formatter formatter of the values, e.g. DoubleFormatter.fixed(17)
+	 * @param out destination
+	 * @throws IOException
+	 */
+	static void writeCovarianceMatrix(double[][] covMatrix, DoubleFormatter formatter, Writer out) throws IOException {
+		char[] buf = new char[BUFFER_SIZE];
+		out.write("variance-covariance matrix follows:\n");
+		for (int i = 0; i < covMatrix.length; i ++) {
+			int pos = 0;
+			for (int j = 0; j < covMatrix[i].length; j ++) {
+				if (pos + DoubleFormatter.MAX_CHARS + 2 > buf.length) {
+					out.write(buf, 0, pos);
+					pos = 0;
+				}
+				pos = formatter.format(covMatrix[i][j], buf, pos);
+				buf[pos++] = ' ';
 			}
-			cov += "\n";
+			buf[pos++] = '\n';
+			out.write(buf, 0, pos);
+		}
+	}
+	
+	/**
+	 * Write the report and print the sums to the screen if the options ask for them
+	 * @param parse statistics of the run
+	 * @param options --report, --report-format, --report-file and --print-screen
+	 * @param name filename prefix of the default report file
+	 */
+	static void report(MappingParser parse, RunOptions options, String name) {
+		if (options.getReport() != 0) {
+			File file = options.getReportFile(name);
+			try {
+				parse.exportReport(options.getReport(), file, options.isReportBinary());
+			} catch (IOException e) {
+				System.out.println("Problem creating file " + file.getName() + ": " + e.getMessage());
+			}
+		}
+		if (options.isPrintScreen()) {
+			parse.printToScreen();
 		}
-		
-		return cov;
 	}
 	
 	/**
@@ -799,29 +1416,62 @@ public class MappingParser {
 	 * @param args[0]: number of sites
 	 * @param args[1]: number of iterations
 	 * @param args[2]: prefix of filename
-	 * @param args[3]: 1 - single site ; 2 - triplet CpG/non-CpG
+	 * @param args[3]: 1 - single site ; 2 - triplet CpG/non-CpG ; 3 - CpG/non-CpG in a window of --context k sites
 	 * @param args[4]: outgroup filename, currently will produce incorrect tree topology if an ourgroup file is not given.
+	 * Optional flags after the arguments:
+	 *   --input-dir <dir>: directory that contains the .map files (default: current directory)
+	 *   --context <k>: number of sites in the window of option 3, odd (default: 5)
+	 *   --moments streaming: compute the means and covariance matrices without storing theta (default: stored)
+	 *   --precision <p>: number of fraction digits of the covariance matrices, 0 to 17 or shortest (default: 17)
+	 *   --report <list>, --report-format <tsv|binary>, --report-file <file>: samples of the quantities of the list
+	 *   (counts, proportions, theta, theta_ss, all), see ReportExporter (default: no report)
+	 *   --print-screen yes: print the sums of printToScreen() (default: no)
+	 *   --metrics-interval <s>: print the metrics of the run every s seconds, 0 for none (default: 60)
+	 *   --metrics <file>: write the JSON summary of the metrics, see RunMetrics (default: none)
 	 */
 	public static void main(String args[]) {
-		int N = Integer.parseInt(args[0]);
-		int C = Integer.parseInt(args[1]);
-		String name = args[2];
-		int option = Integer.parseInt(args[3]);
-		if(option == 1 || option == 2) {
+		//separate positional arguments from flags
+		RunOptions options = RunOptions.parse(args);
+		String[] pos = options.getPositional().toArray(new String[0]);
+		int numPos = pos.length;
+		int N = Integer.parseInt(pos[0]);
+		int C = Integer.parseInt(pos[1]);
+		String name = pos[2];
+		int option = Integer.parseInt(pos[3]);
+		if(option == 1 || option == 2 || option == 3) {
 			String outgroup = null;
-			if (args.length == 5) {
-				outgroup = args[4];
+			if (numPos == 5) {
+				outgroup = pos[4];
 			} else {
 				outgroup = "";
 			}
-			MappingParser parse = new MappingParser(N, C, name, option, outgroup);
+			MappingParser parse = new MappingParser(N, C, name, option, outgroup, options);
 			//System.out.println("Test!");
+			if (options.isShard()) {
+				//partial statistics only, the outputs are written by the merge command (PartialStatistics)
+				PartialStatistics partial = parse.getPartialStatistics();
+				File file = options.getPartialFile(name, partial.getTo());
+				try {
+					partial.write(file);
+					System.out.println("Wrote " + file.getPath() + " (sites " + partial.getFrom() + ":" + partial.getTo() + ")");
+				} catch (IOException e) {
+					//an incomplete partial file must not be merged, the shard fails
+					System.out.println("Problem writing the partial file " + file.getPath() + ": " + e.getMessage());
+					file.delete();
+					parse.finishMetrics(options);
+					System.exit(1);
+				}
+				parse.finishMetrics(options);
+				return;
+			}
 			parse.printOutput();
-			parse.printToScreen();
+			report(parse, options, name);
+			parse.finishMetrics(options);
 		} else {
 			System.out.println("Argument error.");
 			System.out.println("option 1 : single site.");
 			System.out.println("option 2 : CpG dinucleotide.");
+			System.out.println("option 3 : CpG dinucleotide in a window of --context k sites (default 5).");
 			
 		}
 		
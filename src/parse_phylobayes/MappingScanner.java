@@ -0,0 +1,573 @@
+package parse_phylobayes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level scanner for the PhyloBayes mapping dialect of Newick:
+ * <pre>
+ *   (((name_state:time:state:time:...:parentState, ...)_state:time:...:parentState, ...)_state;
+ * </pre>
+ * This class replaces the StreamTokenizer of TreeParser when reading .map files.
+ * It reads ASCII bytes directly, parses the times without creating Strings, and writes the result
+ * into buffers that are reused from one line to the next, so scanning a tree does not allocate
+ * once the buffers are large enough.
+ *
+ * Nodes are indexed in preorder (root = 0) in the order of the opening bracket or leaf name, which is
+ * the order TreeParser creates its TreeNode objects.
+ * For each node the scanner stores the same information as TreeNode:
+ * the state of the node, the time to the first event above the node, and the events
+ * (path state and path time) from the node up to its parent in the order they appear in the line.
+ * States must be single characters.
+ *
+ * toTree() builds the Tree / TreeNode view expected by the existing callers.
+ * @author Hui-Jie
+ *
+ */
+public class MappingScanner {
+
+	/** Exact powers of ten, used to parse decimal numbers with one correctly rounded operation */
+	private static final double[] POW10 = new double[23];
+	/** Largest mantissa that is exactly representable as a double */
+	private static final long MAX_EXACT = 1L << 53;
+	/** Strings of the single-character states, shared by all trees */
+	private static final String[] STATE_STRINGS = new String[128];
+
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i-1] * 10;
+		}
+		for (int i = 0; i < STATE_STRINGS.length; i++) {
+			STATE_STRINGS[i] = String.valueOf((char) i);
+		}
+	}
+
+	/** Bytes of the line being scanned */
+	private ByteBuffer buf;
+	/** Current position in buf */
+	private int pos;
+	/** End of the line (exclusive) */
+	private int end;
+
+	/** Number of nodes */
+	private int numNodes;
+	/** Parent of each node, -1 for the root */
+	private int[] parent;
+	/** State of each node, 0 if the node has no state */
+	private byte[] state;
+	/** Time from each node to its first event (or to its parent if there is no event) */
+	private double[] time;
+	/** Index of the first event of each node */
+	private int[] eventStart;
+	/** Number of events of each node */
+	private int[] eventCount;
+	/** Start of the name of each node in names */
+	private int[] nameStart;
+	/** Length of the name of each node */
+	private int[] nameLength;
+
+	/** Number of events of all nodes */
+	private int numEvents;
+	/** Path state of each event */
+	private byte[] eventState;
+	/** Path time of each event */
+	private double[] eventTime;
+
+	/** Bytes of the names of all nodes */
+	private byte[] names;
+	/** Number of bytes used in names */
+	private int namesLength;
+	/** Hash of the parents and names of the nodes, equal for trees with the same topology and leaf names */
+	private long topologyHash;
+
+	/** Stack of internal nodes whose children are being scanned */
+	private int[] stack;
+	/** Characters of a number that has to be parsed by Double.parseDouble */
+	private char[] numberChars;
+
+	/**
+	 * Constructor. The buffers start small and grow with the first trees.
+	 */
+	public MappingScanner() {
+		parent = new int[64];
+		state = new byte[64];
+		time = new double[64];
+		eventStart = new int[64];
+		eventCount = new int[64];
+		nameStart = new int[64];
+		nameLength = new int[64];
+		eventState = new byte[256];
+		eventTime = new double[256];
+		names = new byte[512];
+		stack = new int[64];
+		numberChars = new char[32];
+	}
+
+	/**
+	 * Scan a tree given as a String. Used for tests and small inputs.
+	 * @param line tree in the mapping dialect
+	 */
+	public void scan(String line) {
+		byte[] bytes = new byte[line.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) line.charAt(i);
+		}
+		scan(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * Scan a tree stored in buf[start, end), e.g. a line of a MapFileReader.
+	 * @param buf buffer holding the line
+	 * @param start start of the line
+	 * @param end end of the line (exclusive)
+	 */
+	public void scan(ByteBuffer buf, int start, int end) {
+		this.buf = buf;
+		this.pos = start;
+		this.end = end;
+		numNodes = 0;
+		numEvents = 0;
+		namesLength = 0;
+		topologyHash = 0;
+		int depth = 0;
+
+		while (true) {
+			//start of a subtree: open brackets, then a leaf
+			while (peek() == '(') {
+				pos++;
+				int n = newNode(depth == 0 ? -1 : stack[depth-1]);
+				if (depth == stack.length) {
+					stack = grow(stack);
+				}
+				stack[depth++] = n;
+			}
+			if (depth == 0) {
+				throw error("expected '('");
+			}
+			scanLabel(newNode(stack[depth-1]));
+
+			//end of a subtree: close brackets until the next sibling or the end of the tree
+			boolean nextSibling = false;
+			while (!nextSibling) {
+				int c = peek();
+				if (c == ',') {
+					pos++;
+					nextSibling = true;
+				} else if (c == ')') {
+					pos++;
+					if (depth == 0) {
+						throw error("unbalanced ')'");
+					}
+					scanLabel(stack[--depth]);
+				} else if (c == ';' || c == -1) {
+					if (depth != 0) {
+						throw error("unbalanced '('");
+					}
+					return;
+				} else {
+					throw error("unexpected character");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scan the label of a node: name_state:time:state:time:...:parentState
+	 * @param n index of the node
+	 */
+	private void scanLabel(int n) {
+		//name and state are separated by the last `_' before the first `:'
+		int labelStart = pos;
+		int underscore = -1;
+		int c = peek();
+		while (c != ':' && c != ',' && c != ')' && c != ';' && c != '(' && c != -1) {
+			if (c == '_') {
+				underscore = pos;
+			}
+			pos++;
+			c = peek();
+		}
+		int nameEnd = (underscore == -1) ? pos : underscore;
+		setName(n, labelStart, nameEnd);
+		if (underscore != -1) {
+			if (pos - underscore != 2) {
+				throw error("states must be single characters");
+			}
+			state[n] = buf.get(underscore + 1);
+		}
+
+		//time to the first event, then pairs of path state and path time.
+		//the last state is the state of the parent, which is already known.
+		eventStart[n] = numEvents;
+		if (peek() == ':') {
+			pos++;
+			time[n] = scanNumber();
+			while (peek() == ':') {
+				pos++;
+				byte s = scanState();
+				if (peek() != ':') {
+					break; //redundant parent state
+				}
+				pos++;
+				if (numEvents == eventState.length) {
+					eventState = grow(eventState);
+					eventTime = grow(eventTime);
+				}
+				eventState[numEvents] = s;
+				eventTime[numEvents] = scanNumber();
+				numEvents++;
+			}
+		}
+		eventCount[n] = numEvents - eventStart[n];
+	}
+
+	/**
+	 * Scan a single-character state.
+	 * @return the state
+	 */
+	private byte scanState() {
+		int c = peek();
+		if (c == -1 || c == ':' || c == ',' || c == ')' || c == ';') {
+			throw error("expected a state");
+		}
+		pos++;
+		int next = peek();
+		if (next != ':' && next != ',' && next != ')' && next != ';' && next != -1) {
+			throw error("states must be single characters");
+		}
+		return (byte) c;
+	}
+
+	/**
+	 * Scan a decimal number such as 0.101652 or 3.73678e-05.
+	 * Numbers with at most 15 significant digits are converted with one correctly rounded
+	 * multiplication or division, which gives the same double as Double.parseDouble.
+	 * Longer numbers fall back to Double.parseDouble.
+	 * @return the number
+	 */
+	private double scanNumber() {
+		int numberStart = pos;
+		boolean negative = false;
+		int c = peek();
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			pos++;
+			c = peek();
+		}
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean exact = true;
+		while (c >= '0' && c <= '9') {
+			if (mantissa < MAX_EXACT / 10) {
+				mantissa = mantissa * 10 + (c - '0');
+			} else {
+				exact = false;
+			}
+			digits++;
+			pos++;
+			c = peek();
+		}
+		if (c == '.') {
+			pos++;
+			c = peek();
+			while (c >= '0' && c <= '9') {
+				if (mantissa < MAX_EXACT / 10) {
+					mantissa = mantissa * 10 + (c - '0');
+					scale--;
+				} else {
+					exact = false;
+				}
+				digits++;
+				pos++;
+				c = peek();
+			}
+		}
+		if (digits == 0) {
+			throw error("expected a number");
+		}
+		if (c == 'e' || c == 'E') {
+			pos++;
+			c = peek();
+			boolean negativeExp = false;
+			if (c == '-' || c == '+') {
+				negativeExp = (c == '-');
+				pos++;
+				c = peek();
+			}
+			int exp = 0;
+			while (c >= '0' && c <= '9') {
+				if (exp < 10000) {
+					exp = exp * 10 + (c - '0');
+				}
+				pos++;
+				c = peek();
+			}
+			scale += negativeExp ? -exp : exp;
+		}
+
+		if (!exact || scale < -22 || scale > 22) {
+			return parseSlow(numberStart, pos);
+		}
+		double value = (scale < 0) ? mantissa / POW10[-scale] : mantissa * POW10[scale];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse the number in buf[from, to) with Double.parseDouble.
+	 * @param from start of the number
+	 * @param to end of the number (exclusive)
+	 * @return the number
+	 */
+	private double parseSlow(int from, int to) {
+		if (to - from > numberChars.length) {
+			numberChars = new char[to - from];
+		}
+		for (int i = from; i < to; i++) {
+			numberChars[i - from] = (char) buf.get(i);
+		}
+		return Double.parseDouble(new String(numberChars, 0, to - from));
+	}
+
+	/**
+	 * Return the byte at the current position, or -1 at the end of the line.
+	 * @return current byte
+	 */
+	private int peek() {
+		return (pos < end) ? buf.get(pos) : -1;
+	}
+
+	/**
+	 * Add a node.
+	 * @param p parent of the node
+	 * @return index of the node
+	 */
+	private int newNode(int p) {
+		if (numNodes == parent.length) {
+			parent = grow(parent);
+			state = grow(state);
+			time = grow(time);
+			eventStart = grow(eventStart);
+			eventCount = grow(eventCount);
+			nameStart = grow(nameStart);
+			nameLength = grow(nameLength);
+		}
+		int n = numNodes++;
+		parent[n] = p;
+		topologyHash = topologyHash * 31 + p;
+		state[n] = 0;
+		time[n] = 0;
+		eventStart[n] = numEvents;
+		eventCount[n] = 0;
+		nameStart[n] = namesLength;
+		nameLength[n] = 0;
+		return n;
+	}
+
+	/**
+	 * Copy the name of a node into the names buffer.
+	 * @param n index of the node
+	 * @param from start of the name in buf
+	 * @param to end of the name in buf (exclusive)
+	 */
+	private void setName(int n, int from, int to) {
+		int length = to - from;
+		while (namesLength + length > names.length) {
+			names = grow(names);
+		}
+		for (int i = from; i < to; i++) {
+			byte b = buf.get(i);
+			names[namesLength++] = b;
+			topologyHash = topologyHash * 31 + b;
+		}
+		nameStart[n] = namesLength - length;
+		nameLength[n] = length;
+	}
+
+	/**
+	 * Build an exception that reports the position of the error.
+	 * @param message description of the error
+	 * @return exception
+	 */
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("Mapping parse error at position " + pos + ": " + message);
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static byte[] grow(byte[] a) {
+		byte[] b = new byte[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static double[] grow(double[] a) {
+		double[] b = new double[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * Return the number of nodes of the last tree scanned
+	 * @return numNodes
+	 */
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * Return the parent of a node
+	 * @param n index of the node (preorder)
+	 * @return index of the parent, -1 for the root
+	 */
+	public int getParent(int n) {
+		return parent[n];
+	}
+
+	/**
+	 * Return the state of a node
+	 * @param n index of the node (preorder)
+	 * @return state as an ASCII character, 0 if the node has no state
+	 */
+	public byte getState(int n) {
+		return state[n];
+	}
+
+	/**
+	 * Return the time from a node to its first event
+	 * @param n index of the node (preorder)
+	 * @return time
+	 */
+	public double getTime(int n) {
+		return time[n];
+	}
+
+	/**
+	 * Return the number of events of a node
+	 * @param n index of the node (preorder)
+	 * @return number of path states
+	 */
+	public int getEventCount(int n) {
+		return eventCount[n];
+	}
+
+	/**
+	 * Return the path state of an event of a node (in the order of the line, i.e. from the node to its parent)
+	 * @param n index of the node (preorder)
+	 * @param k index of the event
+	 * @return state
+	 */
+	public byte getEventState(int n, int k) {
+		return eventState[eventStart[n] + k];
+	}
+
+	/**
+	 * Return the path time of an event of a node (in the order of the line, i.e. from the node to its parent)
+	 * @param n index of the node (preorder)
+	 * @param k index of the event
+	 * @return time
+	 */
+	public double getEventTime(int n, int k) {
+		return eventTime[eventStart[n] + k];
+	}
+
+	/**
+	 * Return the length of the name of a node
+	 * @param n index of the node (preorder)
+	 * @return length of the name, 0 for unnamed nodes
+	 */
+	public int getNameLength(int n) {
+		return nameLength[n];
+	}
+
+	/**
+	 * Return the fingerprint of the topology of the last tree scanned: a hash of the parent of each node
+	 * and of the names, in preorder. Trees with the same topology and names have the same fingerprint.
+	 * @return fingerprint
+	 */
+	public long getTopologyHash() {
+		return topologyHash;
+	}
+
+	/**
+	 * Return the name of a node. Allocates a String.
+	 * @param n index of the node (preorder)
+	 * @return name
+	 */
+	public String getName(int n) {
+		char[] c = new char[nameLength[n]];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = (char) names[nameStart[n] + i];
+		}
+		return new String(c);
+	}
+
+	/**
+	 * Return the String of a state
+	 * @param s state
+	 * @return shared String of the state, null if there is no state
+	 */
+	static String stateString(byte s) {
+		return (s <= 0) ? null : STATE_STRINGS[s];
+	}
+
+	/**
+	 * Build the Tree / TreeNode view of the last tree scanned, the same way TreeParser.tokenize() does:
+	 * link the nodes, post process the tree, number the nodes as Multidivtime, and remove the outgroup
+	 * if the tree is unrooted.
+	 * To read many trees with the same topology, use a TopologyTemplate instead.
+	 * @param outgroup taxa in the outgroup, OutgroupSpec.NONE to keep the tree unrooted
+	 * @return tree
+	 */
+	public Tree toTree(OutgroupSpec outgroup) {
+		TreeNode[] nodes = new TreeNode[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			TreeNode node = new TreeNode();
+			String nodeName = (nameLength[n] == 0) ? "" : getName(n);
+			node.label = nodeName;
+			node.setName(nodeName);
+			node.setState(state[n]);
+			node.setTime(time[n]);
+			node.setNumEvents(eventCount[n]);
+			for (int k = 0; k < eventCount[n]; k++) {
+				int e = eventStart[n] + k;
+				node.setEvent(eventCount[n] - 1 - k, eventState[e], eventTime[e]);
+			}
+			nodes[n] = node;
+		}
+		Tree t = linkTree(nodes, parent);
+		if (outgroup.appliesTo(t)) {
+			t.removeOutgroup(outgroup.getTaxa());
+		}
+		return t;
+	}
+
+	/**
+	 * Link TreeNodes given in preorder into a Tree, the same way TreeParser.tokenize() does:
+	 * link the nodes, post process the tree and number the nodes as Multidivtime.
+	 * @param nodes nodes in preorder (root = 0)
+	 * @param parent parent of each node, -1 for the root
+	 * @return tree
+	 */
+	static Tree linkTree(TreeNode[] nodes, int[] parent) {
+		for (int n = 1; n < nodes.length; n++) {
+			nodes[parent[n]].addChild(nodes[n]);
+		}
+		//children before parents, as TreeParser.popAndName()
+		for (int n = nodes.length - 1; n >= 0; n--) {
+			nodes[n].setExtremeLeaves();
+			nodes[n].setNumberLeaves();
+			nodes[n].linkNodesInPreorder();
+			nodes[n].linkNodesInPostorder();
+		}
+		Tree t = new Tree();
+		t.setRootNode(nodes[0]);
+		t.postProcess();
+		t.setNodeNum();
+		return t;
+	}
+}
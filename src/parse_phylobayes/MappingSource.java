@@ -0,0 +1,27 @@
+package parse_phylobayes;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface for the sources of substitution histories read by MappingParser:
+ * the .map text files (MapTextSource) and the binary cache (MapBinReader).
+ * A source gives the C sampled trees of a site, one after the other, filled into trees made by
+ * getTemplate().newTree().
+ * @author Hui-Jie
+ *
+ */
+public interface MappingSource extends Closeable {
+
+	/** Return the topology shared by all the trees of the chain **/
+	public TopologyTemplate getTemplate();
+
+	/** Move to the first tree of a site **/
+	public void openSite(int site) throws IOException;
+
+	/** Fill the next tree of the current site into dest **/
+	public void next(Tree dest) throws IOException;
+
+	/** Return the number of bytes read since the source was opened **/
+	public long getBytesRead();
+}
@@ -0,0 +1,176 @@
+package parse_phylobayes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Immutable list of the taxa in the outgroup.
+ * The outgroup file is read once and the same OutgroupSpec is shared by all the parsers.
+ * Format of the outgroup file:
+ * <pre>
+ * number_of_outgroup_species
+ * outgroup_species1
+ * outgroup_species2
+ * ...
+ * </pre>
+ * Instead of removing the outgroup from every tree, MappingParser asks for a branch mask once:
+ * the mask maps the node numbers of the unrooted tree to the node numbers the tree would have
+ * after Tree.removeOutgroup(), and to -1 for the branches of the outgroup.
+ * @author Hui-Jie
+ *
+ */
+public final class OutgroupSpec {
+
+	/** No outgroup */
+	public static final OutgroupSpec NONE = new OutgroupSpec(new String[0]);
+
+	/** Names of the taxa in the outgroup */
+	private final String[] taxa;
+
+	/**
+	 * Constructor
+	 * @param taxa names of the taxa in the outgroup
+	 */
+	public OutgroupSpec(String[] taxa) {
+		this.taxa = taxa.clone();
+	}
+
+	/**
+	 * Read an outgroup file.
+	 * @param file outgroup file
+	 * @return outgroup
+	 * @throws IOException
+	 */
+	public static OutgroupSpec load(File file) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		try {
+			//first line contains the number of taxa in the outgroup
+			int outgroupNum = Integer.parseInt(r.readLine().trim());
+			String[] taxa = new String[outgroupNum];
+			for (int i = 0; i < outgroupNum; i++) {
+				taxa[i] = r.readLine();
+			}
+			return new OutgroupSpec(taxa);
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Return the number of taxa in the outgroup
+	 * @return number of taxa
+	 */
+	public int size() {
+		return taxa.length;
+	}
+
+	/**
+	 * Return true if there is no outgroup
+	 * @return isEmpty
+	 */
+	public boolean isEmpty() {
+		return taxa.length == 0;
+	}
+
+	/**
+	 * Return the name of a taxon in the outgroup
+	 * @param i index of the taxon
+	 * @return name
+	 */
+	public String getTaxon(int i) {
+		return taxa[i];
+	}
+
+	/**
+	 * Return a copy of the names of the taxa in the outgroup
+	 * @return names
+	 */
+	public String[] getTaxa() {
+		return taxa.clone();
+	}
+
+	/**
+	 * Test if a name is the name of a taxon in the outgroup
+	 * @param name name of a taxon
+	 * @return true if the taxon is in the outgroup
+	 */
+	public boolean contains(String name) {
+		for (int i = 0; i < taxa.length; i++) {
+			if (taxa[i].equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Test if the outgroup has to be removed from a tree, i.e. there is an outgroup and the tree is unrooted
+	 * (root has degree 3).
+	 * @param tree tree
+	 * @return true if the outgroup has to be removed
+	 */
+	public boolean appliesTo(Tree tree) {
+		return !isEmpty() && tree.getRoot().numberChildren() == 3;
+	}
+
+	/**
+	 * Return the index of the child of the root that holds the outgroup,
+	 * found the same way as Tree.removeOutgroup(): by the names of its leftmost and rightmost leaves.
+	 * @param tree unrooted tree
+	 * @return index of the child of the root
+	 */
+	public int findOutgroupChild(Tree tree) {
+		TreeNode root = tree.getRoot();
+		for (int index = 0; index < root.numberChildren(); index++) {
+			if (contains(root.getChild(index).getLeftmostLeaf().getName())
+					|| contains(root.getChild(index).getRightmostLeaf().getName())) {
+				return index;
+			}
+		}
+		throw new IllegalArgumentException("Error in the outgroup file. Please check again.");
+	}
+
+	/**
+	 * Compute the outgroup branch mask of a tree.
+	 * mask[n] is the node number that the node numbered n in the given (not pruned) tree would have
+	 * after Tree.removeOutgroup(), or -1 if the node belongs to the outgroup.
+	 * If the outgroup does not apply to the tree, the mask is the identity.
+	 * The numbering follows Tree.setNodeNum(): leaves in preorder first, then internal nodes in reverse preorder.
+	 * @param tree tree numbered by Tree.setNodeNum(), outgroup not removed
+	 * @return mask indexed by node number
+	 */
+	public int[] branchMask(Tree tree) {
+		int total = tree.getTotalNodeCount();
+		int[] mask = new int[total];
+		if (!appliesTo(tree)) {
+			for (int i = 0; i < total; i++) {
+				mask[i] = i;
+			}
+			return mask;
+		}
+		TreeNode outgroupRoot = tree.getRoot().getChild(findOutgroupChild(tree));
+		//mark the subtree of the outgroup
+		boolean[] removed = new boolean[total];
+		removed[outgroupRoot.getNodeNum()] = true;
+		for (int i = 0; i < tree.nodes.size(); i++) { //preorder, parents before children
+			TreeNode n = tree.nodes.get(i);
+			if (!n.isRoot() && removed[n.parent().getNodeNum()]) {
+				removed[n.getNodeNum()] = true;
+			}
+		}
+		int index = 0;
+		for (int i = 0; i < tree.nodes.size(); i++) {
+			TreeNode n = tree.nodes.get(i);
+			if (n.isLeaf()) {
+				mask[n.getNodeNum()] = removed[n.getNodeNum()] ? -1 : index++;
+			}
+		}
+		for (int i = tree.nodes.size() - 1; i >= 0; i--) {
+			TreeNode n = tree.nodes.get(i);
+			if (!n.isLeaf()) {
+				mask[n.getNodeNum()] = removed[n.getNodeNum()] ? -1 : index++;
+			}
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,376 @@
+package parse_phylobayes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Sufficient statistics of a shard of a run, i.e. of a range of sites, and the merge command that
+ * combines the shards of a slurm array job into the usual outputs.
+ * A run started with `--sites a:b` processes only the sites a to b-1 (option 1) or the windows of 3 sites
+ * (option 2) or k sites (option 3) starting at a to b-1 (the shard reads the sites a to b+k-2 so that the
+ * windows at the boundaries are complete and every window is counted by exactly one shard). Instead of the outputs, it writes a
+ * partial file with the sums over its sites: number of changes, changes in groups, time in states and
+ * proportion of states per type, branch and iteration, and the branch lengths. The partial file also holds
+ * the topology and the outgroup, so the merge does not need the .map files.
+ *
+ * Layout of a partial file (big-endian, DataOutputStream):
+ * <pre>
+ *   magic "MAPPART2" (8 bytes)
+ *   int option, int width, int N, int C, int from, int to
+ *   int numTypeChanges, int numTypeStates, int numGroup, int branchNum
+ *   long fingerprint, int numNodes, int parent[numNodes], UTF name[numNodes]
+ *   int number of outgroup taxa, UTF taxa[]
+ *   int numberOfChanges[numTypeChanges][branchNum][C], int changesInGroups[numGroup][branchNum][C]
+ *   double timeStates[numTypeStates][branchNum][C], double propStates[numTypeStates][branchNum][C]
+ *   double br[branchNum][C]
+ * </pre>
+ * Merge with: java parse_phylobayes.PartialStatistics partial_file1 partial_file2 ...
+ * @author Hui-Jie
+ *
+ */
+public class PartialStatistics {
+
+	/** First bytes of a partial file */
+	private static final byte[] MAGIC = {'M', 'A', 'P', 'P', 'A', 'R', 'T', '2'};
+
+	/** 1: SingleSiteParser, 2: TripletParser, 3: ContextSiteParser */
+	private int option;
+	/** Number of sites in a window, 1 for option 1 */
+	private int width;
+	/** Number of sites of the whole run */
+	private int N;
+	/** Number of iterations */
+	private int C;
+	/** First site (option 1) or window (options 2 and 3) of the shard */
+	private int from;
+	/** End of the shard (exclusive) */
+	private int to;
+	/** Topology of the trees */
+	private TopologyTemplate template;
+	/** Outgroup */
+	private OutgroupSpec outgroup;
+	/** Sums over the sites of the shard */
+	private SiteAccumulator statistics;
+
+	/**
+	 * Constructor
+	 * @param option 1: SingleSiteParser, 2: TripletParser, 3: ContextSiteParser
+	 * @param width number of sites in a window, 1 for option 1
+	 * @param N number of sites of the whole run
+	 * @param C number of iterations
+	 * @param from first site or window of the shard
+	 * @param to end of the shard (exclusive)
+	 * @param template topology of the trees
+	 * @param outgroup outgroup
+	 * @param statistics sums over the sites of the shard
+	 */
+	public PartialStatistics(int option, int width, int N, int C, int from, int to, TopologyTemplate template,
+			OutgroupSpec outgroup, SiteAccumulator statistics) {
+		this.option = option;
+		this.width = width;
+		this.N = N;
+		this.C = C;
+		this.from = from;
+		this.to = to;
+		this.template = template;
+		this.outgroup = outgroup;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Return the number of sites (option 1) or windows (options 2 and 3) of a run of N sites
+	 * @param width number of sites in a window, 1 for option 1
+	 * @param N number of sites
+	 * @return number of sites or windows
+	 */
+	public static int numberOfUnits(int width, int N) {
+		return Math.max(0, N - (width - 1));
+	}
+
+	/**
+	 * Write the partial file
+	 * @param file partial file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.write(MAGIC);
+			out.writeInt(option);
+			out.writeInt(width);
+			out.writeInt(N);
+			out.writeInt(C);
+			out.writeInt(from);
+			out.writeInt(to);
+			SampleLayout layout = statistics.getLayout();
+			int[] changes = statistics.getNumberOfChanges();
+			int[] groups = statistics.getChangesInGroups();
+			double[] times = statistics.getTimeStates();
+			double[] prop = statistics.getPropStates();
+			out.writeInt(changes.length / layout.typeStride());
+			out.writeInt(times.length / layout.typeStride());
+			out.writeInt(groups.length / layout.typeStride());
+			out.writeInt(layout.getBranchNum());
+			out.writeLong(template.getFingerprint());
+			out.writeInt(template.getNumNodes());
+			for (int n = 0; n < template.getNumNodes(); n++) {
+				out.writeInt(template.getParent(n));
+			}
+			for (int n = 0; n < template.getNumNodes(); n++) {
+				out.writeUTF(template.getName(n));
+			}
+			out.writeInt(outgroup.size());
+			for (int i = 0; i < outgroup.size(); i++) {
+				out.writeUTF(outgroup.getTaxon(i));
+			}
+			write(out, changes);
+			write(out, groups);
+			write(out, times);
+			write(out, prop);
+			write(out, statistics.getBranchLengths());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, int[] a) throws IOException {
+		for (int i = 0; i < a.length; i++) {
+			out.writeInt(a[i]);
+		}
+	}
+
+	private static void write(DataOutputStream out, double[] a) throws IOException {
+		for (int i = 0; i < a.length; i++) {
+			out.writeDouble(a[i]);
+		}
+	}
+
+	/**
+	 * Read a partial file
+	 * @param file partial file
+	 * @return statistics of the shard
+	 * @throws IOException if the file is not a partial file
+	 */
+	public static PartialStatistics read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (in.readByte() != MAGIC[i]) {
+					throw new IOException(file + " is not a partial statistics file");
+				}
+			}
+			int option = in.readInt();
+			int width = in.readInt();
+			int N = in.readInt();
+			int C = in.readInt();
+			int from = in.readInt();
+			int to = in.readInt();
+			int numTypeChanges = in.readInt();
+			int numTypeStates = in.readInt();
+			int numGroup = in.readInt();
+			int branchNum = in.readInt();
+			long fingerprint = in.readLong();
+			int[] parent = new int[in.readInt()];
+			for (int n = 0; n < parent.length; n++) {
+				parent[n] = in.readInt();
+			}
+			String[] names = new String[parent.length];
+			for (int n = 0; n < names.length; n++) {
+				names[n] = in.readUTF();
+			}
+			String[] taxa = new String[in.readInt()];
+			for (int i = 0; i < taxa.length; i++) {
+				taxa[i] = in.readUTF();
+			}
+			TopologyTemplate template = new TopologyTemplate(parent, names, fingerprint);
+			OutgroupSpec outgroup = new OutgroupSpec(taxa);
+			SiteAccumulator statistics = new SiteAccumulator(numTypeChanges, numTypeStates, numGroup, branchNum, C,
+					outgroup.branchMask(template.newTree()));
+			read(in, statistics.getNumberOfChanges());
+			read(in, statistics.getChangesInGroups());
+			read(in, statistics.getTimeStates());
+			read(in, statistics.getPropStates());
+			read(in, statistics.getBranchLengths());
+			return new PartialStatistics(option, width, N, C, from, to, template, outgroup, statistics);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void read(DataInputStream in, int[] a) throws IOException {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = in.readInt();
+		}
+	}
+
+	private static void read(DataInputStream in, double[] a) throws IOException {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = in.readDouble();
+		}
+	}
+
+	/**
+	 * Merge the shards of a run. The shards must come from the same chain and option, and together cover
+	 * every site (option 1) or window (options 2 and 3) exactly once. They are merged in the order of their sites.
+	 * @param shards statistics of the shards, in any order
+	 * @return statistics of the whole run
+	 * @throws IllegalArgumentException if the shards do not match or leave a gap or overlap
+	 */
+	public static PartialStatistics merge(ArrayList<PartialStatistics> shards) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("No partial file to merge");
+		}
+		ArrayList<PartialStatistics> sorted = new ArrayList<PartialStatistics>(shards);
+		Collections.sort(sorted, new Comparator<PartialStatistics>() {
+			public int compare(PartialStatistics a, PartialStatistics b) {
+				return Integer.compare(a.from, b.from);
+			}
+		});
+		PartialStatistics first = sorted.get(0);
+		int end = 0;
+		for (int s = 0; s < sorted.size(); s++) {
+			PartialStatistics p = sorted.get(s);
+			if (p.option != first.option || p.width != first.width || p.N != first.N || p.C != first.C
+					|| p.template.getFingerprint() != first.template.getFingerprint()
+					|| !sameTaxa(p.outgroup, first.outgroup)) {
+				throw new IllegalArgumentException("Partial files of different runs (option, width, N, C, tree or outgroup differ)");
+			}
+			if (p.from != end) {
+				throw new IllegalArgumentException((p.from > end ? "Missing sites " : "Overlapping sites ")
+						+ Math.min(p.from, end) + ":" + Math.max(p.from, end));
+			}
+			end = p.to;
+		}
+		int units = numberOfUnits(first.width, first.N);
+		if (end != units) {
+			throw new IllegalArgumentException("Missing sites " + end + ":" + units);
+		}
+		SiteAccumulator total = first.statistics;
+		for (int s = 1; s < sorted.size(); s++) {
+			PartialStatistics p = sorted.get(s);
+			total.merge(p.statistics, p.to > p.from);
+		}
+		return new PartialStatistics(first.option, first.width, first.N, first.C, 0, units, first.template, first.outgroup, total);
+	}
+
+	/**
+	 * Test if two outgroups hold the same taxa, in any order
+	 * @param a outgroup
+	 * @param b outgroup
+	 * @return true if the taxa are the same
+	 */
+	private static boolean sameTaxa(OutgroupSpec a, OutgroupSpec b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (!b.contains(a.getTaxon(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the option: 1 SingleSiteParser, 2 TripletParser, 3 ContextSiteParser
+	 * @return option
+	 */
+	public int getOption() {
+		return option;
+	}
+
+	/**
+	 * Return the number of sites in a window, 1 for option 1
+	 * @return width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Return the number of sites of the whole run
+	 * @return N
+	 */
+	public int getN() {
+		return N;
+	}
+
+	/**
+	 * Return the number of iterations
+	 * @return C
+	 */
+	public int getC() {
+		return C;
+	}
+
+	/**
+	 * Return the first site or window of the shard
+	 * @return from
+	 */
+	public int getFrom() {
+		return from;
+	}
+
+	/**
+	 * Return the end of the shard (exclusive)
+	 * @return to
+	 */
+	public int getTo() {
+		return to;
+	}
+
+	/**
+	 * Return the topology of the trees
+	 * @return template
+	 */
+	public TopologyTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Return the outgroup
+	 * @return outgroup
+	 */
+	public OutgroupSpec getOutgroup() {
+		return outgroup;
+	}
+
+	/**
+	 * Return the sums over the sites of the shard
+	 * @return statistics
+	 */
+	public SiteAccumulator getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Merge command: read the partial files, merge them and write o.estb.type*, o.estb.group* and
+	 * substitutionLength.txt in the current directory.
+	 * @param args partial files, and optionally --threads n, --moments streaming, --precision p, the report and metrics
+	 *             flags (see RunOptions), the default report is merged.report.tsv
+	 */
+	public static void main(String args[]) throws IOException {
+		RunOptions options = RunOptions.parse(args);
+		if (options.getPositional().isEmpty()) {
+			System.out.println("Usage: PartialStatistics partial_file1 partial_file2 ... [--threads n] [--moments streaming] [--precision p] [--report list]");
+			return;
+		}
+		ArrayList<PartialStatistics> shards = new ArrayList<PartialStatistics>();
+		for (String file : options.getPositional()) {
+			shards.add(read(new File(file)));
+		}
+		MappingParser parse = new MappingParser(merge(shards), options);
+		parse.printOutput();
+		MappingParser.report(parse, options, "merged");
+		parse.finishMetrics(options);
+	}
+}
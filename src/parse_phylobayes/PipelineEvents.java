@@ -0,0 +1,146 @@
+package parse_phylobayes;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the pipeline of MappingParser, to tell the file system, the GC and the parser
+ * apart in a recording of a slow run:
+ * <pre>
+ *   java -XX:StartFlightRecording:settings=default,settings=parsePhyloBayes.jfc,filename=run.jfr -jar parsePhyloBayes.jar ...
+ *   jfr print --events parse_phylobayes.Site run.jfr
+ * </pre>
+ * The events of a site, a range, a covariance matrix or the output are few and always recorded; the
+ * events of a single tree (TreeTokenize, TreeClassify) are only recorded above a threshold of 1 ms, so that
+ * a stall on a tree shows up without recording C x N events. Without a recording an event costs nothing
+ * once compiled: its fields are only set after shouldCommit().
+ * parsePhyloBayes.jfc at the root of the repository holds the settings of these events.
+ * @author Hui-Jie
+ *
+ */
+public class PipelineEvents {
+
+	private PipelineEvents() {
+	}
+
+	/**
+	 * One step of the accumulation loop: open a site, tokenize its C trees, classify and sum them (option 1),
+	 * or read the new site of a window and classify and sum the C windows (options 2 and 3)
+	 */
+	@Name("parse_phylobayes.Site")
+	@Label("Site")
+	@Category({"parsePhyloBayes", "Input"})
+	@Description("Read, classify and sum the trees of a site or window")
+	@StackTrace(false)
+	public static class Site extends Event {
+		@Label("Site")
+		public int site;
+		@Label("Trees")
+		public int trees;
+		@Label("Bytes Read")
+		@DataAmount
+		public long bytes;
+	}
+
+	/**
+	 * Tokenize one tree of a site (MappingSource.next(), which replaces TreeParser.tokenize())
+	 */
+	@Name("parse_phylobayes.TreeTokenize")
+	@Label("Tree Tokenize")
+	@Category({"parsePhyloBayes", "Input"})
+	@Description("Tokenize one sampled tree of a site")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	public static class TreeTokenize extends Event {
+		@Label("Site")
+		public int site;
+		@Label("Sample")
+		public int sample;
+		@Label("Bytes Read")
+		@DataAmount
+		public long bytes;
+	}
+
+	/**
+	 * Classify the changes of one sample (SingleSiteParser, TripletParser or ContextSiteParser)
+	 */
+	@Name("parse_phylobayes.TreeClassify")
+	@Label("Tree Classify")
+	@Category({"parsePhyloBayes", "Classify"})
+	@Description("Classify the changes of one sampled tree or window of trees")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	public static class TreeClassify extends Event {
+		@Label("Site")
+		public int site;
+		@Label("Sample")
+		public int sample;
+		@Label("Changes")
+		@Description("Number of changes of all the types")
+		public int changes;
+	}
+
+	/**
+	 * Accumulation loop of a range of sites of a thread (MappingParser.accumulateRange())
+	 */
+	@Name("parse_phylobayes.Accumulate")
+	@Label("Accumulate Range")
+	@Category({"parsePhyloBayes", "Accumulate"})
+	@Description("Read, classify and sum the trees of a range of sites")
+	@StackTrace(false)
+	public static class Accumulate extends Event {
+		@Label("First Site")
+		public int from;
+		@Label("End Site")
+		@Description("End of the range, exclusive")
+		public int to;
+		@Label("Trees")
+		public long trees;
+		@Label("Bytes Read")
+		@DataAmount
+		public long bytes;
+	}
+
+	/**
+	 * Covariance matrix of a type or group (MappingParser.getCovarianceMatrix() and the o.estb files), with
+	 * the default --moments stored; the streaming moments compute all the matrices in one pass
+	 */
+	@Name("parse_phylobayes.Covariance")
+	@Label("Covariance Matrix")
+	@Category({"parsePhyloBayes", "Output"})
+	@Description("Compute the covariance matrix of theta of a type or group")
+	@StackTrace(false)
+	public static class Covariance extends Event {
+		@Label("Type")
+		public int type;
+		@Label("Grouped")
+		@Description("True for theta_ss (o.estb.group), false for theta (o.estb.type)")
+		public boolean grouped;
+		@Label("Branches")
+		public int branches;
+		@Label("Iterations")
+		public int iterations;
+	}
+
+	/**
+	 * Output files of a run (MappingParser.printOutput())
+	 */
+	@Name("parse_phylobayes.Output")
+	@Label("Output")
+	@Category({"parsePhyloBayes", "Output"})
+	@Description("Write the o.estb files and substitutionLength.txt")
+	@StackTrace(false)
+	public static class Output extends Event {
+		@Label("Files")
+		public int files;
+		@Label("Bytes Written")
+		@DataAmount
+		public long bytes;
+	}
+}
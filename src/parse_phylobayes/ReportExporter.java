@@ -0,0 +1,262 @@
+package parse_phylobayes;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Report of the per-iteration samples of a run, the structured replacement of MappingParser.printToScreen():
+ * a selected subset of the number of changes, the proportions of time in the states, theta and theta_ss,
+ * for each type, branch and iteration, written through a buffer. The file is compressed with gzip if its
+ * name ends with .gz.
+ *
+ * TSV: a header, then one line per (quantity, type, branch) with the C iterations in order
+ * <pre>
+ *   quantity  type  branch  0  1  ...  C-1
+ *   changes   0     0       2  0  ...  1
+ * </pre>
+ * The doubles have the digits of Double.toString() (DoubleFormatter.javaStyle()), they read back as the
+ * same doubles.
+ *
+ * Binary (big-endian, DataOutputStream), each matrix in the layout of SampleLayout:
+ * <pre>
+ *   magic "MAPREPT1" (8 bytes)
+ *   int branchNum, int C, int number of matrices
+ *   for each matrix:
+ *     UTF quantity, byte 'I' (int) or 'D' (double), int numTypes
+ *     int or double values[numTypes][branchNum][C]
+ * </pre>
+ * The quantities are changes and groups (counts), proportion (proportions), theta (theta) and theta_ss
+ * (theta_ss).
+ * @author Hui-Jie
+ *
+ */
+public class ReportExporter {
+
+	/** First bytes of a binary report */
+	static final byte[] MAGIC = {'M', 'A', 'P', 'R', 'E', 'P', 'T', '1'};
+
+	/** Number of changes of each type and in each group */
+	public static final int COUNTS = 1;
+	/** Proportion of time in each state */
+	public static final int PROPORTIONS = 2;
+	/** theta of each type */
+	public static final int THETA = 4;
+	/** theta_ss of each group */
+	public static final int THETA_SS = 8;
+	/** All the quantities */
+	public static final int ALL = COUNTS | PROPORTIONS | THETA | THETA_SS;
+	/** Names of the quantities of --report, in the order of the bits */
+	private static final String[] NAMES = {"counts", "proportions", "theta", "theta_ss"};
+
+	/** Size of the buffer of the file */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Layout of the matrices */
+	private SampleLayout layout;
+	/** Number of branches */
+	private int branchNum;
+	/** Number of iterations */
+	private int C;
+	/** Name of each matrix */
+	private ArrayList<String> quantities = new ArrayList<String>();
+	/** Number of types of each matrix */
+	private ArrayList<Integer> numTypes = new ArrayList<Integer>();
+	/** Values of each matrix, int[] or double[] */
+	private ArrayList<Object> matrices = new ArrayList<Object>();
+
+	/**
+	 * Constructor of an empty report
+	 * @param branchNum number of branches
+	 * @param C number of iterations
+	 */
+	public ReportExporter(int branchNum, int C) {
+		this.layout = new SampleLayout(branchNum, C);
+		this.branchNum = branchNum;
+		this.C = C;
+	}
+
+	/**
+	 * Parse the quantities of --report
+	 * @param list comma-separated list of counts, proportions, theta, theta_ss, or all
+	 * @return bits of the quantities
+	 * @throws IllegalArgumentException for an unknown quantity
+	 */
+	public static int parseQuantities(String list) {
+		int bits = 0;
+		for (String quantity : list.split(",")) {
+			if (quantity.equals("all")) {
+				bits |= ALL;
+				continue;
+			}
+			int bit = -1;
+			for (int i = 0; i < NAMES.length; i++) {
+				if (NAMES[i].equals(quantity)) {
+					bit = 1 << i;
+				}
+			}
+			if (bit < 0) {
+				throw new IllegalArgumentException("--report must list counts, proportions, theta, theta_ss or all");
+			}
+			bits |= bit;
+		}
+		return bits;
+	}
+
+	/**
+	 * Add a matrix of ints
+	 * @param quantity name of the matrix
+	 * @param a values in the layout of SampleLayout
+	 * @param types number of types
+	 */
+	public void add(String quantity, int[] a, int types) {
+		quantities.add(quantity);
+		numTypes.add(types);
+		matrices.add(a);
+	}
+
+	/**
+	 * Add a matrix of doubles
+	 * @param quantity name of the matrix
+	 * @param a values in the layout of SampleLayout
+	 * @param types number of types
+	 */
+	public void add(String quantity, double[] a, int types) {
+		quantities.add(quantity);
+		numTypes.add(types);
+		matrices.add(a);
+	}
+
+	/**
+	 * Write the report
+	 * @param file destination, compressed with gzip if its name ends with .gz
+	 * @param binary true for the binary matrices, false for TSV
+	 * @throws IOException
+	 */
+	public void write(File file, boolean binary) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+		}
+		if (binary) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+			try {
+				writeBinary(out);
+			} finally {
+				out.close();
+			}
+		} else {
+			Writer out = new BufferedWriter(new OutputStreamWriter(stream, "US-ASCII"), BUFFER_SIZE);
+			try {
+				writeTsv(out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Write the report as TSV, each line formatted into one char buffer
+	 * @param out destination
+	 * @throws IOException
+	 */
+	void writeTsv(Writer out) throws IOException {
+		StringBuilder header = new StringBuilder("quantity\ttype\tbranch");
+		for (int k = 0; k < C; k++) {
+			header.append('\t').append(k);
+		}
+		out.write(header.append('\n').toString());
+		DoubleFormatter formatter = DoubleFormatter.javaStyle();
+		char[] buf = new char[BUFFER_SIZE];
+		for (int m = 0; m < matrices.size(); m++) {
+			Object a = matrices.get(m);
+			for (int g = 0; g < numTypes.get(m); g++) {
+				for (int j = 0; j < branchNum; j++) {
+					out.write(quantities.get(m) + "\t" + g + "\t" + j);
+					int row = layout.offset(g, j);
+					int pos = 0;
+					for (int k = 0; k < C; k++) {
+						if (pos + DoubleFormatter.MAX_CHARS + 2 > buf.length) {
+							out.write(buf, 0, pos);
+							pos = 0;
+						}
+						buf[pos++] = '\t';
+						if (a instanceof int[]) {
+							pos = formatInt(((int[]) a)[row+k], buf, pos);
+						} else {
+							pos = formatter.format(((double[]) a)[row+k], buf, pos);
+						}
+					}
+					buf[pos++] = '\n';
+					out.write(buf, 0, pos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the report as binary matrices
+	 * @param out destination
+	 * @throws IOException
+	 */
+	void writeBinary(DataOutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.writeInt(branchNum);
+		out.writeInt(C);
+		out.writeInt(matrices.size());
+		for (int m = 0; m < matrices.size(); m++) {
+			Object a = matrices.get(m);
+			int length = numTypes.get(m) * layout.typeStride();
+			out.writeUTF(quantities.get(m));
+			out.writeByte((a instanceof int[]) ? 'I' : 'D');
+			out.writeInt(numTypes.get(m));
+			if (a instanceof int[]) {
+				int[] values = (int[]) a;
+				for (int i = 0; i < length; i++) {
+					out.writeInt(values[i]);
+				}
+			} else {
+				double[] values = (double[]) a;
+				for (int i = 0; i < length; i++) {
+					out.writeDouble(values[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Format an int into a buffer
+	 * @param v value
+	 * @param buf buffer, with at least 11 chars from pos
+	 * @param pos index of the first char
+	 * @return index after the last char
+	 */
+	private static int formatInt(int v, char[] buf, int pos) {
+		if (v == Integer.MIN_VALUE) {
+			String s = Integer.toString(v);
+			s.getChars(0, s.length(), buf, pos);
+			return pos + s.length();
+		}
+		if (v < 0) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		int end = pos + 1;
+		for (int t = v; t >= 10; t /= 10) {
+			end++;
+		}
+		for (int i = end - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + v % 10);
+			v /= 10;
+		}
+		return end;
+	}
+}
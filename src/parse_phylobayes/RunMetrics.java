@@ -0,0 +1,338 @@
+package parse_phylobayes;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * Registry of the metrics of a run of MappingParser: the time spent in each stage, the number of sites,
+ * trees and bytes read, and the bytes allocated by each thread (ThreadMXBean of HotSpot).
+ * Each thread records into its own Recorder, without lock; the registry sums the recorders for the periodic
+ * log line and the final JSON summary. The log reads the counters of the running threads without
+ * synchronization, so a line may be a little behind; the summary is exact once the threads are joined.
+ * <pre>
+ *   RunMetrics.Recorder rec = metrics.recorder();
+ *   long t = System.nanoTime();
+ *   src.openSite(i);
+ *   t = rec.stop(RunMetrics.READ, t);
+ * </pre>
+ * The stages: read (open a site: map the file or wait for the prefetcher), tokenize (scan and fill the trees,
+ * including the page faults of the mapped file), classify (SingleSiteParser, TripletParser,
+ * ContextSiteParser), accumulate (SiteAccumulator), theta, covariance and output (o.estb files,
+ * substitutionLength.txt, report). The time of a stage is summed over the threads.
+ * @author Hui-Jie
+ *
+ */
+public class RunMetrics {
+
+	/** Open a site */
+	public static final int READ = 0;
+	/** Scan and fill the trees */
+	public static final int TOKENIZE = 1;
+	/** Classify the changes of the trees */
+	public static final int CLASSIFY = 2;
+	/** Add the trees to the sums */
+	public static final int ACCUMULATE = 3;
+	/** Compute theta and theta_ss */
+	public static final int THETA = 4;
+	/** Compute the covariance matrices */
+	public static final int COVARIANCE = 5;
+	/** Write the outputs */
+	public static final int OUTPUT = 6;
+	/** Names of the stages in the log and the summary */
+	static final String[] STAGES = {"read", "tokenize", "classify", "accumulate", "theta", "covariance", "output"};
+
+	/** System.nanoTime() when the registry was created */
+	private long startTime;
+	/** Number of threads of the run */
+	private int threads;
+	/** Recorders of all the threads that recorded something */
+	private ArrayList<Recorder> recorders = new ArrayList<Recorder>();
+	/** Recorder of each thread */
+	private ThreadLocal<Recorder> local = new ThreadLocal<Recorder>();
+	/** Thread of the periodic log, null if there is no log */
+	private Thread logger;
+
+	/**
+	 * Constructor
+	 * @param threads number of threads of the run (--threads)
+	 */
+	public RunMetrics(int threads) {
+		this.startTime = System.nanoTime();
+		this.threads = threads;
+	}
+
+	/**
+	 * Return the recorder of the current thread
+	 * @return recorder, registered the first time
+	 */
+	public Recorder recorder() {
+		Recorder rec = local.get();
+		if (rec == null) {
+			rec = new Recorder(Thread.currentThread());
+			local.set(rec);
+			synchronized (recorders) {
+				recorders.add(rec);
+			}
+		}
+		return rec;
+	}
+
+	/**
+	 * Print a log line every period on a daemon thread, until stopLog()
+	 * @param seconds period
+	 * @param out destination, e.g. System.out
+	 */
+	public void startLog(final int seconds, final PrintStream out) {
+		logger = new Thread("metrics") {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(seconds * 1000L);
+						out.println(logLine());
+					}
+				} catch (InterruptedException e) {
+					//stopLog()
+				}
+			}
+		};
+		logger.setDaemon(true);
+		logger.start();
+	}
+
+	/**
+	 * Stop the periodic log
+	 */
+	public void stopLog() {
+		if (logger != null) {
+			logger.interrupt();
+			logger = null;
+		}
+	}
+
+	/**
+	 * Return the recorders registered so far
+	 * @return copy of the list
+	 */
+	private ArrayList<Recorder> snapshot() {
+		synchronized (recorders) {
+			return new ArrayList<Recorder>(recorders);
+		}
+	}
+
+	/**
+	 * Return the totals over the recorders: the stages, then sites, trees, bytes read and bytes allocated
+	 * @param all recorders
+	 * @return totals
+	 */
+	private static long[] totals(ArrayList<Recorder> all) {
+		long[] total = new long[STAGES.length + 4];
+		for (Recorder rec : all) {
+			for (int s = 0; s < STAGES.length; s++) {
+				total[s] += rec.nanos[s];
+			}
+			total[STAGES.length] += rec.sites;
+			total[STAGES.length + 1] += rec.trees;
+			total[STAGES.length + 2] += rec.bytes;
+			total[STAGES.length + 3] += Math.max(0, rec.allocated);
+		}
+		return total;
+	}
+
+	/**
+	 * Return a log line of the totals so far, e.g.
+	 * "[metrics 60 s] 1200 sites (20.0/s), 2400000 trees, 1534.2 MB (25.6 MB/s), read 1.2 s, tokenize 40.3 s, ..."
+	 * @return log line
+	 */
+	public String logLine() {
+		long[] total = totals(snapshot());
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double mb = total[STAGES.length + 2] / (1024.0 * 1024.0);
+		StringBuilder line = new StringBuilder(String.format("[metrics %.0f s] %d sites (%.1f/s), %d trees, %.1f MB (%.1f MB/s)",
+				seconds, total[STAGES.length], total[STAGES.length] / seconds, total[STAGES.length + 1], mb, mb / seconds));
+		for (int s = 0; s < STAGES.length; s++) {
+			line.append(String.format(", %s %.1f s", STAGES[s], total[s] / 1e9));
+		}
+		line.append(String.format(", allocated %.1f MB", total[STAGES.length + 3] / (1024.0 * 1024.0)));
+		return line.toString();
+	}
+
+	/**
+	 * Return the summary of the run as JSON: totals, rates, peak heap and the metrics of each thread
+	 * @return JSON object
+	 */
+	public String toJson() {
+		ArrayList<Recorder> all = snapshot();
+		long[] total = totals(all);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"elapsed_seconds\": ").append(seconds).append(",\n");
+		json.append("  \"threads\": ").append(threads).append(",\n");
+		json.append("  \"sites\": ").append(total[STAGES.length]).append(",\n");
+		json.append("  \"trees\": ").append(total[STAGES.length + 1]).append(",\n");
+		json.append("  \"bytes_read\": ").append(total[STAGES.length + 2]).append(",\n");
+		json.append("  \"sites_per_second\": ").append(total[STAGES.length] / seconds).append(",\n");
+		json.append("  \"bytes_per_second\": ").append(total[STAGES.length + 2] / seconds).append(",\n");
+		json.append("  \"allocated_bytes\": ").append(total[STAGES.length + 3]).append(",\n");
+		json.append("  \"peak_heap_bytes\": ").append(peakHeap()).append(",\n");
+		json.append("  \"max_heap_bytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+		json.append("  \"stage_seconds\": ");
+		appendStages(json, total);
+		json.append(",\n  \"per_thread\": [");
+		for (int t = 0; t < all.size(); t++) {
+			Recorder rec = all.get(t);
+			json.append((t == 0) ? "\n" : ",\n");
+			json.append("    {\"thread\": \"").append(escape(rec.threadName)).append("\"");
+			json.append(", \"sites\": ").append(rec.sites);
+			json.append(", \"trees\": ").append(rec.trees);
+			json.append(", \"bytes_read\": ").append(rec.bytes);
+			json.append(", \"allocated_bytes\": ").append(rec.allocated);
+			json.append(", \"stage_seconds\": ");
+			appendStages(json, rec.nanos);
+			json.append("}");
+		}
+		json.append("\n  ]\n}\n");
+		return json.toString();
+	}
+
+	/**
+	 * Write the JSON summary
+	 * @param file destination
+	 * @throws IOException
+	 */
+	public void writeJson(File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.write(toJson());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void appendStages(StringBuilder json, long[] nanos) {
+		json.append("{");
+		for (int s = 0; s < STAGES.length; s++) {
+			json.append((s == 0) ? "\"" : ", \"").append(STAGES[s]).append("\": ").append(nanos[s] / 1e9);
+		}
+		json.append("}");
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Return the sum of the peak usage of the heap memory pools
+	 * @return bytes
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * Metrics of one thread. Only the owner thread writes them.
+	 */
+	public static class Recorder {
+
+		/** Thread MXBean of HotSpot that measures the allocation of a thread, null if not supported */
+		private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+		/** Time spent in each stage, nanoseconds */
+		private long[] nanos = new long[STAGES.length];
+		/** Number of sites or windows processed */
+		private long sites;
+		/** Number of trees parsed */
+		private long trees;
+		/** Number of bytes read */
+		private long bytes;
+		/** Bytes allocated by the thread since the recorder was created, -1 if not supported */
+		private long allocated = -1;
+		/** Bytes allocated by the thread when the recorder was created */
+		private long allocatedStart;
+		/** Id of the thread */
+		private long threadId;
+		/** Name of the thread */
+		private String threadName;
+
+		private Recorder(Thread thread) {
+			this.threadId = thread.getId();
+			this.threadName = thread.getName();
+			this.allocatedStart = threadAllocated();
+		}
+
+		/**
+		 * Add the time since start to a stage
+		 * @param stage READ, TOKENIZE, CLASSIFY, ACCUMULATE, THETA, COVARIANCE or OUTPUT
+		 * @param start System.nanoTime() at the start of the stage
+		 * @return System.nanoTime() now, the start of the next stage
+		 */
+		public long stop(int stage, long start) {
+			long now = System.nanoTime();
+			nanos[stage] += now - start;
+			return now;
+		}
+
+		/**
+		 * Count parsed trees
+		 * @param n number of trees
+		 */
+		public void trees(int n) {
+			trees += n;
+		}
+
+		/**
+		 * Count a processed site and update the allocated bytes of the thread
+		 * @param bytesRead number of bytes read for the site
+		 */
+		public void site(long bytesRead) {
+			sites++;
+			bytes += bytesRead;
+			updateAllocation();
+		}
+
+		/**
+		 * Update the bytes allocated by the thread; call it from the thread before it ends, the allocation of
+		 * a terminated thread cannot be read
+		 */
+		public void updateAllocation() {
+			long now = threadAllocated();
+			if (now >= 0 && allocatedStart >= 0) {
+				allocated = now - allocatedStart;
+			}
+		}
+
+		private long threadAllocated() {
+			return (ALLOCATION == null) ? -1 : ALLOCATION.getThreadAllocatedBytes(threadId);
+		}
+
+		private static com.sun.management.ThreadMXBean allocationBean() {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+				return null;
+			}
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+			if (!hotspot.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if (!hotspot.isThreadAllocatedMemoryEnabled()) {
+				hotspot.setThreadAllocatedMemoryEnabled(true);
+			}
+			return hotspot;
+		}
+	}
+}
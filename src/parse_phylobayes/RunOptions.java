@@ -0,0 +1,401 @@
+package parse_phylobayes;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Optional flags of MappingParser, given after or between the positional arguments:
+ * <pre>
+ *   --input-dir dir     directory that contains the .map files (default: current directory)
+ *   --threads n         number of threads that process the sites (default: 1)
+ *   --sites a:b         process only the sites a to b-1 (option 1) or the windows starting at a to b-1
+ *                       (options 2 and 3) and write a partial file instead of the outputs, see PartialStatistics
+ *   --partial file      name of the partial file (default: chain.sites_a-b.partial)
+ *   --context k         number of sites in the window of option 3, odd, 3 to 9 (default: 5)
+ *   --moments mode      stored: keep theta of all the iterations (default)
+ *                       streaming: compute the means and covariance matrices chunk by chunk of iterations
+ *                       without storing theta and theta_ss, same outputs
+ *   --precision p       number of fraction digits of the covariance matrices, 0 to 17 (default: 17), or
+ *                       shortest: the shortest digits that read back as the same double
+ *   --report list       write the samples of each type, branch and iteration of the quantities of the list,
+ *                       comma-separated: counts, proportions, theta, theta_ss or all (default: no report),
+ *                       see ReportExporter; theta and theta_ss need --moments stored
+ *   --report-format f   tsv or binary (default: tsv)
+ *   --report-file file  name of the report, compressed with gzip if it ends with .gz
+ *                       (default: chain.report.tsv or chain.report.bin)
+ *   --print-screen yes  print the sums of printToScreen() to the screen (default: no)
+ *   --metrics-interval s
+ *                       print a log line of the metrics of the run every s seconds, 0 for none (default: 60 on the
+ *                       command line, 0 for the options made by the constructor)
+ *   --metrics file      write the JSON summary of the metrics to file at the end of the run, see RunMetrics
+ * </pre>
+ * @author Hui-Jie
+ *
+ */
+public class RunOptions {
+
+	/** Period of the log of the metrics of a command line without --metrics-interval */
+	public static final int DEFAULT_METRICS_INTERVAL = 60;
+
+	/** Directory that contains the .map files */
+	private File inputDir = new File(".");
+	/** Number of threads that process the sites */
+	private int threads = 1;
+	/** First site (option 1) or window (options 2 and 3) to process */
+	private int sitesFrom = 0;
+	/** End of the sites to process (exclusive), Integer.MAX_VALUE for all */
+	private int sitesTo = Integer.MAX_VALUE;
+	/** True if only a shard of the sites is processed */
+	private boolean shard = false;
+	/** Name of the partial file, null for the default name */
+	private File partialFile;
+	/** Number of sites in the window of option 3 */
+	private int contextWidth = 5;
+	/** True if the moments of theta are computed without storing theta */
+	private boolean streaming = false;
+	/** Number of fraction digits of the covariance matrices, DoubleFormatter.SHORTEST for the shortest digits */
+	private int precision = DoubleFormatter.MAX_PRECISION;
+	/** Quantities of the report, see ReportExporter, 0 for no report */
+	private int report = 0;
+	/** True for the binary report, false for TSV */
+	private boolean reportBinary = false;
+	/** Name of the report, null for the default name */
+	private File reportFile;
+	/** True if the sums of printToScreen() are printed */
+	private boolean printScreen = false;
+	/** Period of the log of the metrics in seconds, 0 for no log */
+	private int metricsInterval = 0;
+	/** JSON summary of the metrics, null for none */
+	private File metricsFile;
+	/** Positional arguments */
+	private ArrayList<String> positional = new ArrayList<String>();
+
+	/**
+	 * Separate the flags from the positional arguments.
+	 * @param args command line arguments
+	 * @return options
+	 * @throws IllegalArgumentException for an unknown flag or a flag without value
+	 */
+	public static RunOptions parse(String[] args) {
+		RunOptions options = new RunOptions();
+		options.setMetricsInterval(DEFAULT_METRICS_INTERVAL);
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				options.positional.add(args[i]);
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			}
+			if (args[i].equals("--input-dir")) {
+				options.setInputDir(new File(args[++i]));
+			} else if (args[i].equals("--threads")) {
+				options.setThreads(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--sites")) {
+				String[] range = args[++i].split(":");
+				if (range.length != 2) {
+					throw new IllegalArgumentException("--sites must be a:b");
+				}
+				options.setSites(Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+			} else if (args[i].equals("--partial")) {
+				options.setPartialFile(new File(args[++i]));
+			} else if (args[i].equals("--context")) {
+				options.setContextWidth(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--moments")) {
+				String mode = args[++i];
+				if (!mode.equals("stored") && !mode.equals("streaming")) {
+					throw new IllegalArgumentException("--moments must be stored or streaming");
+				}
+				options.setStreaming(mode.equals("streaming"));
+			} else if (args[i].equals("--precision")) {
+				String precision = args[++i];
+				options.setPrecision(precision.equals("shortest") ? DoubleFormatter.SHORTEST : Integer.parseInt(precision));
+			} else if (args[i].equals("--report")) {
+				options.setReport(ReportExporter.parseQuantities(args[++i]));
+			} else if (args[i].equals("--report-format")) {
+				String format = args[++i];
+				if (!format.equals("tsv") && !format.equals("binary")) {
+					throw new IllegalArgumentException("--report-format must be tsv or binary");
+				}
+				options.setReportBinary(format.equals("binary"));
+			} else if (args[i].equals("--report-file")) {
+				options.setReportFile(new File(args[++i]));
+			} else if (args[i].equals("--print-screen")) {
+				String print = args[++i];
+				if (!print.equals("yes") && !print.equals("no")) {
+					throw new IllegalArgumentException("--print-screen must be yes or no");
+				}
+				options.setPrintScreen(print.equals("yes"));
+			} else if (args[i].equals("--metrics-interval")) {
+				options.setMetricsInterval(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--metrics")) {
+				options.setMetricsFile(new File(args[++i]));
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (options.isStreaming() && (options.getReport() & (ReportExporter.THETA | ReportExporter.THETA_SS)) != 0) {
+			throw new IllegalArgumentException("--report theta and theta_ss need --moments stored");
+		}
+		return options;
+	}
+
+	/**
+	 * Return the positional arguments
+	 * @return positional arguments
+	 */
+	public ArrayList<String> getPositional() {
+		return positional;
+	}
+
+	/**
+	 * Return the directory that contains the .map files
+	 * @return inputDir
+	 */
+	public File getInputDir() {
+		return inputDir;
+	}
+
+	/**
+	 * Set the directory that contains the .map files
+	 * @param inputDir directory
+	 */
+	public void setInputDir(File inputDir) {
+		this.inputDir = inputDir;
+	}
+
+	/**
+	 * Return the number of threads that process the sites
+	 * @return threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads that process the sites
+	 * @param threads number of threads, at least 1
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("--threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Process only a shard of the sites
+	 * @param from first site (option 1) or window (options 2 and 3)
+	 * @param to end of the shard (exclusive)
+	 */
+	public void setSites(int from, int to) {
+		if (from < 0 || to < from) {
+			throw new IllegalArgumentException("--sites a:b needs 0 <= a <= b");
+		}
+		this.sitesFrom = from;
+		this.sitesTo = to;
+		this.shard = true;
+	}
+
+	/**
+	 * Return the first site or window to process
+	 * @return sitesFrom
+	 */
+	public int getSitesFrom() {
+		return sitesFrom;
+	}
+
+	/**
+	 * Return the end of the sites to process (exclusive), Integer.MAX_VALUE for all
+	 * @return sitesTo
+	 */
+	public int getSitesTo() {
+		return sitesTo;
+	}
+
+	/**
+	 * Return true if only a shard of the sites is processed
+	 * @return shard
+	 */
+	public boolean isShard() {
+		return shard;
+	}
+
+	/**
+	 * Return the name of the partial file
+	 * @param name filename prefix
+	 * @param to end of the shard, clipped to the number of sites
+	 * @return partial file
+	 */
+	public File getPartialFile(String name, int to) {
+		if (partialFile != null) {
+			return partialFile;
+		}
+		return new File(name + ".sites_" + sitesFrom + "-" + to + ".partial");
+	}
+
+	/**
+	 * Set the name of the partial file
+	 * @param partialFile partial file
+	 */
+	public void setPartialFile(File partialFile) {
+		this.partialFile = partialFile;
+	}
+
+	/**
+	 * Return the number of sites in the window of option 3
+	 * @return contextWidth
+	 */
+	public int getContextWidth() {
+		return contextWidth;
+	}
+
+	/**
+	 * Set the number of sites in the window of option 3
+	 * @param contextWidth odd number of sites, 3 to ContextTable.MAX_WIDTH
+	 */
+	public void setContextWidth(int contextWidth) {
+		if (contextWidth < 3 || contextWidth > ContextTable.MAX_WIDTH || contextWidth % 2 == 0) {
+			throw new IllegalArgumentException("--context must be odd, 3 to " + ContextTable.MAX_WIDTH);
+		}
+		this.contextWidth = contextWidth;
+	}
+
+	/**
+	 * Return true if the moments of theta are computed without storing theta (--moments streaming)
+	 * @return streaming
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Compute the moments of theta without storing theta
+	 * @param streaming true for --moments streaming
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Return the number of fraction digits of the covariance matrices
+	 * @return precision, DoubleFormatter.SHORTEST for the shortest digits
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Set the number of fraction digits of the covariance matrices
+	 * @param precision 0 to DoubleFormatter.MAX_PRECISION, or DoubleFormatter.SHORTEST
+	 */
+	public void setPrecision(int precision) {
+		if (precision != DoubleFormatter.SHORTEST && (precision < 0 || precision > DoubleFormatter.MAX_PRECISION)) {
+			throw new IllegalArgumentException("--precision must be 0 to " + DoubleFormatter.MAX_PRECISION + " or shortest");
+		}
+		this.precision = precision;
+	}
+
+	/**
+	 * Return the quantities of the report
+	 * @return bits of ReportExporter, 0 for no report
+	 */
+	public int getReport() {
+		return report;
+	}
+
+	/**
+	 * Set the quantities of the report
+	 * @param report bits of ReportExporter, 0 for no report
+	 */
+	public void setReport(int report) {
+		this.report = report;
+	}
+
+	/**
+	 * Return true for the binary report, false for TSV
+	 * @return reportBinary
+	 */
+	public boolean isReportBinary() {
+		return reportBinary;
+	}
+
+	/**
+	 * Set the format of the report
+	 * @param reportBinary true for --report-format binary
+	 */
+	public void setReportBinary(boolean reportBinary) {
+		this.reportBinary = reportBinary;
+	}
+
+	/**
+	 * Return the name of the report
+	 * @param name filename prefix
+	 * @return report file
+	 */
+	public File getReportFile(String name) {
+		if (reportFile != null) {
+			return reportFile;
+		}
+		return new File(name + (reportBinary ? ".report.bin" : ".report.tsv"));
+	}
+
+	/**
+	 * Set the name of the report
+	 * @param reportFile report file, compressed with gzip if it ends with .gz
+	 */
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	/**
+	 * Return true if the sums of printToScreen() are printed
+	 * @return printScreen
+	 */
+	public boolean isPrintScreen() {
+		return printScreen;
+	}
+
+	/**
+	 * Print the sums of printToScreen() to the screen
+	 * @param printScreen true for --print-screen yes
+	 */
+	public void setPrintScreen(boolean printScreen) {
+		this.printScreen = printScreen;
+	}
+
+	/**
+	 * Return the period of the log of the metrics
+	 * @return seconds, 0 for no log
+	 */
+	public int getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * Set the period of the log of the metrics
+	 * @param metricsInterval seconds, 0 for no log
+	 */
+	public void setMetricsInterval(int metricsInterval) {
+		if (metricsInterval < 0) {
+			throw new IllegalArgumentException("--metrics-interval must be at least 0");
+		}
+		this.metricsInterval = metricsInterval;
+	}
+
+	/**
+	 * Return the file of the JSON summary of the metrics
+	 * @return file, null for none
+	 */
+	public File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Set the file of the JSON summary of the metrics
+	 * @param metricsFile file
+	 */
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+}
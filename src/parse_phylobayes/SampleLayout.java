@@ -0,0 +1,130 @@
+package parse_phylobayes;
+
+/**
+ * Layout of the flat arrays that hold a quantity for each type (of change, state or group), each branch and
+ * each iteration of the MCMC, e.g. the number of changes or theta. The value of type k on branch l in
+ * iteration j is at a[(k * branchNum + l) * C + j]: the C iterations of a (type, branch) row are contiguous,
+ * which is the order of the theta and covariance kernels of MappingParser (one pass over the iterations of
+ * a row, dot products of two rows of the same type). Quantities without type, e.g. the branch lengths,
+ * use type 0.
+ * toJagged() copies a flat array into the [type][branch][iteration] arrays returned by the getters.
+ * The sizes are checked when the arrays are allocated, so that the offsets of an allocated array never overflow.
+ * @author Hui-Jie
+ *
+ */
+public class SampleLayout {
+
+	/** Number of branches */
+	private int branchNum;
+	/** Number of iterations */
+	private int C;
+
+	/**
+	 * Constructor
+	 * @param branchNum number of branches
+	 * @param C number of iterations
+	 */
+	public SampleLayout(int branchNum, int C) {
+		this.branchNum = branchNum;
+		this.C = C;
+		size(1);
+	}
+
+	/**
+	 * Return the index of the first iteration of a row
+	 * @param type index of the type
+	 * @param branch index of the branch
+	 * @return (type * branchNum + branch) * C
+	 */
+	public int offset(int type, int branch) {
+		return (type * branchNum + branch) * C;
+	}
+
+	/**
+	 * Return the distance between the rows of two consecutive types on the same branch
+	 * @return branchNum * C
+	 */
+	public int typeStride() {
+		return branchNum * C;
+	}
+
+	/**
+	 * Allocate a flat array of doubles
+	 * @param numTypes number of types
+	 * @return array of numTypes x branchNum x C
+	 */
+	public double[] newDoubles(int numTypes) {
+		return new double[size(numTypes)];
+	}
+
+	/**
+	 * Allocate a flat array of ints
+	 * @param numTypes number of types
+	 * @return array of numTypes x branchNum x C
+	 */
+	public int[] newInts(int numTypes) {
+		return new int[size(numTypes)];
+	}
+
+	/**
+	 * Return the length of a flat array of some types
+	 * @param numTypes number of types
+	 * @return numTypes x branchNum x C
+	 * @throws IllegalArgumentException if the length does not fit in an int
+	 */
+	private int size(int numTypes) {
+		try {
+			return Math.multiplyExact(Math.multiplyExact(numTypes, branchNum), C);
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException(numTypes + " types x " + branchNum + " branches x " + C
+					+ " iterations do not fit in an array, use --moments streaming to keep theta by chunks of"
+					+ " iterations, or fewer iterations");
+		}
+	}
+
+	/**
+	 * Copy a flat array into [type][branch][iteration] arrays
+	 * @param a flat array of this layout
+	 * @return copy
+	 */
+	public double[][][] toJagged(double[] a) {
+		double[][][] jagged = new double[a.length / typeStride()][branchNum][C];
+		for (int k = 0; k < jagged.length; k++) {
+			for (int l = 0; l < branchNum; l++) {
+				System.arraycopy(a, offset(k, l), jagged[k][l], 0, C);
+			}
+		}
+		return jagged;
+	}
+
+	/**
+	 * Copy a flat array into [type][branch][iteration] arrays
+	 * @param a flat array of this layout
+	 * @return copy
+	 */
+	public int[][][] toJagged(int[] a) {
+		int[][][] jagged = new int[a.length / typeStride()][branchNum][C];
+		for (int k = 0; k < jagged.length; k++) {
+			for (int l = 0; l < branchNum; l++) {
+				System.arraycopy(a, offset(k, l), jagged[k][l], 0, C);
+			}
+		}
+		return jagged;
+	}
+
+	/**
+	 * Return the number of branches
+	 * @return branchNum
+	 */
+	public int getBranchNum() {
+		return branchNum;
+	}
+
+	/**
+	 * Return the number of iterations
+	 * @return C
+	 */
+	public int getC() {
+		return C;
+	}
+}
@@ -35,7 +35,8 @@ public class SingleSiteParser implements SiteParser {
      *   group 3: T->G, A->C
      *   group 4: G->A, C->T
      *   group 5: A->G, T->C
-     */                                            0       1     2      3      4      5
+     */
+    //                                             0      1      2      3      4      5
     public static final String[] GROUP_ORDER = {"GCCG","GTCA","TAAT","TGAC","GACT","AGTC"};
 	
     private int[][] changesInGroups; //dim = 6 x (# of branches)
@@ -54,10 +55,7 @@ public class SingleSiteParser implements SiteParser {
 		branchLengths = new double[tree.getNumBranches()];
 		propStates = new double[4][tree.getNumBranches()];
 		
-		setNumberOfChanges(computeNumberOfChanges());
-		setTimeOfStates(computeTimeOfStates());
-		setBranchLengths(computeBranchLength());
-		setPropStates(computePropState());
+		computeBranches();
 		setChangesInGroups(computeChangesInGroups());
 	}
 	
@@ -69,18 +67,27 @@ public class SingleSiteParser implements SiteParser {
 	}
 	
 	/**
-	 * Assign number of changes for each type of changes on each branch.
-	 * @return numberOfChanges
+	 * Assign number of changes for each type of changes, times and proportions of each nucleotide and
+	 * the branch length on each branch. The tree computes them in one pass over the events of each branch
+	 * (TransitionKernel); they are copied because the tree may be filled again with the next iteration.
 	 */
-	private int[][] computeNumberOfChanges() {
-		int[][] changes = new int[12][tree.getNumBranches()];
-		for (int i = 0; i < 12; i++) {
-			for (int j = 0; j < tree.getNumBranches(); j++) {
-				changes[i][j] = tree.getNumberOfChanges(SUBSTITUTION_ORDER[i].substring(0, 1),SUBSTITUTION_ORDER[i].substring(1, 2))[j];
+	private void computeBranches() {
+		int numBranches = branchLengths.length;
+		for (int from = 0; from < 4; from++) {
+			for (int to = 0; to < 4; to++) {
+				if (from != to) {
+					System.arraycopy(tree.getNumberOfChanges(NUCLEOTIDE_ORDER[from], NUCLEOTIDE_ORDER[to]), 0,
+							numberOfChanges[TransitionKernel.substitutionType(from, to)], 0, numBranches);
+				}
 			}
-		}		
-		return changes;
+		}
+		for (int i = 0; i < 4; i++) {
+			System.arraycopy(tree.getTimeOfState(NUCLEOTIDE_ORDER[i]), 0, timeOfStates[i], 0, numBranches);
+			System.arraycopy(tree.getPropState(NUCLEOTIDE_ORDER[i]), 0, propStates[i], 0, numBranches);
+		}
+		System.arraycopy(tree.getBranchLength(), 0, branchLengths, 0, numBranches);
 	}
+	
 	/**
 	 * Assign changes in each substitution groups on each branch.
 	 *  group 0: G->C, C->G, i.e. type 4 & 7
@@ -105,46 +112,6 @@ public class SingleSiteParser implements SiteParser {
 		return changes;
 	}
 	
-	/**
-	 * Assign times of each nucleotide for each type of changes on each branch.
-	 * @return timeOfStates
-	 */
-	private double[][] computeTimeOfStates() {
-		double[][] times = new double[4][tree.getNumBranches()];
-		for (int i = 0; i < 4; i++) {
-			for (int j = 0; j < tree.getNumBranches(); j++) {
-				times[i][j] = tree.getTimeOfState(NUCLEOTIDE_ORDER[i])[j];
-			}
-		}		
-		return times;
-	}
-	
-	/**
-	 * Assign branch lengths for each branch.
-	 * @return branchLengths
-	 */
-	private double[] computeBranchLength() {
-		double[] br = new double[tree.getNumBranches()];
-		for (int i = 0; i < tree.getNumBranches(); i++) {
-			br[i] = tree.getBranchLength()[i];
-		}
-		return br;
-	}
-	
-    /** 
-     * Compute the proportion of states on each branch.
-     * @return prop
-     */
-	private double[][] computePropState() {
-		double[][] prop = new double[4][tree.getNumBranches()];
-		for (int i = 0; i < 4; i++) {
-			for (int j = 0; j < tree.getNumBranches(); j++) {
-				prop[i][j] = tree.getPropState(NUCLEOTIDE_ORDER[i])[j];
-			}
-		}		
-		return prop;
-	}
-	
     /** 
      * Set proportion of states 
      * @param propStates to be set
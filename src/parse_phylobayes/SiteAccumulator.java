@@ -0,0 +1,173 @@
+package parse_phylobayes;
+
+/**
+ * Sums over sites of the statistics of each site (or triplet), for each branch and each iteration:
+ * number of changes, changes in groups, time in states, proportion of states, and the branch lengths.
+ * Each quantity is one flat array in the layout of SampleLayout.
+ * MappingParser gives each thread its own SiteAccumulator for a range of sites and merges them at the end,
+ * in the order of the ranges, so the result does not depend on the scheduling of the threads.
+ * @author Hui-Jie
+ *
+ */
+public class SiteAccumulator {
+
+	/** The number of types of changes. 12 for SingleSiteParser, 4 for TripletParser */
+	private int numTypeChanges;
+	/** The number of types of states. 4 for SingleSiteParser, 3 for TripletParser */
+	private int numTypeStates;
+	/** Number of groups of changes. 6 for SingleSiteParser, 9 for TripletParser */
+	private int numGroup;
+	/** Outgroup branch mask: node number in the unrooted trees -> branch index, -1 for outgroup branches */
+	private int[] branchMask;
+
+	/** Layout of the flat arrays: [type][branch][iteration] */
+	private SampleLayout layout;
+	/** Store number of changes */
+	private int[] numberOfChanges;
+	/** Store changes in each substitution group */
+	private int[] changesInGroups;
+	/** Store time of states */
+	private double[] timeStates;
+	/** Store proportion of states*/
+	private double[] propStates;
+	/** Store branch lengths */
+	private double[] br;
+
+	/**
+	 * Constructor
+	 * @param numTypeChanges number of types of changes
+	 * @param numTypeStates number of types of states
+	 * @param numGroup number of groups of changes
+	 * @param branchNum number of branches (outgroup removed)
+	 * @param C number of iterations
+	 * @param branchMask outgroup branch mask, see OutgroupSpec.branchMask()
+	 */
+	public SiteAccumulator(int numTypeChanges, int numTypeStates, int numGroup, int branchNum, int C, int[] branchMask) {
+		this.numTypeChanges = numTypeChanges;
+		this.numTypeStates = numTypeStates;
+		this.numGroup = numGroup;
+		this.branchMask = branchMask;
+		// 12 = # of substitution types for single nucleotide / adapt it so that it works for triplet
+		// 4 = # of nucleotide types for single site / adapt it so that it works for triplet
+		layout = new SampleLayout(branchNum, C);
+		numberOfChanges = layout.newInts(numTypeChanges);
+		changesInGroups = layout.newInts(numGroup);
+		timeStates = layout.newDoubles(numTypeStates);
+		br = layout.newDoubles(1);
+		propStates = layout.newDoubles(numTypeStates);
+	}
+
+	/**
+	 * Add the statistics of one site (or one triplet) in iteration j to the sums over all sites.
+	 * The SiteParser works on the trees with the outgroup, the outgroup branch mask maps its branches
+	 * to the branches of the tree without the outgroup and drops the outgroup branches.
+	 * @param parse statistics of the site
+	 * @param j index of the iteration
+	 */
+	public void add(SiteParser parse, int j) {
+		double[] parseBr = parse.getBranchLengths();
+		int[][] parseChanges = parse.getNumberOfChanges();
+		double[][] parseTimes = parse.getTimeOfStates();
+		double[][] parseProp = parse.getPropStates();
+		int[][] parseGroups = parse.getChangesInGroups();
+		int stride = layout.typeStride();
+		for (int m = 0; m < parse.numberOfBranches(); m++) {
+			int l = branchMask[m];
+			if (l < 0) {
+				continue; //outgroup branch
+			}
+			//index of iteration j on branch l for type 0, the next types are stride apart
+			int at = layout.offset(0, l) + j;
+        	br[at] = parseBr[m]; //br is the same for all sites in the same iteration
+        	// 4 = # of nucleotide types for single site, 3 for triplet
+        	for (int k = 0; k < numTypeStates; k++) {
+        		numberOfChanges[at + k * stride] += parseChanges[k][m];
+        		timeStates[at + k * stride] += parseTimes[k][m];
+        		propStates[at + k * stride] += parseProp[k][m];
+        	}//end k
+        	//12 = # of substitution types for single nucleotide, 4 for triplet
+        	for (int k = numTypeStates; k < numTypeChanges; k++) {
+        		numberOfChanges[at + k * stride] += parseChanges[k][m];
+        	}//end k
+        	for (int k = 0; k < numGroup; k++) {
+        		changesInGroups[at + k * stride] += parseGroups[k][m];
+        	}
+        }//end m
+	}
+
+	/**
+	 * Add the sums of another accumulator, which holds the sites that follow the sites of this accumulator.
+	 * The branch lengths are taken from the other accumulator if it has seen any site.
+	 * @param other accumulator of the next range of sites
+	 * @param hasSites true if other has seen at least one site
+	 */
+	public void merge(SiteAccumulator other, boolean hasSites) {
+		add(numberOfChanges, other.numberOfChanges);
+		add(changesInGroups, other.changesInGroups);
+		add(timeStates, other.timeStates);
+		add(propStates, other.propStates);
+		if (hasSites) {
+			System.arraycopy(other.br, 0, br, 0, br.length);
+		}
+	}
+
+	private static void add(int[] a, int[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] += b[i];
+		}
+	}
+
+	private static void add(double[] a, double[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] += b[i];
+		}
+	}
+
+	/**
+	 * Return the layout of the flat arrays
+	 * @return layout
+	 */
+	public SampleLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Return the number of changes: [type][branch][iteration], see SampleLayout
+	 * @return numberOfChanges
+	 */
+	public int[] getNumberOfChanges() {
+		return numberOfChanges;
+	}
+
+	/**
+	 * Return the number of changes in groups: [group][branch][iteration], see SampleLayout
+	 * @return changesInGroups
+	 */
+	public int[] getChangesInGroups() {
+		return changesInGroups;
+	}
+
+	/**
+	 * Return the time in states: [state][branch][iteration], see SampleLayout
+	 * @return timeStates
+	 */
+	public double[] getTimeStates() {
+		return timeStates;
+	}
+
+	/**
+	 * Return the proportion of states: [state][branch][iteration], see SampleLayout
+	 * @return propStates
+	 */
+	public double[] getPropStates() {
+		return propStates;
+	}
+
+	/**
+	 * Return the branch lengths: [branch][iteration], see SampleLayout
+	 * @return br
+	 */
+	public double[] getBranchLengths() {
+		return br;
+	}
+}
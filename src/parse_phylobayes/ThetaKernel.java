@@ -0,0 +1,119 @@
+package parse_phylobayes;
+
+/**
+ * Element-wise kernel of theta = number of changes / proportion of time and of its variance
+ * var = theta / proportion of time, for one row of iterations of the flat arrays of SampleLayout at a time.
+ * The row is staged: the changes and the time are loaded into scratch rows, theta and var are computed there
+ * and stored into the output. The loop of the computation has no call and one index for all its arrays, so
+ * that the JIT can compile it to SIMD instructions (superword): the case "no change and no time" of options 2
+ * and 3 is a select of the result, which the JIT compiles to a conditional move, and rows at different offsets
+ * of the flat arrays, which keep the JIT from vectorizing, are only read and written by the copies.
+ * The values are the same, bit for bit, as the scalar loops of MappingParser before the kernel.
+ * <pre>
+ *   kernel.loadTime(propStates, ...);
+ *   kernel.loadChanges(numberOfChanges, ...);
+ *   kernel.ratioOrZero();
+ *   kernel.store(theta, theta_var, ...);
+ * </pre>
+ * @author Hui-Jie
+ *
+ */
+public class ThetaKernel {
+
+	/** Number of iterations in a row */
+	private int length;
+	/** Number of changes of the row */
+	private double[] changes;
+	/** Proportion of time of the row */
+	private double[] time;
+	/** Scratch row for addTime() */
+	private double[] addend;
+	/** theta of the row */
+	private double[] theta;
+	/** Variance of theta of the row */
+	private double[] var;
+
+	/**
+	 * Constructor
+	 * @param length number of iterations in a row
+	 */
+	public ThetaKernel(int length) {
+		this.length = length;
+		this.changes = new double[length];
+		this.time = new double[length];
+		this.addend = new double[length];
+		this.theta = new double[length];
+		this.var = new double[length];
+	}
+
+	/**
+	 * Load the number of changes of a row
+	 * @param a number of changes, not negative
+	 * @param from index of the first iteration of the row
+	 */
+	public void loadChanges(int[] a, int from) {
+		for (int k = 0; k < length; k++) {
+			changes[k] = a[from+k];
+		}
+	}
+
+	/**
+	 * Load the proportion of time of a row
+	 * @param a proportion of time
+	 * @param from index of the first iteration of the row
+	 */
+	public void loadTime(double[] a, int from) {
+		System.arraycopy(a, from, time, 0, length);
+	}
+
+	/**
+	 * Add the proportion of time in another state to the loaded time, e.g. G+C
+	 * @param a proportion of time
+	 * @param from index of the first iteration of the row
+	 */
+	public void addTime(double[] a, int from) {
+		System.arraycopy(a, from, addend, 0, length);
+		for (int k = 0; k < length; k++) {
+			time[k] = time[k] + addend[k];
+		}
+	}
+
+	/**
+	 * theta = changes / time and var = theta / time; no change in no time gives NaN, as option 1 always did
+	 */
+	public void ratio() {
+		for (int k = 0; k < length; k++) {
+			double d = time[k];
+			double t = changes[k] / d;
+			theta[k] = t;
+			var[k] = t / d;
+		}
+	}
+
+	/**
+	 * theta = changes / time and var = theta / time, and theta = var = 0 when there is no change in no time
+	 * (options 2 and 3). Only that case is replaced, so that the results keep the bits of the division, e.g.
+	 * -0.0 for no change in a time that is slightly negative by rounding.
+	 */
+	public void ratioOrZero() {
+		for (int k = 0; k < length; k++) {
+			double c = changes[k];
+			double d = time[k];
+			boolean none = c == 0 && d == 0;
+			double t = none ? 0 : c / d;
+			theta[k] = t;
+			var[k] = none ? 0 : t / d;
+		}
+	}
+
+	/**
+	 * Store theta and var of the row
+	 * @param thetaOut theta
+	 * @param varOut variance of theta
+	 * @param from index of the first iteration of the row in thetaOut and varOut
+	 */
+	public void store(double[] thetaOut, double[] varOut, int from) {
+		System.arraycopy(theta, 0, thetaOut, from, length);
+		System.arraycopy(var, 0, varOut, from, length);
+	}
+}
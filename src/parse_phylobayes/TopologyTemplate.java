@@ -0,0 +1,137 @@
+package parse_phylobayes;
+
+/**
+ * Topology shared by all the trees of a run.
+ * Every mapping line of every .map file has the same topology and the same leaf names; only the states
+ * and the times change. The template is built once from the first tree of <chain>_0.map and fixes the
+ * Multidivtime node numbering (Tree.setNodeNum()).
+ * Later lines are read in "fill-in" mode: the MappingScanner scans the line and fill() writes only the
+ * states and the times into the TreeNodes of a Tree made by newTree(), in preorder. The object graph,
+ * postProcess() and setNodeNum() are not redone for each line.
+ * Before filling a tree, the fingerprint of the line (number of nodes and a hash of the parents and names)
+ * is compared with the fingerprint of the template, and a line with another topology is rejected.
+ * @author Hui-Jie
+ *
+ */
+public class TopologyTemplate {
+
+	/** Number of nodes */
+	private final int numNodes;
+	/** Parent of each node in preorder, -1 for the root */
+	private final int[] parent;
+	/** Name of each node in preorder */
+	private final String[] names;
+	/** Fingerprint of the topology, see MappingScanner.getTopologyHash() */
+	private final long fingerprint;
+
+	/**
+	 * Build the template from the last tree scanned.
+	 * @param scanner scanner holding the first tree
+	 */
+	public TopologyTemplate(MappingScanner scanner) {
+		this.numNodes = scanner.getNumNodes();
+		this.parent = new int[numNodes];
+		this.names = new String[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			parent[n] = scanner.getParent(n);
+			names[n] = (scanner.getNameLength(n) == 0) ? "" : scanner.getName(n);
+		}
+		this.fingerprint = scanner.getTopologyHash();
+	}
+
+	/**
+	 * Build the template from the parents and names of the nodes, e.g. read from a .mapbin file.
+	 * @param parent parent of each node in preorder, -1 for the root
+	 * @param names name of each node in preorder
+	 * @param fingerprint fingerprint of the topology, see MappingScanner.getTopologyHash()
+	 */
+	TopologyTemplate(int[] parent, String[] names, long fingerprint) {
+		this.numNodes = parent.length;
+		this.parent = parent.clone();
+		this.names = names.clone();
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Return the parent of a node
+	 * @param n index of the node (preorder)
+	 * @return parent, -1 for the root
+	 */
+	public int getParent(int n) {
+		return parent[n];
+	}
+
+	/**
+	 * Return the name of a node
+	 * @param n index of the node (preorder)
+	 * @return name
+	 */
+	public String getName(int n) {
+		return names[n];
+	}
+
+	/**
+	 * Return the number of nodes
+	 * @return numNodes
+	 */
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * Return the fingerprint of the topology
+	 * @return fingerprint
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Test if the last tree scanned has the topology of this template.
+	 * @param scanner scanner holding a tree
+	 * @return true if the number of nodes and the fingerprints are equal
+	 */
+	public boolean matches(MappingScanner scanner) {
+		return scanner.getNumNodes() == numNodes && scanner.getTopologyHash() == fingerprint;
+	}
+
+	/**
+	 * Create a tree with the topology, names and node numbers of the template (outgroup not removed).
+	 * The states and times are empty until the tree is filled.
+	 * @return tree
+	 */
+	public Tree newTree() {
+		TreeNode[] nodes = new TreeNode[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			nodes[n] = new TreeNode();
+			nodes[n].label = names[n];
+			nodes[n].setName(names[n]);
+		}
+		return MappingScanner.linkTree(nodes, parent);
+	}
+
+	/**
+	 * Write the states and times of the last tree scanned into a tree made by newTree().
+	 * @param tree tree made by newTree()
+	 * @param scanner scanner holding a tree with the topology of the template
+	 * @throws IllegalArgumentException if the topology of the scanned tree differs from the template
+	 */
+	public void fill(Tree tree, MappingScanner scanner) {
+		if (!matches(scanner)) {
+			throw new IllegalArgumentException("Topology of the tree differs from the first tree of the chain.");
+		}
+		//tree.nodes is in preorder, as the nodes of the scanner
+		for (int n = 0; n < numNodes; n++) {
+			TreeNode node = tree.nodes.get(n);
+			node.setState(scanner.getState(n));
+			node.setTime(scanner.getTime(n));
+			//the scanner has the events from the node up to its parent, the node from the parent down
+			int count = scanner.getEventCount(n);
+			node.setNumEvents(count);
+			for (int k = 0; k < count; k++) {
+				node.setEvent(count - 1 - k, scanner.getEventState(n, k), scanner.getEventTime(n, k));
+			}
+		}
+		tree.clearStatistics();
+	}
+}
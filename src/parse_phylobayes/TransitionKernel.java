@@ -0,0 +1,84 @@
+package parse_phylobayes;
+
+import java.util.Arrays;
+
+/**
+ * One-pass count of the substitutions and of the time in each nucleotide on a branch.
+ * The kernel walks the events of the branch once, from the parent node down to the node, and fills
+ * a 4 x 4 matrix of transition counts and a vector of the time spent in each of the 4 nucleotides,
+ * in the order of SingleSiteParser.NUCLEOTIDE_ORDER = {A, G, C, T}.
+ * The times of each nucleotide are summed in the same order as TreeNode.getTimeOfState(), so the
+ * results are identical to the per-type methods of TreeNode.
+ * States other than A, G, C, T are not counted.
+ * @author Hui-Jie
+ *
+ */
+public class TransitionKernel {
+
+	/** Number of nucleotides */
+	public static final int NUM_NUCLEOTIDES = 4;
+
+	/** ASCII code of a state -> index in {A, G, C, T}, -1 for other states */
+	private static final int[] NUCLEOTIDE_INDEX = new int[256];
+	static {
+		Arrays.fill(NUCLEOTIDE_INDEX, -1);
+		String order = "AGCT";
+		for (int i = 0; i < order.length(); i++) {
+			NUCLEOTIDE_INDEX[order.charAt(i)] = i;
+		}
+	}
+
+	/**
+	 * Return the index of a state in {A, G, C, T}
+	 * @param state ASCII code of the state
+	 * @return index, -1 if the state is not a nucleotide
+	 */
+	public static int nucleotideIndex(byte state) {
+		return NUCLEOTIDE_INDEX[state & 0xff];
+	}
+
+	/**
+	 * Return the index of a substitution in SingleSiteParser.SUBSTITUTION_ORDER
+	 * = {AG, AC, AT, GA, GC, GT, CA, CG, CT, TA, TG, TC}
+	 * @param from index of the starting nucleotide
+	 * @param to index of the ending nucleotide, different from from
+	 * @return substitution type
+	 */
+	public static int substitutionType(int from, int to) {
+		return 3 * from + (to < from ? to : to - 1);
+	}
+
+	/**
+	 * Count the transitions and the time in each nucleotide on the branch above a node.
+	 * @param node node at the lower end of the branch, not the root
+	 * @param counts 4 x 4 matrix of transition counts, counts[4 * from + to], overwritten
+	 * @param dwell time in each nucleotide, overwritten
+	 */
+	public static void count(TreeNode node, int[] counts, double[] dwell) {
+		for (int i = 0; i < NUM_NUCLEOTIDES * NUM_NUCLEOTIDES; i++) {
+			counts[i] = 0;
+		}
+		for (int i = 0; i < NUM_NUCLEOTIDES; i++) {
+			dwell[i] = 0;
+		}
+		int start = nucleotideIndex(node.parent().getStateCode());
+		int numEvents = node.getNumEvents();
+		for (int k = 0; k < numEvents; k++) {
+			int end = nucleotideIndex(node.getEventState(k));
+			if (start >= 0) {
+				dwell[start] += node.getEventTime(k);
+				if (end >= 0) {
+					counts[NUM_NUCLEOTIDES * start + end]++;
+				}
+			}
+			start = end;
+		}
+		if (start >= 0) {
+			dwell[start] += node.getTime();
+			int end = nucleotideIndex(node.getStateCode());
+			if (end >= 0) {
+				counts[NUM_NUCLEOTIDES * start + end]++;
+			}
+		}
+	}
+}
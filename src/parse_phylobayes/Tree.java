@@ -62,7 +62,7 @@ public class Tree {
 	 * Assign nodeNum to each node
      * Added by Hui-Jie
 	 */
-	private Map<Integer, TreeNode> nodesByNodeNum;
+	private TreeNode[] nodesByNodeNum;
 
 	/** key should be unique for each tree, set by object that creates trees  */
 	private int key;
@@ -80,6 +80,21 @@ public class Tree {
 	 */
 	private int height = 0;
 	
+	/** Branch lengths indexed by nodeNum, computed lazily by computeStatistics() */
+	private double[] branchLengths;
+	
+	/** Time in each nucleotide {A, G, C, T} on each branch: [nucleotide][nodeNum] */
+	private double[][] timeOfStates;
+	
+	/** Proportion of time in each nucleotide on each branch: [nucleotide][nodeNum] */
+	private double[][] propStates;
+	
+	/** Number of changes from one nucleotide to another on each branch: [4 * from + to][nodeNum] */
+	private int[][] transitionCounts;
+	
+	/** True if the statistics above are computed for the current states and paths of the nodes */
+	private boolean statisticsValid = false;
+	
 	/**
 	 * Default tree constructor.  Nodes are created by parser and added in later.
 	 *
@@ -88,7 +103,7 @@ public class Tree {
 		root = new TreeNode();
 		nodes = new ArrayList<TreeNode>();
 		nodesByName = new HashMap<String, TreeNode>();
-		nodesByNodeNum = new HashMap<Integer, TreeNode>();
+		nodesByNodeNum = new TreeNode[0];
 	}
 
 	/**
@@ -140,7 +155,7 @@ public class Tree {
 	 * @return Treenode referenced by the given nodeNum
 	 */
 	public TreeNode getNodeByNodeNum(int nodeNum) {
-		if (nodeNum >= nodes.size()) return null; return (TreeNode) nodesByNodeNum.get(nodeNum);
+		if (nodeNum < 0 || nodeNum >= nodesByNodeNum.length) return null; return nodesByNodeNum[nodeNum];
 	}
 	
 	/**
@@ -381,20 +396,22 @@ public class Tree {
 	 */
 	public void setNodeNum() {
 		int index = 0;
+		nodesByNodeNum = new TreeNode[nodes.size()];
 		for (int i = 0; i < nodes.size(); i++) {
 			if(nodes.get(i).isLeaf()) {
 				nodes.get(i).setNodeNum(index);
-				nodesByNodeNum.put(index, nodes.get(i));
+				nodesByNodeNum[index] = nodes.get(i);
 				index++;
 			}
 		}
 		for (int j = (nodes.size()-1); j >= 0; j--) {
 			if(!nodes.get(j).isLeaf()) {
 				nodes.get(j).setNodeNum(index);
-				nodesByNodeNum.put(index, nodes.get(j));
+				nodesByNodeNum[index] = nodes.get(j);
 				index++;
 			}
-		}			
+		}
+		clearStatistics();
 	}
 	
 	/**
@@ -443,7 +460,6 @@ public class Tree {
 			root.setNumberLeaves();
 			root.setExtremeLeaves();
 			numLeaves = numLeaves - taxa.length;
-			nodesByNodeNum = new HashMap<Integer, TreeNode>();
 			setNodeNum();
 		}
 	}
@@ -465,17 +481,65 @@ public class Tree {
 	}
 	
 	
+	/**
+	 * Forget the branch statistics computed so far. Must be called when the states or paths of the nodes change,
+	 * e.g. when a tree made by TopologyTemplate.newTree() is filled with the next tree of a .map file.
+	 */
+	public void clearStatistics() {
+		statisticsValid = false;
+	}
+	
+	/**
+	 * Compute the branch lengths, the time in each nucleotide and the number of changes between nucleotides
+	 * on every branch, walking the events of each branch once (TransitionKernel).
+	 * The arrays are reused when the tree is filled again.
+	 */
+	private void computeStatistics() {
+		int numBranch = nodes.size()-1;
+		int n = TransitionKernel.NUM_NUCLEOTIDES;
+		if (branchLengths == null || branchLengths.length != numBranch) {
+			branchLengths = new double[numBranch];
+			timeOfStates = new double[n][numBranch];
+			propStates = new double[n][numBranch];
+			transitionCounts = new int[n * n][numBranch];
+		}
+		int[] counts = new int[n * n];
+		double[] dwell = new double[n];
+		for (int i = 0; i < numBranch; i++) {
+			TreeNode node = nodesByNodeNum[i];
+			TransitionKernel.count(node, counts, dwell);
+			double br = node.getBranchLength();
+			branchLengths[i] = br;
+			for (int k = 0; k < n; k++) {
+				timeOfStates[k][i] = dwell[k];
+				propStates[k][i] = dwell[k] / br;
+			}
+			for (int k = 0; k < n * n; k++) {
+				transitionCounts[k][i] = counts[k];
+			}
+		}
+		statisticsValid = true;
+	}
+	
 	/**
 	 * Compute number of state changes on each branch. Assume each state is a character: {A, G, C, T}.
 	 * Branches are numbered by the node that ends the branch.
 	 * # of branches = # of nodes - 1.
 	 * Root has the last index, and it does not correspond to a branch.
+	 * The counts between nucleotides are computed once per tree; the array returned belongs to the tree
+	 * and must not be modified.
      * Added by Hui-Jie
 	 * @param from starting state
      * @param to ending state
      * @return an array of number of state changes 
 	 */
 	public int[] getNumberOfChanges(String from, String to) {
+		int f = TransitionKernel.nucleotideIndex(TreeNode.stateCode(from));
+		int t = TransitionKernel.nucleotideIndex(TreeNode.stateCode(to));
+		if (f >= 0 && t >= 0) {
+			if (!statisticsValid) computeStatistics();
+			return transitionCounts[TransitionKernel.NUM_NUCLEOTIDES * f + t];
+		}
 		int numBranch = nodes.size()-1;
 		int changes[] = new int[numBranch];
 		for (int i = 0; i < numBranch; i++) {
@@ -489,11 +553,17 @@ public class Tree {
 	 * Branches are numbered by the node that ends the branch.
 	 * # of branches = # of nodes - 1.
 	 * Root has the last index, and it does not correspond to a branch.
+	 * The times are computed once per tree; the array returned belongs to the tree and must not be modified.
      * Added by Hui-Jie
 	 * @param type state
      * @return an array of time duration 
 	 */
 	public double[] getTimeOfState(String type){
+		int k = TransitionKernel.nucleotideIndex(TreeNode.stateCode(type));
+		if (k >= 0) {
+			if (!statisticsValid) computeStatistics();
+			return timeOfStates[k];
+		}
 		int numBranch = nodes.size()-1;
 		double times[] = new double[numBranch];
 		for (int i = 0; i < numBranch; i++) {
@@ -507,16 +577,13 @@ public class Tree {
 	 * Branches are numbered by the node that ends the branch.
 	 * # of branches = # of nodes - 1.
 	 * Root has the last index, and it does not correspond to a branch.
+	 * The branch lengths are computed once per tree; the array returned belongs to the tree and must not be modified.
      * Added by Hui-Jie
 	 * @return an array of branch length
 	 */
 	public double[] getBranchLength() {
-		int numBranch = nodes.size()-1;
-		double br[] = new double[numBranch];
-		for (int i = 0; i < numBranch; i++) {
-			br[i] = getNodeByNodeNum(i).getBranchLength();
-		}
-		return br;
+		if (!statisticsValid) computeStatistics();
+		return branchLengths;
 	}
 	
 	/**
@@ -524,11 +591,17 @@ public class Tree {
 	 * * Branches are numbered by the node that ends the branch.
 	 * # of branches = # of nodes - 1.
 	 * Root has the last index, and it does not correspond to a branch.
+	 * The proportions are computed once per tree; the array returned belongs to the tree and must not be modified.
      * Added by Hui-Jie
 	 * @param type state
      * @return an array of time proportion
 	 */
 	public double[] getPropState(String type) {
+		int k = TransitionKernel.nucleotideIndex(TreeNode.stateCode(type));
+		if (k >= 0) {
+			if (!statisticsValid) computeStatistics();
+			return propStates[k];
+		}
 		int numBranch = nodes.size()-1;
 		double prop[] = new double[numBranch];
 		for (int i = 0; i < numBranch; i++) {
@@ -89,19 +89,25 @@ public class TreeNode {
 	/** The next postorder node. */
 	private TreeNode posorderNext = null;
 	
-	/** Store the state (ACTG  or codon state) of the node */
-	private String state = null;
+	/** Store the state (ACTG) of the node as its ASCII code, 0 if the node has no state */
+	private byte state = 0;
 	
-	/** Store the time to parent node */
+	/** Store the time from the last event of the path to this node (the whole branch if there is no event) */
 	private double time;
 
 	public String label;
 	
-	/** Store the state path to its parent node*/
-	public ArrayList<String> pathState; 
+	/** Store the states of the events on the branch, from the parent node to this node */
+	private byte[] eventState;
 	
-	/** Store the time path to its parent node */
-	public ArrayList<Double> pathTime;
+	/** Store the time spent before each event, from the parent node to this node */
+	private double[] eventTime;
+	
+	/** Number of path states on the branch */
+	private int numEvents;
+	
+	/** Number of path times on the branch, equal to numEvents once the path is complete */
+	private int numEventTimes;
 
 	/**
 	 * Default tree node constructor.
@@ -111,8 +117,8 @@ public class TreeNode {
 	 */
 	public TreeNode() {
 		children = new ArrayList<TreeNode>();
-		pathState = new ArrayList<String>();
-		pathTime = new ArrayList<Double>(); 
+		eventState = new byte[2];
+		eventTime = new double[2];
 	}
 	
 	/**
@@ -362,6 +368,14 @@ public class TreeNode {
      * @param String state
      */
     public void setState(String state) {
+    	this.state = stateCode(state);
+    }
+    
+    /**
+     *  Set the state of the node from its ASCII code
+     * @param state ASCII code of the state, 0 for no state
+     */
+    public void setState(byte state) {
     	this.state = state;
     }
     
@@ -370,9 +384,33 @@ public class TreeNode {
      *  Add by Hui-Jie
      */
     public String getState() {
+    	return MappingScanner.stateString(state);
+    }
+    
+    /**
+     *  Return the ASCII code of the state of the node, 0 if the node has no state
+     * @return state code
+     */
+    public byte getStateCode() {
     	return state;
     }
     
+    /**
+     *  Return the ASCII code of a single-character state
+     * @param state state
+     * @return code, 0 for null
+     * @throws IllegalArgumentException if the state is not a single ASCII character
+     */
+    static byte stateCode(String state) {
+    	if (state == null) {
+    		return 0;
+    	}
+    	if (state.length() != 1 || state.charAt(0) == 0 || state.charAt(0) >= 128) {
+    		throw new IllegalArgumentException("States must be single ASCII characters: " + state);
+    	}
+    	return (byte) state.charAt(0);
+    }
+    
     /**
      *  Set the time
      *  Add by Hui-Jie
@@ -392,12 +430,16 @@ public class TreeNode {
     
     
     /**
-     *  Add path state
+     *  Add path state. The path states are added from this node up to the parent node, in the order of
+     *  the Newick string (TreeParser); each new state is inserted before the states already stored.
      *  Add by Hui-Jie
      * @param state
      */
     public void addPathState(String state) {
-    	pathState.add(state);
+    	ensureCapacity(numEvents + 1);
+    	System.arraycopy(eventState, 0, eventState, 1, numEvents);
+    	eventState[0] = stateCode(state);
+    	numEvents++;
     }
     
     /**
@@ -406,7 +448,7 @@ public class TreeNode {
      *  @return size
      */
     public int getPathStateSize() {
-    	return pathState.size();
+    	return numEvents;
     }
     
     
@@ -416,16 +458,74 @@ public class TreeNode {
      *  @return size
      */
     public int getPathTimeSize() {
-    	return pathTime.size();
+    	return numEventTimes;
     }
     
     /**
-     *  Add path time
+     *  Add path time, from this node up to the parent node as addPathState()
      *  Add by Hui-Jie
      *  @param time
      */
     public void addPathTime(double time) {
-    	pathTime.add(time);
+    	ensureCapacity(numEventTimes + 1);
+    	System.arraycopy(eventTime, 0, eventTime, 1, numEventTimes);
+    	eventTime[0] = time;
+    	numEventTimes++;
+    }
+    
+    /**
+     *  Remove the path and make room for a path of n events, to be written by setEvent()
+     *  @param n number of events on the branch
+     */
+    public void setNumEvents(int n) {
+    	ensureCapacity(n);
+    	numEvents = n;
+    	numEventTimes = n;
+    }
+    
+    /**
+     *  Set the k-th event from the parent node
+     *  @param k index of the event, 0 is the event closest to the parent node
+     *  @param state ASCII code of the state after the event
+     *  @param time time spent before the event
+     */
+    public void setEvent(int k, byte state, double time) {
+    	eventState[k] = state;
+    	eventTime[k] = time;
+    }
+    
+    /**
+     *  Return the number of events on the branch
+     *  @return number of events
+     */
+    public int getNumEvents() {
+    	return numEvents;
+    }
+    
+    /**
+     *  Return the ASCII code of the state after the k-th event from the parent node
+     *  @param k index of the event
+     *  @return state code
+     */
+    public byte getEventState(int k) {
+    	return eventState[k];
+    }
+    
+    /**
+     *  Return the time spent before the k-th event from the parent node
+     *  @param k index of the event
+     *  @return time
+     */
+    public double getEventTime(int k) {
+    	return eventTime[k];
+    }
+    
+    private void ensureCapacity(int n) {
+    	if (n > eventState.length) {
+    		int length = Math.max(n, 2 * eventState.length);
+    		eventState = Arrays.copyOf(eventState, length);
+    		eventTime = Arrays.copyOf(eventTime, length);
+    	}
     }
 
     /**
@@ -434,12 +534,12 @@ public class TreeNode {
      *  @return state path
      */
     public ArrayList<String> getPathState() {
-    	ArrayList<String> states = new ArrayList<String>();
+    	ArrayList<String> states = new ArrayList<String>(numEvents + 2);
     	states.add(this.parent.getState());
-    	Collections.reverse(pathState);
-    	states.addAll(pathState);
-    	Collections.reverse(pathState);
-    	states.add(state);
+    	for (int k = 0; k < numEvents; k++) {
+    		states.add(MappingScanner.stateString(eventState[k]));
+    	}
+    	states.add(getState());
     	return states;
     }
     
@@ -449,10 +549,10 @@ public class TreeNode {
      *  @return time path
      */
     public ArrayList<Double> getPathTime() {
-    	ArrayList<Double> times = new ArrayList<Double>();
-    	Collections.reverse(pathTime);
-    	times.addAll(pathTime);
-    	Collections.reverse(pathTime);
+    	ArrayList<Double> times = new ArrayList<Double>(numEventTimes + 1);
+    	for (int k = 0; k < numEventTimes; k++) {
+    		times.add(eventTime[k]);
+    	}
     	times.add(time);
     	return times;
     }
@@ -483,23 +583,27 @@ public class TreeNode {
      *  @return number of state changes
      */
     public int getNumberOfChanges(String from, String to) {
-    		String start = parent.getState();
-    		String end = null;
-    		int count = 0;
-    		
-    		if(pathState.size()==0) {
-    			if(start.equals(from) && getState().equals(to)) 
-    				count = 1;
-    		} else {
-    			for (int i = pathState.size() - 1; i >= 0; i--) {
-        			end = pathState.get(i);
-        			if (start.equals(from) && end.equals(to)) {
-        				count ++;
-        			}
-        			start = pathState.get(i);
-        		}   	
-    			if(start.equals(from) && getState().equals(to)) count++;
+    	return getNumberOfChanges(stateCode(from), stateCode(to));
+    }
+    
+	/**
+     *  Count number of state changes of one kind on a branch.
+     *  @param from ASCII code of the starting state
+     *  @param to ASCII code of the ending state
+     *  @return number of state changes
+     */
+    public int getNumberOfChanges(byte from, byte to) {
+    	byte start = parent.state;
+    	int count = 0;
+    	for (int k = 0; k < numEvents; k++) {
+    		if (start == from && eventState[k] == to) {
+    			count++;
     		}
+    		start = eventState[k];
+    	}
+    	if (start == from && state == to) {
+    		count++;
+    	}
     	return count;
     }
     
@@ -511,22 +615,27 @@ public class TreeNode {
      *  @return time duration of that state type
      */
     public double getTimeOfState(String type) {
+    	return getTimeOfState(stateCode(type));
+    }
+    
+    /**
+     *  Count time duration for a state on a branch.
+     *  @param type ASCII code of the state
+     *  @return time duration of that state type
+     */
+    public double getTimeOfState(byte type) {
     	double timeState = 0;
-    	String start = parent.getState();
-    	//if no path for this node, pathState.size() = 0, skip for loop
-    	if (pathState.size() > 0) {
-    		for (int i = (pathState.size()-1); i>= 0; i--) {
-        		if (start.equals(type)) {
-        			timeState += pathTime.get(i);
-        		}
-        		start = pathState.get(i);
-        	}
+    	byte start = parent.state;
+    	//if no path for this node, numEvents = 0, skip for loop
+    	for (int k = 0; k < numEvents; k++) {
+    		if (start == type) {
+    			timeState += eventTime[k];
+    		}
+    		start = eventState[k];
     	}
-    	
-    	if(start.equals(type)) {
-    		timeState += getTime();
+    	if (start == type) {
+    		timeState += time;
     	}
-    	
     	return timeState;
     }
     
@@ -538,11 +647,10 @@ public class TreeNode {
      */
     public double getBranchLength() {
     	double br = time;
-    	if(pathState.size() != 0) {
-    		for (int i = 0; i < pathState.size(); i++) {
-    			br += pathTime.get(i);
-    		}
-    	} 
+    	//added from this node up to the parent node, as in the Newick string
+    	for (int k = numEvents - 1; k >= 0; k--) {
+    		br += eventTime[k];
+    	}
     	return br;
     }
     
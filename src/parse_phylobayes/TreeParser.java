@@ -24,14 +24,9 @@ public class TreeParser {
     private TreeNode rootNode;
     
     /**
-     * Store the number of taxa in the outgroup
+     * Store the taxa in the outgroup
      */
-    private int outgroupNum;
-    
-    /**
-     * Store the name of the taxon in the outgroup
-     */
-    private String[] outgroup;
+    private OutgroupSpec outgroup;
     
     
     /**
@@ -41,12 +36,25 @@ public class TreeParser {
      *
      * Modified by Hui-Jie
      *
-     * @param bufferedReader Buffered reader that could start in the middle of a nexus file or
+     * @param b Reader that could start in the middle of a nexus file or
      * the start of a newick file (basically the beginning of a newick tree, is run
-     * for each tree in a nexus file)
+     * for each tree in a nexus file). Either a StringReader or the line reader of a MapFileReader.
      * @param outgroupFileName a string storing the outgroup species name
      */
-    public TreeParser(StringReader b, String outgroupFileName)
+    public TreeParser(Reader b, String outgroupFileName)
+    {
+    	this(b, loadOutgroup(outgroupFileName));
+    }
+    
+    /**
+     * Constructor
+     * Same as above, but the outgroup has already been read. Use this constructor when many trees
+     * are parsed so that the outgroup file is read only once.
+     *
+     * @param b Reader positioned at the beginning of a newick tree
+     * @param outgroup taxa in the outgroup, OutgroupSpec.NONE if there is no outgroup
+     */
+    public TreeParser(Reader b, OutgroupSpec outgroup)
     {
         tokenizer = new StreamTokenizer(b);
         tokenizer.eolIsSignificant(false); //Determines whether or not ends of line are treated as tokens.
@@ -80,67 +88,35 @@ public class TreeParser {
         tokenizer.wordChars('{', '~'); // 123-126
         // 127 = del
         
-        if (!outgroupFileName.equals("")) {
-        	//outgroup file
-            /*
-        	File f = new File(outgroupFileName);
-            try
-            {
-                BufferedReader r = new BufferedReader(new FileReader(f));
-                String line = r.readLine();
-               //first line contains the number of taxa in the outgroup
-                this.outgroupNum = Integer.parseInt(line);
-                outgroup = new String[outgroupNum];
-                for (int i = 0; i < outgroupNum; i++) {
-                	line = r.readLine();
-                	outgroup[i] = line;
-                }
-                
-            }
-            catch (FileNotFoundException e)
-            {
-                System.out.println("Couldn't find file: " + outgroupFileName);
-            } catch (IOException e) {
-    			// TODO Auto-generated catch block
-    			e.printStackTrace();
-    		}
-    		*/
-        	
-        	//InputStream inStream = TreeParser.class.getClassLoader().getResourceAsStream(outgroupFileName);
-        	InputStream inStream = this.getClass().getResourceAsStream(new File("../" + outgroupFileName).getPath().toString());
-        	BufferedReader r = new BufferedReader(new InputStreamReader(inStream));
-        	String line;
-			try {
-				line = r.readLine();
-				//first line contains the number of taxa in the outgroup
-	             this.outgroupNum = Integer.parseInt(line);
-	             outgroup = new String[outgroupNum];
-	             for (int i = 0; i < outgroupNum; i++) {
-	             	line = r.readLine();
-	             	outgroup[i] = line;
-	             }
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} finally {
-	            try {
-	                inStream.close();
-	            } catch (IOException e) {
-	                e.printStackTrace();
-	            }
-	        }
-               
-             
-        	
-        } else { //no outgroup
-        	outgroupNum = 0;
-        	outgroup = null;
-        }
-        
-        
+        this.outgroup = outgroup;
     }
 
 
+    /**
+     * Read the outgroup file
+     * @param outgroupFileName name of the outgroup file, "" if there is no outgroup
+     * @return outgroup
+     */
+    private static OutgroupSpec loadOutgroup(String outgroupFileName) {
+    	if (outgroupFileName.equals("")) { //no outgroup
+    		return OutgroupSpec.NONE;
+    	}
+    	try {
+    		return OutgroupSpec.load(new File(outgroupFileName));
+    	} catch (IOException e) {
+    		System.out.println("Couldn't read file: " + outgroupFileName);
+    		return OutgroupSpec.NONE;
+    	}
+    }
+    
+    /**
+     * Return the taxa in the outgroup
+     * @return outgroup
+     */
+    public OutgroupSpec getOutgroup() {
+    	return outgroup;
+    }
+
 	/**
      * Adds node at the top of the stack to the tree.  TreeNode is already created based
      * on Newick properties.
@@ -357,8 +333,8 @@ public class TreeParser {
         t.postProcess();
         t.setNodeNum(); //need to call it first to ensure `equals' works properly.
         //remove outgroup if t is an unrooted tree
-        if(outgroupNum != 0 && t.getRoot().numberChildren() == 3) {
-        	t.removeOutgroup(outgroup);
+        if(outgroup.appliesTo(t)) {
+        	t.removeOutgroup(outgroup.getTaxa());
         	//t.setNodeNum();
         }
         
@@ -0,0 +1,237 @@
+package parse_phylobayes;
+
+/**
+ * Lookup tables that classify the substitutions at the second position of a triplet by their context.
+ * A triplet of nucleotides is encoded as a 6-bit integer, 16 * first + 4 * second + third with
+ * A = 0, G = 1, C = 2, T = 3 (the order of SingleSiteParser.NUCLEOTIDE_ORDER), so there are 64 triplet states.
+ * For each pair (before, after) of triplets, a 64 x 64 table gives the type of the change (scenario 1)
+ * and its group (scenario 2), -1 if the change is not counted; a table of 64 entries gives the dwell state
+ * of each triplet. A new grouping scheme is a new set of tables, see the constructor.
+ *
+ * The default classifier CPG is the scheme of TripletParser: a change is counted when the second position
+ * changes, and its context is the triplet before the change (CpG if it contains CG).
+ * <pre>
+ *   type 0: non-CpG transversion  groups 0: G->C, C->G   1: G->T, C->A   2: T->A, A->T   3: T->G, A->C
+ *   type 1: non-CpG transition    groups 4: G->A, C->T   5: A->G, T->C
+ *   type 2: CpG transversion      groups 6: G->C, C->G   7: G->T, C->A
+ *   type 3: CpG transition        group  8: G->A, C->T
+ *   dwell states: 0 non-CpG C+G, 1 non-CpG A+T, 2 CpG
+ * </pre>
+ * @author Hui-Jie
+ *
+ */
+public class TripletClassifier {
+
+	/** Number of triplet states */
+	public static final int NUM_TRIPLETS = 64;
+
+	/** Nucleotides in the order of their codes */
+	private static final String NUCLEOTIDES = "AGCT";
+
+	/** Classifier of TripletParser: CpG / non-CpG transitions and transversions */
+	public static final TripletClassifier CPG = cpg();
+
+	/** Type of the change before -> after: [64 * before + after], -1 if not counted */
+	private byte[] type;
+	/** Group of the change before -> after: [64 * before + after], -1 if not counted */
+	private byte[] group;
+	/** Dwell state of each triplet */
+	private byte[] dwell;
+	/** Number of types */
+	private int numTypes;
+	/** Number of groups */
+	private int numGroups;
+	/** Number of dwell states */
+	private int numDwellStates;
+	/** Dwell state whose time is the branch length minus the time of the other states */
+	private int remainderState;
+
+	/**
+	 * Constructor
+	 * @param type type of each change [64 * before + after], -1 if the change is not counted
+	 * @param group group of each change [64 * before + after], -1 if the change is not counted
+	 * @param dwell dwell state of each triplet
+	 * @param numTypes number of types
+	 * @param numGroups number of groups
+	 * @param numDwellStates number of dwell states
+	 * @param remainderState dwell state whose time is the branch length minus the time of the other states
+	 */
+	public TripletClassifier(byte[] type, byte[] group, byte[] dwell, int numTypes, int numGroups,
+			int numDwellStates, int remainderState) {
+		if (type.length != NUM_TRIPLETS * NUM_TRIPLETS || group.length != NUM_TRIPLETS * NUM_TRIPLETS
+				|| dwell.length != NUM_TRIPLETS) {
+			throw new IllegalArgumentException("Tables must have 64 x 64 changes and 64 triplets");
+		}
+		this.type = type;
+		this.group = group;
+		this.dwell = dwell;
+		this.numTypes = numTypes;
+		this.numGroups = numGroups;
+		this.numDwellStates = numDwellStates;
+		this.remainderState = remainderState;
+	}
+
+	/**
+	 * Build the tables of the CpG scheme.
+	 * @return classifier
+	 */
+	private static TripletClassifier cpg() {
+		//{middle before, middle after, type, group}, in the order of the groups
+		String[] nonCpG = {"GC0", "CG0", "GT1", "CA1", "TA2", "AT2", "TG3", "AC3"};
+		String[] nonCpGTransition = {"GA4", "CT4", "AG5", "TC5"};
+		String[] cpG = {"GC6", "CG6", "GT7", "CA7"};
+		String[] cpGTransition = {"GA8", "CT8"};
+		byte[] type = new byte[NUM_TRIPLETS * NUM_TRIPLETS];
+		byte[] group = new byte[NUM_TRIPLETS * NUM_TRIPLETS];
+		byte[] dwell = new byte[NUM_TRIPLETS];
+		for (int before = 0; before < NUM_TRIPLETS; before++) {
+			char middle = NUCLEOTIDES.charAt(nucleotide(before, 1));
+			if (isCpG(before)) {
+				dwell[before] = 2;
+			} else {
+				dwell[before] = (byte) ((middle == 'C' || middle == 'G') ? 0 : 1);
+			}
+			for (int after = 0; after < NUM_TRIPLETS; after++) {
+				type[NUM_TRIPLETS * before + after] = -1;
+				group[NUM_TRIPLETS * before + after] = -1;
+				String change = "" + middle + NUCLEOTIDES.charAt(nucleotide(after, 1));
+				if (isCpG(before)) {
+					set(type, group, before, after, change, cpG, 2);
+					set(type, group, before, after, change, cpGTransition, 3);
+				} else {
+					set(type, group, before, after, change, nonCpG, 0);
+					set(type, group, before, after, change, nonCpGTransition, 1);
+				}
+			}
+		}
+		return new TripletClassifier(type, group, dwell, 4, 9, 3, 1);
+	}
+
+	private static void set(byte[] type, byte[] group, int before, int after, String change, String[] rules, int t) {
+		for (int r = 0; r < rules.length; r++) {
+			if (rules[r].startsWith(change)) {
+				type[NUM_TRIPLETS * before + after] = (byte) t;
+				group[NUM_TRIPLETS * before + after] = (byte) (rules[r].charAt(2) - '0');
+			}
+		}
+	}
+
+	/**
+	 * Encode a triplet
+	 * @param first ASCII code of the first nucleotide
+	 * @param second ASCII code of the second nucleotide
+	 * @param third ASCII code of the third nucleotide
+	 * @return triplet state, 0 to 63
+	 * @throws IllegalArgumentException if a state is not A, G, C or T
+	 */
+	public static int encode(byte first, byte second, byte third) {
+		return 16 * code(first) + 4 * code(second) + code(third);
+	}
+
+	/**
+	 * Replace one position of a triplet
+	 * @param triplet triplet state
+	 * @param position 0, 1 or 2
+	 * @param state ASCII code of the new nucleotide at the position
+	 * @return triplet state
+	 */
+	public static int replace(int triplet, int position, byte state) {
+		int shift = 2 * (2 - position);
+		return (triplet & ~(3 << shift)) | (code(state) << shift);
+	}
+
+	/**
+	 * Decode a triplet
+	 * @param triplet triplet state
+	 * @return the three nucleotides, e.g. "ACG"
+	 */
+	public static String decode(int triplet) {
+		return "" + NUCLEOTIDES.charAt(nucleotide(triplet, 0)) + NUCLEOTIDES.charAt(nucleotide(triplet, 1))
+				+ NUCLEOTIDES.charAt(nucleotide(triplet, 2));
+	}
+
+	/**
+	 * Return true if the triplet contains a CpG site (CGx or xCG)
+	 * @param triplet triplet state
+	 * @return true for a CpG site
+	 */
+	public static boolean isCpG(int triplet) {
+		int first = nucleotide(triplet, 0);
+		int second = nucleotide(triplet, 1);
+		int third = nucleotide(triplet, 2);
+		return (first == 2 && second == 1) || (second == 2 && third == 1);
+	}
+
+	private static int nucleotide(int triplet, int position) {
+		return (triplet >> (2 * (2 - position))) & 3;
+	}
+
+	private static int code(byte state) {
+		int n = TransitionKernel.nucleotideIndex(state);
+		if (n < 0) {
+			throw new IllegalArgumentException("Triplet states must be A, G, C or T: " + (char) state);
+		}
+		return n;
+	}
+
+	/**
+	 * Return the type of a change, -1 if it is not counted
+	 * @param before triplet before the change
+	 * @param after triplet after the change
+	 * @return type
+	 */
+	public int getType(int before, int after) {
+		return type[NUM_TRIPLETS * before + after];
+	}
+
+	/**
+	 * Return the group of a change, -1 if it is not counted
+	 * @param before triplet before the change
+	 * @param after triplet after the change
+	 * @return group
+	 */
+	public int getGroup(int before, int after) {
+		return group[NUM_TRIPLETS * before + after];
+	}
+
+	/**
+	 * Return the dwell state of a triplet
+	 * @param triplet triplet state
+	 * @return dwell state
+	 */
+	public int getDwellState(int triplet) {
+		return dwell[triplet];
+	}
+
+	/**
+	 * Return the number of types
+	 * @return numTypes
+	 */
+	public int getNumTypes() {
+		return numTypes;
+	}
+
+	/**
+	 * Return the number of groups
+	 * @return numGroups
+	 */
+	public int getNumGroups() {
+		return numGroups;
+	}
+
+	/**
+	 * Return the number of dwell states
+	 * @return numDwellStates
+	 */
+	public int getNumDwellStates() {
+		return numDwellStates;
+	}
+
+	/**
+	 * Return the dwell state whose time is the branch length minus the time of the other states
+	 * @return remainderState
+	 */
+	public int getRemainderState() {
+		return remainderState;
+	}
+}
@@ -1,11 +1,6 @@
 package parse_phylobayes;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 /**
  * Parse three consecutive sites /triplet at a time.
@@ -74,39 +69,46 @@ public class TripletParser implements SiteParser {
      **/
 	private double[][] propStates;
     
-	/** Store path state as an array of arraylist of String, each String contains 3 characters (triplet). 
-	 *  There are branchNum of such arraylist for each branch.
+	/** Store path state for each branch: the triplets from the parent node to the current node,
+	 *  encoded by TripletClassifier.encode().
      **/
-	private ArrayList<String>[] pathState;
+	private byte[][] pathState;
     
-	/** Store path time as an array of arraylist of double.
-	 * There are branchNum of such arraylist for each branch 
+	/** Store path time for each branch: the time spent in each triplet of the path but the last.
      **/
-	private ArrayList<Double>[] pathTime;
+	private double[][] pathTime;
+    
+	/** Classifies the changes and the dwell states of the triplets **/
+	private TripletClassifier classifier;
     
 	/**
 	 * Constructor
 	 * @param trees: 3 trees for 3 sites
 	 */
 	public TripletParser(Tree[] trees) {
+		this(trees, TripletClassifier.CPG);
+	}
+	
+	/**
+	 * Constructor with another grouping scheme
+	 * @param trees: 3 trees for 3 sites
+	 * @param classifier tables of the types, groups and dwell states
+	 */
+	public TripletParser(Tree[] trees, TripletClassifier classifier) {
 		this.trees = new Tree[3];
 		for (int i = 0; i < 3; i++) {
 			this.trees[i] = trees[i];
 		}
+		this.classifier = classifier;
 		
-		numberOfChanges = new int[4][trees[0].getNumBranches()];
-		timeOfStates = new double[3][trees[0].getNumBranches()];
+		numberOfChanges = new int[classifier.getNumTypes()][trees[0].getNumBranches()];
+		timeOfStates = new double[classifier.getNumDwellStates()][trees[0].getNumBranches()];
 		branchLengths = new double[trees[0].getNumBranches()];
-		propStates = new double[3][trees[0].getNumBranches()];
-		changesInGroups = new int[9][trees[0].getNumBranches()];
+		propStates = new double[classifier.getNumDwellStates()][trees[0].getNumBranches()];
+		changesInGroups = new int[classifier.getNumGroups()][trees[0].getNumBranches()];
 	
-		pathState = (ArrayList<String>[])new ArrayList[trees[0].getNumBranches()];
-		pathTime = (ArrayList<Double>[])new ArrayList[trees[0].getNumBranches()]; 
-
-		for(int i = 0; i < trees[0].getNumBranches(); i++) {
-			pathState[i] = new ArrayList<String>();
-			pathTime[i] = new ArrayList<Double>();
-		}
+		pathState = new byte[trees[0].getNumBranches()][];
+		pathTime = new double[trees[0].getNumBranches()][];
 		
 		constructWholePath();
 	
@@ -139,52 +141,53 @@ public class TripletParser implements SiteParser {
 	 * path state: triplet starting from the parent node to current node
 	 * path time: time interval between substitution events.
 	 *            The last time will be branch length of site 2 minus the time at the last substitution event.
+	 * The events of the three sites are merged in the order of their cumulative time from the parent node,
+	 * in one pass over the events. Events at exactly the same time are all kept: they are applied one after
+	 * the other in the order of the sites (1, 2, 3), separated by time intervals of 0.
 	 * @param branchIndex index of the given branch (the index of the node that ends the branch)
 	 */
 	public void constructPath(int branchIndex) {
-		ArrayList<String>[] state = (ArrayList<String>[])new ArrayList[3];
-		ArrayList<Double>[] time = (ArrayList<Double>[])new ArrayList[3];
-		HashMap<Double, Integer> map = new HashMap<Double, Integer>();
-		
-		//create a HashMap: key = time when substitutions occurred, value = site where substitutions occurred
-		//do not add the last time in the HashMap b/c they will be the same for all sites.
-		//i.e. last time = branch length
-		for (int i = 0; i < 3; i ++) {
-			state[i] = trees[i].getNodeByNodeNum(branchIndex).getPathState();
-			time[i] = cumulativeSum(trees[i].getNodeByNodeNum(branchIndex).getPathTime());
-			for (int j = 0; j < time[i].size()-1; j ++) {
-				map.put(time[i].get(j), i);
-			}
+		TreeNode[] node = new TreeNode[3];
+		int[] numEvents = new int[3];
+		int total = 0;
+		for (int i = 0; i < 3; i++) {
+			node[i] = trees[i].getNodeByNodeNum(branchIndex);
+			numEvents[i] = node[i].getNumEvents();
+			total += numEvents[i];
 		}
+		//starting triplet, the events, and the triplet at the current node
+		byte[] states = new byte[total + 2];
+		double[] times = new double[total + 1];
 		
-		//starting state (triplet)
-		int[] index = new int[3]; //track the index of states for three sites
-		pathState[branchIndex].add(state[0].get(index[0])+state[1].get(index[1])+state[2].get(index[2]));
-		
-		//sort the HashMap by key => create a TreeMap (ordered) from HashMap
-        Map<Double, Integer> treemap = new TreeMap<Double, Integer>(map);
-        
-        //iterate the TreeMap
-        Set set = treemap.entrySet();
-        Iterator iterator = set.iterator();
-        double previous = 0.0;
-        while(iterator.hasNext()) {
-             Map.Entry me = (Map.Entry)iterator.next();
-             //System.out.print(me.getKey() + ": ");
-             //System.out.println(me.getValue());
-             pathTime[branchIndex].add(((Double) me.getKey() - previous)); //store time interval length but not cumulative time
-             previous = (Double) me.getKey();
-             int position = (Integer) me.getValue();
-             index[position] ++; //increment the index of pathState[position]
-             char[] lastState = pathState[branchIndex].get(pathState[branchIndex].size()-1).toCharArray();
-             lastState[position] = state[position].get(index[position]).charAt(0); //replace character at position
-             pathState[branchIndex].add(String.valueOf(lastState));             
-        }
-        //add last time interval (branch length - last event time)
-        pathTime[branchIndex].add(trees[1].getBranchLength()[branchIndex]-previous);
-        //add last state. i.e. state at current node
-        pathState[branchIndex].add(state[0].get(state[0].size()-1)+state[1].get(state[1].size()-1)+state[2].get(state[2].size()-1));        
-		
+		//cumulative time of the next event of each site, infinity once all its events are merged
+		int[] index = new int[3]; //track the index of the next event for three sites
+		double[] next = new double[3];
+		int triplet = TripletClassifier.encode(node[0].parent().getStateCode(), node[1].parent().getStateCode(),
+				node[2].parent().getStateCode());
+		states[0] = (byte) triplet;
+		for (int i = 0; i < 3; i++) {
+			next[i] = (numEvents[i] > 0) ? node[i].getEventTime(0) : Double.POSITIVE_INFINITY;
+		}
+		double previous = 0.0;
+		for (int e = 1; e <= total; e++) {
+			//earliest next event, ties go to the first site
+			int position = 0;
+			if (next[1] < next[position]) position = 1;
+			if (next[2] < next[position]) position = 2;
+			times[e - 1] = next[position] - previous; //store time interval length but not cumulative time
+			previous = next[position];
+			triplet = TripletClassifier.replace(triplet, position, node[position].getEventState(index[position])); //replace character at position
+			states[e] = (byte) triplet;
+			index[position]++;
+			next[position] = (index[position] < numEvents[position])
+					? next[position] + node[position].getEventTime(index[position]) : Double.POSITIVE_INFINITY;
+		}
+		//add last time interval (branch length - last event time)
+		times[total] = trees[1].getBranchLength()[branchIndex] - previous;
+		//add last state. i.e. state at current node
+		states[total + 1] = (byte) TripletClassifier.encode(node[0].getStateCode(), node[1].getStateCode(), node[2].getStateCode());
+		pathState[branchIndex] = states;
+		pathTime[branchIndex] = times;
 	}
 	
 	/**
@@ -193,8 +196,11 @@ public class TripletParser implements SiteParser {
 	 * @return
 	 */
 	public ArrayList<String> getPathStateAtBranch(int branchIndex) {
-		//constructPath(branchIndex);
-		return pathState[branchIndex];
+		ArrayList<String> states = new ArrayList<String>(pathState[branchIndex].length);
+		for (int i = 0; i < pathState[branchIndex].length; i++) {
+			states.add(TripletClassifier.decode(pathState[branchIndex][i]));
+		}
+		return states;
 	}
 	
 	/**
@@ -203,8 +209,11 @@ public class TripletParser implements SiteParser {
 	 * @return
 	 */
 	public ArrayList<Double> getPathTimeAtBranch(int branchIndex) {
-		//constructPath(branchIndex);
-		return pathTime[branchIndex];
+		ArrayList<Double> times = new ArrayList<Double>(pathTime[branchIndex].length);
+		for (int i = 0; i < pathTime[branchIndex].length; i++) {
+			times.add(pathTime[branchIndex][i]);
+		}
+		return times;
 	} 
 	
 	/**
@@ -228,200 +237,53 @@ public class TripletParser implements SiteParser {
 	/**
 	 * Assign number of changes for each type of changes on each branch.
 	 * There are 4 types of changes: CpG / non-CpG transition/transversion
+	 * Each change of the path is classified by one lookup in the tables of the classifier (TripletClassifier.CPG):
+	 * changesInGroups[9][branchNum]: 0-3 for non-CpG transversion, 4-5 for non-CpG transition
+	 *                                6-7 for CpG transversion, 8 for CpG transition
 	 * @return numberOfChanges
 	 */
 	private int[][] computeNumberOfChanges() {
-		int[][] changes = new int[4][numberOfBranches()];
-		for (int i = 0; i < 4; i++) {
-			for (int j = 0; j < numberOfBranches(); j++) {
-				changes[i][j] = computeNumberOfChangesAtBranch(j, i);
+		int[][] changes = new int[classifier.getNumTypes()][numberOfBranches()];
+		for (int j = 0; j < numberOfBranches(); j++) {
+			byte[] path = pathState[j];
+			for (int i = 0; i < path.length - 1; i++) {
+				int type = classifier.getType(path[i], path[i+1]);
+				if (type >= 0) {
+					changes[type][j]++;
+					changesInGroups[classifier.getGroup(path[i], path[i+1])][j]++;
+				}
 			}
 		}		
 		return changes;
 	}
 	
-	/**
-	 * Count the number of given type of changes on a given branch
-	 * type 0: non-CpG transversion
-	 * type 1: non-CpG transition
-	 * type 2: CpG transversion
-	 * type 3: CpG transition
-	 * TRANSVERSION_ORDER = {"ATC","TAG","CAG","GCT"}
-	 * TRANSITION_ORDER = {"AG","TC","CT","GA"}
-	 * TRANSVERSION_GROUP = {"GCCG","GTCA","TAAT","TGAC"};
-	 * TRANSITION_GROUP = {"GACT","AGTC"}
-	 * changesInGroups[9][branchNum]: 0-3 for non-CpG transversion, 4-5 for non-CpG transition
-	 *                                6-7 for CpG transversion, 8 for CpG transition
-	 * @param branchIndex
-	 * @param type 
-	 * @return number of given type of changes on a given branch
-	 */
-	private int computeNumberOfChangesAtBranch(int branchIndex, int type) {
-		int count = 0;
-		switch(type) {
-			case 0:
-				for (int i = 0; i < pathState[branchIndex].size() - 1; i++) {
-					if(pathState[branchIndex].get(i).charAt(1) != pathState[branchIndex].get(i+1).charAt(1)) {
-						if(!pathState[branchIndex].get(i).contains("CG")) { //non-CpG site
-							if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[0].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[0].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[0].charAt(2))) {
-								count++;
-								//start with `A'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[2].charAt(3)) {
-									changesInGroups[2][branchIndex]++; //A->T
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[3].charAt(3)) {
-									changesInGroups[3][branchIndex]++; //A->C
-								}
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[1].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[1].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[1].charAt(2))) {
-								count++;
-								//start with `T'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[2].charAt(1)) {
-									changesInGroups[2][branchIndex]++; //T->A
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[3].charAt(1)) {
-									changesInGroups[3][branchIndex]++; //T->G
-								}
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[2].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[2].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[2].charAt(2))) {
-								count++;
-								//start with `C'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[0].charAt(3)) {
-									changesInGroups[0][branchIndex]++; //C->G
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[1].charAt(3)) {
-									changesInGroups[1][branchIndex]++; //C->A
-								}
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[3].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[3].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[3].charAt(2))) {
-								count++;
-								//start with `G'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[0].charAt(1)) {
-									changesInGroups[0][branchIndex]++; //G->C
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[1].charAt(1)) {
-									changesInGroups[1][branchIndex]++; //G->T
-								}
-							}
-						}
-					}
-				}
-				break;
-			case 1:
-				for (int i = 0; i < pathState[branchIndex].size() - 1; i++) {
-					if(pathState[branchIndex].get(i).charAt(1) != pathState[branchIndex].get(i+1).charAt(1)) {
-						if(!pathState[branchIndex].get(i).contains("CG")) { //non-CpG site
-							if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[0].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[0].charAt(1)) {
-								count++;
-								//A->G
-								changesInGroups[5][branchIndex]++;
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[1].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[1].charAt(1)) {
-								count++;
-								//T->C
-								changesInGroups[5][branchIndex]++;
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[2].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[2].charAt(1)) {
-								count++;
-								//C->T
-								changesInGroups[4][branchIndex]++;
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[3].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[3].charAt(1)) {
-								count++;
-								//G->A
-								changesInGroups[4][branchIndex]++;
-							}
-						}
-					}
-				}
-				break;
-			case 2:
-				for (int i = 0; i < pathState[branchIndex].size() - 1; i++) {
-					if(pathState[branchIndex].get(i).charAt(1) != pathState[branchIndex].get(i+1).charAt(1)) {
-						if(pathState[branchIndex].get(i).contains("CG")) { //CpG site
-							if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[2].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[2].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[2].charAt(2))) {
-								count++;
-								//start with `C'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[0].charAt(3)) {
-									changesInGroups[6][branchIndex]++; //C->G
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[1].charAt(3)) {
-									changesInGroups[7][branchIndex]++; //C->A
-								}
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSVERSION_ORDER[3].charAt(0) && (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[3].charAt(1) || pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_ORDER[3].charAt(2))) {
-								count++;
-								//start with 'G'
-								if(pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[0].charAt(1)) {
-									changesInGroups[6][branchIndex]++; //G->C
-								} else if (pathState[branchIndex].get(i+1).charAt(1) == TRANSVERSION_GROUP[1].charAt(1)) {
-									changesInGroups[7][branchIndex]++; //G->T
-								}
-							} 
-						}
-					}
-				}
-				break;
-			case 3:
-				for (int i = 0; i < pathState[branchIndex].size() - 1; i++) {
-					if(pathState[branchIndex].get(i).charAt(1) != pathState[branchIndex].get(i+1).charAt(1)) {
-						if(pathState[branchIndex].get(i).contains("CG")) { //CpG site
-							if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[2].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[2].charAt(1)) {
-								count++;
-								//C->T
-								changesInGroups[8][branchIndex]++;
-							} else if(pathState[branchIndex].get(i).charAt(1) == TRANSITION_ORDER[3].charAt(0) && pathState[branchIndex].get(i+1).charAt(1) == TRANSITION_ORDER[3].charAt(1)) {
-								count++;
-								//G->A
-								changesInGroups[8][branchIndex]++;
-							}
-						}
-					}
-				}
-				break;
-		}
-		
-		
-		return count;
-	}
-	
 	/**
 	 * Assign times of each state on each branch.
 	 * There are three states: non-CpG C+G, non-CpG A+T, CpG C+G
+	 * The time of the remainder state (non-CpG A+T) is the branch length minus the time of the other states.
 	 * @return timeOfStates
 	 */
 	private double[][] computeTimeOfStates() {
-		double[][] times = new double[3][numberOfBranches()];
+		int numStates = classifier.getNumDwellStates();
+		int remainder = classifier.getRemainderState();
+		double[][] times = new double[numStates][numberOfBranches()];
 		for (int j = 0; j < numberOfBranches(); j++) {
-			times[0][j] = computeTimeOfnonCpGCGAtBranch(j); //non-CpG C+G
-			times[1][j]	= branchLengths[j]-computeTimeOfCpGAtBranch(j) - computeTimeOfnonCpGCGAtBranch(j); //non-CpG A+T
-			times[2][j] = computeTimeOfCpGAtBranch(j); //CpG site
-		}				
-		return times;
-	}
-	
-	/**
-	 * Compute time of CpG site at the second position on a given branch
-	 * @param branchIndex
-	 * @return
-	 */
-	private double computeTimeOfCpGAtBranch(int branchIndex) {
-		double timeState = 0;
-		
-		for (int i = 0; i < pathState[branchIndex].size()-1; i++) {
-			if(pathState[branchIndex].get(i).contains("CG")) {
-				timeState += pathTime[branchIndex].get(i);
+			byte[] path = pathState[j];
+			for (int i = 0; i < path.length - 1; i++) {
+				int state = classifier.getDwellState(path[i]);
+				if (state != remainder) {
+					times[state][j] += pathTime[j][i];
+				}
 			}
-		}
-		
-		return timeState;
-	}
-	
-	/**
-	 * Compute time of non-CpG C+G site at the second position on a given branch
-	 * @param branchIndex
-	 * @return
-	 */
-	private double computeTimeOfnonCpGCGAtBranch(int branchIndex) {
-		double timeState = 0;
-		
-		for (int i = 0; i < pathState[branchIndex].size()-1; i++) {
-			if(!pathState[branchIndex].get(i).contains("CG")) {
-				if((pathState[branchIndex].get(i).charAt(1) == 'C') || (pathState[branchIndex].get(i).charAt(1) == 'G')) {
-					timeState += pathTime[branchIndex].get(i);
+			//subtract from the last state to the first: branch length - CpG - non-CpG C+G
+			times[remainder][j] = branchLengths[j];
+			for (int k = numStates - 1; k >= 0; k--) {
+				if (k != remainder) {
+					times[remainder][j] -= times[k][j];
 				}
 			}
-		}
-		
-		return timeState;
+		}				
+		return times;
 	}
 	
 	/**
@@ -442,8 +304,8 @@ public class TripletParser implements SiteParser {
 	 * @return prop
 	 */
 	private double[][] computePropState() {
-		double[][] prop = new double[3][numberOfBranches()];
-		for (int i = 0; i < 3; i++) {
+		double[][] prop = new double[timeOfStates.length][numberOfBranches()];
+		for (int i = 0; i < timeOfStates.length; i++) {
 			for (int j = 0; j < numberOfBranches(); j++) {
 				prop[i][j] = timeOfStates[i][j]/branchLengths[j];
 			}
@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for ContextSiteParser and ContextTable.
+ * @author Hui-Jie Lee
+ *
+ */
+public class ContextSiteParserTest extends TestCase {
+
+	/** Trees of the marmoset example of TripletParserTest, 3 sites */
+	private Tree[] trees;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		trees = new Tree[3];
+		trees[0] = tree("(((human_A:0.101652:A,orangutan_A:0.175401:A)_A:0.649724:A,(rhesus_G:0.00557255:G:0.314872:A,baboon_G:0.136734:G:0.279524:A)_A:0.27683:A)_A:1.42672:A:0.197287:T:0.302921:A:0.677233:T:0.683041:C:0.366039:G:0.300407:A:1.29285:T,marmoset_C:0.0890465:C:1.71246:A:0.0718244:G:0.685267:A:2.21303:T,bushbaby_G:0.146267:G:1.23497:T:0.433369:C:0.174881:G:1.14392:T:0.192338:C:0.350913:G:0.364961:A:0.508608:C:1.1939:G:1.20611:T:0.687221:G:0.548099:T)_T;");
+		trees[1] = tree("(((human_G:0.101652:G,orangutan_G:0.175401:G)_G:0.649724:G,(rhesus_G:0.320445:G,baboon_G:0.416258:G)_G:0.27683:G)_G:5.24651:G,marmoset_C:3.52904:C:0.295141:T:0.947449:G,bushbaby_G:8.18555:G)_G;");
+		trees[2] = tree("(((human_G:0.101652:G,orangutan_G:0.175401:G)_G:0.649724:G,(rhesus_G:0.320445:G,baboon_G:0.416258:G)_G:0.27683:G)_G:5.24651:G,marmoset_T:2.89905:T:0.630191:C:1.24239:G,bushbaby_G:8.18555:G)_G;");
+	}
+
+	private static Tree tree(String newick) throws Exception {
+		return new TreeParser(new StringReader(newick), "").tokenize();
+	}
+
+	private static void assertSameCounts(SiteParser expected, SiteParser actual) {
+		assertTrue(Arrays.deepEquals(expected.getNumberOfChanges(), actual.getNumberOfChanges()));
+		assertTrue(Arrays.deepEquals(expected.getChangesInGroups(), actual.getChangesInGroups()));
+		assertTrue(Arrays.deepEquals(expected.getTimeOfStates(), actual.getTimeOfStates()));
+		assertTrue(Arrays.deepEquals(expected.getPropStates(), actual.getPropStates()));
+		assertTrue(Arrays.equals(expected.getBranchLengths(), actual.getBranchLengths()));
+	}
+
+	public void testTable() {
+		ContextTable table = ContextTable.centered(TripletClassifier.CPG, 5);
+		int context = 0;
+		for (int i = 0; i < 5; i++) {
+			context = ContextTable.append(context, (byte) "TACGA".charAt(i));
+		}
+		assertEquals("TACGA", table.decode(context));
+		assertEquals("TATGA", table.decode(table.replace(context, 2, (byte) 'T')));
+		//the middle triplet ACG is a CpG site, C -> T is a CpG transition
+		assertEquals(2, table.getDwellState(context));
+		assertEquals(3, table.getType(context, (byte) 'T'));
+		assertEquals(8, table.getGroup(context, (byte) 'T'));
+		assertEquals(-1, table.getType(context, (byte) 'C'));
+		try {
+			ContextTable.centered(TripletClassifier.CPG, 4);
+			fail("Even width accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	public void testTripletEquivalence() throws Exception {
+		assertSameCounts(new TripletParser(trees), new ContextSiteParser(trees, ContextTable.centered(TripletClassifier.CPG, 3)));
+		//same on the neutral chain, option 2 against option 3 with a window of 3 sites
+		RunOptions options = new RunOptions();
+		options.setContextWidth(3);
+		MappingParser triplet = new MappingParser(4, 2, "neutral", 2, "");
+		MappingParser context = new MappingParser(4, 2, "neutral", 3, "", options);
+		assertTrue(Arrays.deepEquals(triplet.getNumberOfChanges(), context.getNumberOfChanges()));
+		assertTrue(Arrays.deepEquals(triplet.getChangesInGroups(), context.getChangesInGroups()));
+		assertTrue(Arrays.deepEquals(triplet.getTimeStates(), context.getTimeStates()));
+		assertTrue(Arrays.deepEquals(triplet.getTheta(), context.getTheta()));
+	}
+
+	public void testPentanucleotide() throws Exception {
+		//flanking sites 0 and 4 without events: the counts of the centered table are those of the middle triplet
+		Tree[] five = new Tree[5];
+		five[0] = trees[1];
+		five[1] = trees[0];
+		five[2] = trees[1];
+		five[3] = trees[2];
+		five[4] = trees[1];
+		ContextSiteParser sites = new ContextSiteParser(five, ContextTable.centered(TripletClassifier.CPG, 5));
+		assertSameCounts(new TripletParser(new Tree[] {trees[0], trees[1], trees[2]}), sites);
+		//marmoset: the middle site changes G -> T -> C
+		assertEquals(2, sites.getNumberOfChanges()[0][4] + sites.getNumberOfChanges()[1][4]
+				+ sites.getNumberOfChanges()[2][4] + sites.getNumberOfChanges()[3][4]);
+
+		//a table that counts the changes of the middle site only when the first site is A
+		byte[] type = new byte[4 << 10];
+		byte[] group = new byte[type.length];
+		byte[] dwell = new byte[1 << 10];
+		ContextTable table = new ContextTable(5, type, group, dwell, 1, 1, 1, 0);
+		for (int context = 0; context < dwell.length; context++) {
+			for (int n = 0; n < 4; n++) {
+				boolean counted = table.decode(context).charAt(0) == 'A' && "AGCT".charAt(n) != table.decode(context).charAt(2);
+				type[4 * context + n] = (byte) (counted ? 0 : -1);
+				group[4 * context + n] = (byte) (counted ? 0 : -1);
+			}
+		}
+		//marmoset, site 0 is T until t = 2.21303, then A, G, A and C; the middle site changes at 0.947449 and 1.24259
+		assertEquals(0, new ContextSiteParser(new Tree[] {trees[0], trees[0], trees[1], trees[2], trees[2]}, table)
+				.getNumberOfChanges()[0][4]);
+		//site 0 without events (G) and then A: the two changes of the middle site are counted only with A
+		Tree a = tree("(((human_A:0.101652:A,orangutan_A:0.175401:A)_A:0.649724:A,(rhesus_A:0.320445:A,baboon_A:0.416258:A)_A:0.27683:A)_A:5.24651:A,marmoset_A:4.771630:A,bushbaby_A:8.18555:A)_A;");
+		assertEquals(2, new ContextSiteParser(new Tree[] {a, trees[0], trees[1], trees[2], trees[2]}, table)
+				.getNumberOfChanges()[0][4]);
+		assertEquals(0, new ContextSiteParser(new Tree[] {trees[1], trees[0], trees[1], trees[2], trees[2]}, table)
+				.getNumberOfChanges()[0][4]);
+	}
+
+	public void testFlankingGC() throws Exception {
+		ContextTable table = ContextTable.flankingGC(TripletClassifier.CPG, 5);
+		assertEquals(8, table.getNumTypes());
+		assertEquals(18, table.getNumGroups());
+		assertEquals(6, table.getNumDwellStates());
+		assertEquals(2, table.getNumClasses());
+		int at = code("TACGA");
+		int gc = code("GACGA");
+		//same middle triplet ACG, C -> T is a CpG transition; the flanking G moves it to the GC-rich class
+		assertEquals(2, table.getDwellState(at));
+		assertEquals(3, table.getType(at, (byte) 'T'));
+		assertEquals(8, table.getGroup(at, (byte) 'T'));
+		assertEquals(5, table.getDwellState(gc));
+		assertEquals(7, table.getType(gc, (byte) 'T'));
+		assertEquals(17, table.getGroup(gc, (byte) 'T'));
+		assertEquals(-1, table.getType(gc, (byte) 'C'));
+		//no flanking site for k = 3
+		assertEquals(1, ContextTable.flankingGC(TripletClassifier.CPG, 3).getNumClasses());
+		assertEquals(4, ContextTable.flankingGC(TripletClassifier.CPG, 3).getNumTypes());
+
+		//marmoset, the middle site changes G -> T at 0.947449 (type 0) and T -> C at 1.24259 (type 1)
+		Tree a = tree("(((human_A:0.101652:A,orangutan_A:0.175401:A)_A:0.649724:A,(rhesus_A:0.320445:A,baboon_A:0.416258:A)_A:0.27683:A)_A:5.24651:A,marmoset_A:4.771630:A,bushbaby_A:8.18555:A)_A;");
+		int[][] changes = new ContextSiteParser(new Tree[] {a, trees[0], trees[1], trees[2], a}, table).getNumberOfChanges();
+		assertEquals(1, changes[0][4]);
+		assertEquals(1, changes[1][4]);
+		//site 0 is G until 1.1, then A: the first change has a GC-rich flank (type 4), the second not (type 1)
+		Tree g = tree("(((human_G:0.101652:G,orangutan_G:0.175401:G)_G:0.649724:G,(rhesus_G:0.320445:G,baboon_G:0.416258:G)_G:0.27683:G)_G:5.24651:G,marmoset_A:3.67163:A:1.1:G,bushbaby_G:8.18555:G)_G;");
+		ContextSiteParser sites = new ContextSiteParser(new Tree[] {g, trees[0], trees[1], trees[2], a}, table);
+		changes = sites.getNumberOfChanges();
+		assertEquals(0, changes[0][4]);
+		assertEquals(1, changes[1][4]);
+		assertEquals(1, changes[4][4]);
+		assertEquals(0, changes[5][4]);
+		//the time of the middle triplet is split between the classes at the change of site 0
+		double[][] time = sites.getTimeOfStates();
+		assertEquals(1.1, time[3][4] + time[4][4] + time[5][4], 1e-12);
+		assertEquals(4.77163 - 1.1, time[0][4] + time[1][4] + time[2][4], 1e-12);
+	}
+
+	private static int code(String kmer) {
+		int context = 0;
+		for (int i = 0; i < kmer.length(); i++) {
+			context = ContextTable.append(context, (byte) kmer.charAt(i));
+		}
+		return context;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for CovarianceKernel.
+ * @author Hui-Jie Lee
+ *
+ */
+public class CovarianceKernelTest extends TestCase {
+
+	/** Number of branches: two blocks and an odd row at the end */
+	private static final int B = CovarianceKernel.BLOCK + 7;
+	/** Number of iterations: two chunks and a partial chunk */
+	private static final int C = 2 * CovarianceKernel.CHUNK + 13;
+
+	/** Samples of two types, type 1 is used */
+	private double[] theta;
+	/** Variances of the samples */
+	private double[] var;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		Random random = new Random(7);
+		theta = new double[2 * B * C];
+		var = new double[2 * B * C];
+		for (int i = 0; i < theta.length; i++) {
+			theta[i] = random.nextDouble() * 3;
+			var[i] = random.nextDouble();
+		}
+	}
+
+	public void testCovariance() {
+		double[][] cov = CovarianceKernel.covariance(theta, var, B * C, B, C, 1);
+		for (int i = 0; i < B; i++) {
+			double mean = 0;
+			double varBar = 0;
+			for (int k = 0; k < C; k++) {
+				mean += theta[(B + i) * C + k];
+				varBar += var[(B + i) * C + k];
+			}
+			mean = mean / C;
+			varBar = varBar / C;
+			//diagonal: same sums as the loop over the iterations
+			double sum = 0;
+			for (int k = 0; k < C; k++) {
+				sum += Math.pow(theta[(B + i) * C + k] - mean, 2);
+			}
+			assertEquals(sum / (C-1) + varBar, cov[i][i]);
+			for (int j = 0; j < B; j++) {
+				assertEquals(cov[i][j], cov[j][i]);
+			}
+		}
+		//off diagonal: sum of products minus the product of the means
+		for (int i = 0; i < B; i++) {
+			for (int j = 0; j < B; j++) {
+				if (i != j) {
+					double mi = 0;
+					double mj = 0;
+					double sum = 0;
+					for (int k = 0; k < C; k++) {
+						mi += theta[(B + i) * C + k];
+						mj += theta[(B + j) * C + k];
+						sum += theta[(B + i) * C + k] * theta[(B + j) * C + k];
+					}
+					mi = mi / C;
+					mj = mj / C;
+					assertEquals((sum - mi * mj * C) / (C-1), cov[i][j], 1e-12);
+				}
+			}
+		}
+	}
+
+	public void testChunks() {
+		//the centred samples of type 0 added in chunks of 100 iterations, as the streaming moments of MappingParser
+		double[] x = new double[B * 100];
+		double[] varBar = new double[B];
+		double[] mean = new double[B];
+		for (int i = 0; i < B; i++) {
+			for (int k = 0; k < C; k++) {
+				mean[i] += theta[i * C + k];
+				varBar[i] += var[i * C + k];
+			}
+			mean[i] = mean[i] / C;
+			varBar[i] = varBar[i] / C;
+		}
+		//the threads of the kernel, and a pool shared with another kernel, reused by every chunk
+		ExecutorService pool = CovarianceKernel.newPool(2);
+		CovarianceKernel kernel = new CovarianceKernel(B, 2);
+		CovarianceKernel shared = new CovarianceKernel(B, 2, pool);
+		for (int from = 0; from < C; from += 100) {
+			int length = Math.min(100, C - from);
+			for (int i = 0; i < B; i++) {
+				for (int k = 0; k < length; k++) {
+					x[i * 100 + k] = theta[i * C + from + k] - mean[i];
+				}
+			}
+			kernel.add(x, 0, 100, length);
+			shared.add(x, 0, 100, length);
+		}
+		double[][] expected = CovarianceKernel.covariance(theta, var, 0, B, C, 1);
+		assertTrue(Arrays.deepEquals(expected, kernel.finish(varBar, C)));
+		assertTrue(Arrays.deepEquals(expected, shared.finish(varBar, C)));
+		assertFalse(pool.isShutdown());
+		pool.shutdown();
+	}
+
+	public void testThreads() {
+		double[][] one = CovarianceKernel.covariance(theta, var, 0, B, C, 1);
+		double[][] three = CovarianceKernel.covariance(theta, var, 0, B, C, 3);
+		assertTrue(Arrays.deepEquals(one, three));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.Random;
+
+/**
+ * Benchmark of the covariance matrix of an o.estb file, by default for 1,000 branches:
+ *  1. the String concatenation of printCovarianceMatrix() before the streaming writer (cov += ...), only
+ *     up to 400 branches because it is quadratic in the size of the output
+ *  2. the streaming writer with DecimalFormat("#.#################") before DoubleFormatter
+ *  3. MappingParser.writeCovarianceMatrix() with DoubleFormatter.fixed(17) into a buffered file
+ *  4. the same with DoubleFormatter.shortest() (--precision shortest)
+ *  5. the same bytes written to a buffered file without formatting, the time of the I/O alone
+ * Run with: java parse_phylobayes.CovarianceOutputBenchmark [number of branches] [rounds]
+ * @author Hui-Jie Lee
+ *
+ */
+public class CovarianceOutputBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int branchNum = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		double[][] cov = new double[branchNum][branchNum];
+		Random random = new Random(1);
+		for (int i = 0; i < branchNum; i++) {
+			for (int j = i; j < branchNum; j++) {
+				cov[i][j] = random.nextGaussian() * 1e-3;
+				cov[j][i] = cov[i][j];
+			}
+		}
+		File file = File.createTempFile("o.estb", ".bench");
+		file.deleteOnExit();
+		StringWriter text = new StringWriter();
+		DoubleFormatter fixed = DoubleFormatter.fixed(DoubleFormatter.MAX_PRECISION);
+		DoubleFormatter shortest = DoubleFormatter.shortest();
+		MappingParser.writeCovarianceMatrix(cov, fixed, text);
+		String bytes = text.toString();
+		System.out.println(branchNum + " branches, " + bytes.length() / (1024 * 1024) + " MB");
+		StringWriter decimal = new StringWriter();
+		decimalFormat(cov, decimal);
+		if (!decimal.toString().equals(bytes)) {
+			throw new IllegalStateException("DoubleFormatter differs from DecimalFormat");
+		}
+
+		for (int round = 0; round < 2; round++) { //first round is warm-up
+			System.out.println(round == 0 ? "warm-up" : "measure");
+			if (branchNum <= 400) {
+				long start = System.nanoTime();
+				for (int r = 0; r < rounds; r++) {
+					concatenation(cov);
+				}
+				print("String concatenation", start, rounds);
+			}
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				BufferedWriter out = open(file);
+				decimalFormat(cov, out);
+				out.close();
+			}
+			print("DecimalFormat", start, rounds);
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				BufferedWriter out = open(file);
+				MappingParser.writeCovarianceMatrix(cov, fixed, out);
+				out.close();
+			}
+			print("DoubleFormatter fixed", start, rounds);
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				BufferedWriter out = open(file);
+				MappingParser.writeCovarianceMatrix(cov, shortest, out);
+				out.close();
+			}
+			print("DoubleFormatter shortest", start, rounds);
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				BufferedWriter out = open(file);
+				out.write(bytes);
+				out.close();
+			}
+			print("I/O only", start, rounds);
+		}
+	}
+
+	private static BufferedWriter open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+	}
+
+	/**
+	 * MappingParser.writeCovarianceMatrix() before DoubleFormatter
+	 * @param covMatrix covariance matrix
+	 * @param out destination
+	 * @throws IOException
+	 */
+	private static void decimalFormat(double[][] covMatrix, Writer out) throws IOException {
+		DecimalFormat formatter = new DecimalFormat("#.#################");
+		FieldPosition field = new FieldPosition(0);
+		StringBuffer row = new StringBuffer();
+		out.write("variance-covariance matrix follows:\n");
+		for (int i = 0; i < covMatrix.length; i ++) {
+			row.setLength(0);
+			for (int j = 0; j < covMatrix[i].length; j ++) {
+				formatter.format(covMatrix[i][j], row, field).append(' ');
+			}
+			row.append('\n');
+			out.append(row);
+		}
+	}
+
+	/**
+	 * printCovarianceMatrix() before the streaming writer
+	 * @param covMatrix covariance matrix
+	 * @return formatted matrix
+	 */
+	private static String concatenation(double[][] covMatrix) {
+		DecimalFormat formatter = new DecimalFormat("#.#################");
+		String cov = "variance-covariance matrix follows:\n";
+		for (int i = 0; i < covMatrix.length; i ++) {
+			for (int j = 0; j < covMatrix.length; j ++) {
+				cov += formatter.format(covMatrix[i][j]) + " ";
+			}
+			cov += "\n";
+		}
+		return cov;
+	}
+
+	private static void print(String label, long start, int rounds) {
+		System.out.println(String.format("  %-26s %10.1f ms", label, (System.nanoTime() - start) / 1e6 / rounds));
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for DoubleFormatter. The values read back with Double.parseDouble(), as Multidivtime reads
+ * the o.estb files with strtod().
+ * @author Hui-Jie Lee
+ *
+ */
+public class DoubleFormatterTest extends TestCase {
+
+	/** Random values: covariances, substitution lengths, and any bits */
+	private double[] values;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		Random random = new Random(5);
+		values = new double[30000];
+		for (int i = 0; i < values.length; i += 3) {
+			values[i] = random.nextGaussian() * Math.pow(10, -random.nextInt(12));
+			values[i+1] = random.nextDouble() * 10;
+			double bits;
+			do {
+				bits = Double.longBitsToDouble(random.nextLong());
+			} while (Double.isNaN(bits) || Double.isInfinite(bits));
+			values[i+2] = bits;
+		}
+	}
+
+	public void testShortestRoundTrip() {
+		DoubleFormatter shortest = DoubleFormatter.shortest();
+		DoubleFormatter java = DoubleFormatter.javaStyle();
+		for (double v : values) {
+			String s = shortest.format(v);
+			assertEquals(s, Double.doubleToLongBits(v), Double.doubleToLongBits(Double.parseDouble(s)));
+			assertTrue(s, s.indexOf('E') < 0);
+			String j = java.format(v);
+			assertEquals(j, Double.doubleToLongBits(v), Double.doubleToLongBits(Double.parseDouble(j)));
+			//never more digits than Double.toString()
+			assertTrue(j, j.length() <= Double.toString(v).length());
+		}
+	}
+
+	public void testJavaStyle() {
+		DoubleFormatter java = DoubleFormatter.javaStyle();
+		double[] layout = {0, -0.0, 1, 0.5, 0.001, 1e-3 * 0.999, 1234567, 1e7, -1.5e-10, 123.456, Double.MIN_VALUE,
+				Double.MAX_VALUE};
+		for (double v : layout) {
+			assertEquals(Double.toString(v), java.format(v));
+		}
+	}
+
+	public void testFixedAsDecimalFormat() {
+		//the covariance matrices of the o.estb files before DoubleFormatter
+		DecimalFormat decimal = new DecimalFormat("#.#################");
+		DoubleFormatter fixed = DoubleFormatter.fixed(17);
+		int diff = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (i % 3 != 2 && !decimal.format(values[i]).equals(fixed.format(values[i]))) {
+				diff++;
+			}
+		}
+		//DecimalFormat rounds the digits of Double.toString(), one more than the shortest for rare values
+		assertTrue("differences " + diff, diff <= 2);
+		assertEquals("0", fixed.format(0));
+		assertEquals("-0", fixed.format(-1e-20));
+		assertEquals("0.00000000000000001", fixed.format(1e-17));
+		assertEquals("12345.678", fixed.format(12345.678));
+		assertEquals(decimal.format(-0.000123456789), fixed.format(-0.000123456789));
+	}
+
+	public void testFixedPrecision() {
+		for (int p = 0; p <= DoubleFormatter.MAX_PRECISION; p++) {
+			DoubleFormatter fixed = DoubleFormatter.of(p);
+			BigDecimal half = BigDecimal.valueOf(5, p + 1);
+			for (int i = 0; i < values.length; i += 3) {
+				String s = fixed.format(values[i]);
+				int dot = s.indexOf('.');
+				assertTrue(s, dot < 0 || s.length() - dot - 1 <= p);
+				//the shortest digits rounded to p places: within half a unit of the last place and half an ulp
+				BigDecimal error = new BigDecimal(s).subtract(new BigDecimal(values[i])).abs();
+				assertTrue(p + " " + s, error.compareTo(half.add(new BigDecimal(Math.ulp(values[i]) / 2))) <= 0);
+			}
+		}
+		//HALF_EVEN on the exact value of the double
+		assertEquals("0.2", DoubleFormatter.fixed(1).format(0.25));
+		assertEquals("0.3", DoubleFormatter.fixed(1).format(0.35));
+		assertEquals("2", DoubleFormatter.fixed(0).format(2.5));
+		assertEquals("10", DoubleFormatter.fixed(0).format(9.5));
+	}
+
+	public void testSpecialValues() {
+		DoubleFormatter fixed = DoubleFormatter.fixed(17);
+		DoubleFormatter java = DoubleFormatter.javaStyle();
+		assertEquals("NaN", fixed.format(Double.NaN));
+		assertEquals("NaN", java.format(Double.NaN));
+		assertEquals("\u221E", fixed.format(Double.POSITIVE_INFINITY));
+		assertEquals("-\u221E", fixed.format(Double.NEGATIVE_INFINITY));
+		assertEquals("Infinity", java.format(Double.POSITIVE_INFINITY));
+		assertEquals("-Infinity", java.format(Double.NEGATIVE_INFINITY));
+		assertEquals(new DecimalFormat("#.#################").format(Double.NaN), fixed.format(Double.NaN));
+		assertEquals(new DecimalFormat("#.#################").format(Double.NEGATIVE_INFINITY),
+				fixed.format(Double.NEGATIVE_INFINITY));
+	}
+
+	public void testCovarianceMatrix() throws Exception {
+		//a row longer than the buffer of writeCovarianceMatrix() and the values read back
+		int B = 5000;
+		double[][] cov = new double[2][B];
+		for (int j = 0; j < B; j++) {
+			cov[0][j] = values[j];
+			cov[1][j] = -values[B + j];
+		}
+		StringWriter out = new StringWriter();
+		MappingParser.writeCovarianceMatrix(cov, DoubleFormatter.shortest(), out);
+		String[] lines = out.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("variance-covariance matrix follows:", lines[0]);
+		for (int i = 0; i < 2; i++) {
+			String[] row = lines[i + 1].split(" ");
+			assertEquals(B, row.length);
+			for (int j = 0; j < B; j++) {
+				assertEquals(Double.doubleToLongBits(cov[i][j]), Double.doubleToLongBits(Double.parseDouble(row[j])));
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test class for MapArchive. The neutral chain is packed into a container in a temporary directory
+ * and the sites are read back through MapTextSource, in random order.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapArchiveTest extends MappingSourceTestCase {
+
+	/**
+	 * Sets up the MapArchiveTest by packing the neutral chain into the temporary directory.
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		MapArchive.pack(N, "neutral", new File("."), new File(dir, "neutral" + MapArchive.EXTENSION));
+	}
+
+	public void testIndex() throws IOException {
+		//the constructor closes the container, there is no file to close
+		MapArchive archive = new MapArchive(new File(dir, "neutral" + MapArchive.EXTENSION));
+		assertEquals(N, archive.getNumSites());
+		for (int i = 0; i < N; i++) {
+			assertEquals(new File("neutral_"+i+".map").length(), archive.getEnd(i) - archive.getStart(i));
+		}
+	}
+
+	public void testRandomAccess() throws IOException {
+		MapTextSource plain = new MapTextSource(new File("."), "neutral");
+		MapTextSource packed = new MapTextSource(dir, "neutral");
+		assertSameTrees(plain, packed, new int[] {3, 1, 2, 0});
+	}
+
+	public void testMissingSite() throws IOException {
+		MapTextSource packed = new MapTextSource(dir, "neutral");
+		try {
+			packed.openSite(N);
+			fail();
+		} catch (IOException e) {
+			//no such site
+		} finally {
+			packed.close();
+		}
+	}
+}
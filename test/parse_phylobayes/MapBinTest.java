@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Test class for MapBinWriter and MapBinReader. The neutral chain is converted to a .mapbin
+ * file and every tree read back from it is compared with the tree read from the .map files.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapBinTest extends MappingSourceTestCase {
+
+	/** Cache written by the test */
+	private File cache;
+
+	/**
+	 * Sets up the MapBinTest by converting the neutral chain.
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache = new File(dir, "neutral" + MapBinWriter.EXTENSION);
+		MapBinWriter.convert(N, C, "neutral", new File("."), cache);
+	}
+
+	public void testSameTrees() throws IOException {
+		MapTextSource text = new MapTextSource(new File("."), "neutral");
+		MapBinReader bin = new MapBinReader(cache);
+		assertEquals(N, bin.getNumSites());
+		assertEquals(C, bin.getNumTrees());
+		assertSameTrees(text, bin, allSites());
+		assertEquals(cache.length(), bin.getBytesRead() + cacheHeaderLength(bin));
+	}
+
+	public void testTruncatedFile() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+		raf.setLength(cache.length() - 1);
+		raf.close();
+		try {
+			new MapBinReader(cache);
+			fail();
+		} catch (IOException e) {
+			//incomplete file
+		}
+	}
+
+	public void testChangedSource() throws Exception {
+		for (int i = 0; i < N; i++) {
+			Files.copy(new File("neutral_"+i+".map").toPath(), new File(dir, "neutral_"+i+".map").toPath());
+		}
+		MapBinWriter.convert(N, C, "neutral", dir, cache);
+		MapBinReader bin = new MapBinReader(cache);
+		try {
+			bin.checkSources(dir);
+			//the cache is read as long as the .map files are the same
+			new MappingParser(N, C, "neutral", 2, "", dir);
+			File changed = new File(dir, "neutral_2.map");
+			changed.setLastModified(changed.lastModified() + 2000);
+			try {
+				bin.checkSources(dir);
+				fail("changed .map file");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("neutral_2.map"));
+			}
+			try {
+				new MappingParser(N, C, "neutral", 2, "", dir);
+				fail("stale cache read");
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			//a deleted .map file is replaced by the cache
+			changed.delete();
+			bin.checkSources(dir);
+		} finally {
+			bin.close();
+		}
+	}
+
+	/**
+	 * Return the length of the header of a .mapbin file
+	 * @param bin reader
+	 * @return length of the header
+	 */
+	private long cacheHeaderLength(MapBinReader bin) {
+		TopologyTemplate t = bin.getTemplate();
+		long length = 8 + 3 * 4 + 8 + 4 * t.getNumNodes() + 8 * (N + 1);
+		for (int n = 0; n < t.getNumNodes(); n++) {
+			length += 4 + t.getName(n).length();
+		}
+		//the N source files neutral_<site>.map
+		length += 4;
+		for (int i = 0; i < N; i++) {
+			length += 4 + ("neutral_"+i+".map").length() + 8 + 8;
+		}
+		return length;
+	}
+}
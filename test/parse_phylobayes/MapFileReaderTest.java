@@ -0,0 +1,68 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.Reader;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for MapFileReader.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapFileReaderTest extends TestCase {
+
+	/** A MapFileReader to perform tests */
+	private MapFileReader reader;
+
+	/**
+	 * Sets up the MapFileReaderTest by opening test_0.map.
+	 */
+	protected void setUp() throws Exception {
+		reader = new MapFileReader(new File("."));
+		reader.open("test_0.map");
+	}
+	
+	public void testNextLine() throws Exception {
+		//2 iterations, each has 2 trees followed by an empty line (no empty line at the end of the file)
+		int lines = 0;
+		while (reader.nextLine()) {
+			if (lines % 3 == 2) {
+				assertEquals(0, reader.getLineLength());
+			} else {
+				assertEquals('(', reader.getBuffer().get(reader.getLineStart()));
+				assertEquals(';', reader.getBuffer().get(reader.getLineEnd() - 1));
+			}
+			lines++;
+		}
+		assertEquals(5, lines);
+		assertEquals(new File("test_0.map").length(), reader.getBytesRead());
+	}
+	
+	public void testLineReader() throws Exception {
+		reader.nextLine();
+		Reader r = reader.lineReader();
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = r.read()) != -1) {
+			sb.append((char) c);
+		}
+		assertEquals("(((A_A:0.1:C:0.5:C,B_A:0.4:C:0.3:C)_C:0.7:G:0.3:G,(C_A:0.3:A:0.1:T:0.1:T,D_T:0.5:T)_T:0.8:T:0.2:G:0.3:G)_G:0.8:G,((E_C:0.4:C,F_C:0.7:C)_C:0.7:C,G_A:0.4:C:0.6:C)_C:0.9:G:0.3:G)_G;", sb.toString());
+		
+		Tree tree = new TreeParser(reader.lineReader(), "").tokenize();
+		assertEquals(12, tree.getNumBranches());
+	}
+	
+	/**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    protected void tearDown() throws Exception {
+         reader.close();
+         reader = null;
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Test class for MapPrefetcher. The test chain is compressed with gzip into a temporary directory
+ * and read back through MapTextSource.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MapPrefetcherTest extends MappingSourceTestCase {
+
+	/**
+	 * Sets up the MapPrefetcherTest by compressing the test chain into the temporary directory.
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		for (int i = 0; i < N; i++) {
+			InputStream in = new FileInputStream("test_"+i+".map");
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(dir, "test_"+i+".map.gz")));
+			byte[] b = new byte[4096];
+			for (int n = in.read(b); n > 0; n = in.read(b)) {
+				out.write(b, 0, n);
+			}
+			in.close();
+			out.close();
+		}
+	}
+
+	public void testDecompress() throws IOException {
+		ByteBuffer content = MapPrefetcher.decompress(new File(dir, "test_0.map.gz"));
+		assertEquals(new File("test_0.map").length(), content.limit());
+		MapPrefetcher prefetcher = new MapPrefetcher(dir, "test", 2);
+		try {
+			for (int i = 0; i < N; i++) {
+				assertEquals(new File("test_"+i+".map").length(), prefetcher.get(i).limit());
+			}
+			try {
+				prefetcher.get(N);
+				fail();
+			} catch (IOException e) {
+				//no such site
+			}
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	public void testThreadsPerParser() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		assertEquals(Math.max(1, cores - 1), MapPrefetcher.threadsPerParser(1));
+		for (int threads = 1; threads <= 2 * cores; threads++) {
+			//at least one decompression thread per parser, no more than the cores left by the parsers
+			int each = MapPrefetcher.threadsPerParser(threads);
+			assertTrue(each >= 1);
+			assertTrue(each == 1 || threads * each <= cores - threads);
+		}
+	}
+
+	public void testSameTrees() throws IOException {
+		MapTextSource plain = new MapTextSource(new File("."), "test");
+		MapTextSource compressed = new MapTextSource(dir, "test");
+		assertSameTrees(plain, compressed, allSites());
+		assertEquals(plain.getBytesRead(), compressed.getBytesRead());
+	}
+}
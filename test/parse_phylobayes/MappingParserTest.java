@@ -3,6 +3,9 @@
  */
 package parse_phylobayes;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
@@ -250,6 +253,91 @@ public class MappingParserTest extends TestCase {
 		}
 	}
 	
+	public void testThreads() {
+		//4 sites, 2 iterations: 3 threads split option 1 into 3 ranges of sites and option 2 into 2 ranges of windows
+		RunOptions options = new RunOptions();
+		options.setThreads(3);
+		MappingParser[] sequential = {parse, parse1};
+		MappingParser[] parallel = {new MappingParser(4, 2, "test", 1, "", options),
+				new MappingParser(4, 2, "neutral", 2, "", options)};
+		for (int p = 0; p < 2; p++) {
+			assertTrue(Arrays.deepEquals(sequential[p].getNumberOfChanges(), parallel[p].getNumberOfChanges()));
+			assertTrue(Arrays.deepEquals(sequential[p].getChangesInGroups(), parallel[p].getChangesInGroups()));
+			assertTrue(Arrays.deepEquals(sequential[p].getBranchLengths(), parallel[p].getBranchLengths()));
+			double[][][] seqTime = sequential[p].getTimeStates();
+			double[][][] parTime = parallel[p].getTimeStates();
+			double[][][] seqProp = sequential[p].getPropStates();
+			double[][][] parProp = parallel[p].getPropStates();
+			for (int i = 0; i < seqTime.length; i++) {
+				for (int j = 0; j < seqTime[i].length; j++) {
+					for (int k = 0; k < seqTime[i][j].length; k++) {
+						//the sums are added in another order, equal up to rounding
+						assertEquals(seqTime[i][j][k], parTime[i][j][k], 1e-12);
+						assertEquals(seqProp[i][j][k], parProp[i][j][k], 1e-12);
+					}
+				}
+			}
+		}
+	}
+	
+	public void testStreamingMoments() {
+		//same covariance matrices and trees as the stored samples, 12 types and 6 groups, 4 types and 9 groups
+		RunOptions options = new RunOptions();
+		options.setStreaming(true);
+		MappingParser[] stored = {parse, parse1};
+		MappingParser[] streaming = {new MappingParser(4, 2, "test", 1, "", options),
+				new MappingParser(4, 2, "neutral", 2, "", options)};
+		int[][] numTypes = {{12, 6}, {4, 9}};
+		for (int p = 0; p < 2; p++) {
+			for (int option = 0; option < 2; option++) {
+				for (int g = 0; g < numTypes[p][option]; g++) {
+					assertTrue(Arrays.deepEquals(stored[p].getCovarianceMatrix(g, option), streaming[p].getCovarianceMatrix(g, option)));
+					assertEquals(stored[p].getNewickTree(g, option), streaming[p].getNewickTree(g, option));
+				}
+			}
+		}
+		try {
+			streaming[0].getTheta();
+			fail("theta stored in streaming mode");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+	}
+	
+	public void testTruncatedMap() throws Exception {
+		//2 samples per file, the third is missing
+		try {
+			new MappingParser(4, 3, "test", 1, "");
+			fail("3 iterations read from 2 samples");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().endsWith("test_0.map is truncated at sample 2 of site 0"));
+		}
+		//test_2.map cut after the first tree of the second sample
+		File dir = File.createTempFile("map", "");
+		dir.delete();
+		dir.mkdir();
+		for (int i = 0; i < 4; i++) {
+			byte[] content = Files.readAllBytes(new File("test_"+i+".map").toPath());
+			int length = content.length;
+			if (i == 2) {
+				for (int lines = 0, j = 0; lines < 4; j++) {
+					if (content[j] == '\n') {
+						lines++;
+						length = j + 1;
+					}
+				}
+			}
+			Files.write(new File(dir, "test_"+i+".map").toPath(), Arrays.copyOf(content, length));
+		}
+		try {
+			new MappingParser(4, 2, "test", 1, "", dir);
+			fail("truncated file read");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().endsWith("test_2.map is truncated at sample 1 of site 2"));
+		}
+	}
+	
 	/**
      * Tears down the test fixture.
      * (Called after every test case method.)
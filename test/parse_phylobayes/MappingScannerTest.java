@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for MappingScanner. The trees built by the scanner are compared with
+ * the trees built by TreeParser.
+ * @author Hui-Jie Lee
+ *
+ */
+public class MappingScannerTest extends TestCase {
+
+	/** A MappingScanner to perform tests */
+	private MappingScanner scanner;
+	
+	/** Trees in the mapping dialect, including `e-05' times and an unrooted tree */
+	private static final String[] TREES = new String[] {
+		"(((A_A:0.1:C:0.5:C,B_A:0.4:C:0.3:C)_C:0.7:G:0.3:G,(C_A:0.3:A:0.1:T:0.1:T,D_T:0.5:T)_T:0.8:T:0.2:G:0.3:G)_G:0.8:G,((E_C:0.4:C,F_C:0.7:C)_C:0.7:C,G_A:0.4:C:0.6:C)_C:0.9:G:0.3:G)_G;",
+		"(((human_A:0.100993:A,orangutan_A:0.0694486:A)_A:0.198984:A,(rhesus_A:0.195176:A,baboon_A:0.233133:A)_A:0.171989:A)_A:0.406658:A,marmoset_A:0.297841:A,bushbaby_G:3.73678e-05:G:0.490021:A)_A;",
+		"(((human_A:0.101652:A,orangutan_A:0.175401:A)_A:0.649724:A,(rhesus_G:0.00557255:G:0.314872:A,baboon_G:0.136734:G:0.279524:A)_A:0.27683:A)_A:1.42672:A:0.197287:T:0.302921:A:0.677233:T:0.683041:C:0.366039:G:0.300407:A:1.29285:T,marmoset_C:0.0890465:C:1.71246:A:0.0718244:G:0.685267:A:2.21303:T,bushbaby_G:0.146267:G:1.23497:T:0.433369:C:0.174881:G:1.14392:T:0.192338:C:0.350913:G:0.364961:A:0.508608:C:1.1939:G:1.20611:T:0.687221:G:0.548099:T)_T;"
+	};
+
+	/**
+	 * Sets up the MappingScannerTest by creating a MappingScanner. 
+	 */
+	protected void setUp() throws Exception {
+		scanner = new MappingScanner();
+	}
+	
+	public void testScan() {
+		scanner.scan(TREES[0]);
+		assertEquals(13, scanner.getNumNodes());
+		assertEquals(-1, scanner.getParent(0));
+		assertEquals('G', scanner.getState(0));
+		//node 3 is leaf A: A_A:0.1:C:0.5:C
+		assertEquals("A", scanner.getName(3));
+		assertEquals('A', scanner.getState(3));
+		assertEquals(0.1, scanner.getTime(3));
+		assertEquals(1, scanner.getEventCount(3));
+		assertEquals('C', scanner.getEventState(3, 0));
+		assertEquals(0.5, scanner.getEventTime(3, 0));
+		assertEquals(2, scanner.getParent(3));
+	}
+	
+	public void testExponent() {
+		scanner.scan(TREES[1]);
+		//bushbaby is the last node
+		assertEquals("bushbaby", scanner.getName(scanner.getNumNodes() - 1));
+		assertEquals(3.73678e-05, scanner.getTime(scanner.getNumNodes() - 1));
+	}
+	
+	public void testSameTreeAsTreeParser() {
+		for (int t = 0; t < TREES.length; t++) {
+			Tree expected = new TreeParser(new StringReader(TREES[t]), "").tokenize();
+			scanner.scan(TREES[t]);
+			Tree actual = scanner.toTree(OutgroupSpec.NONE);
+			assertEquals(expected.getNumBranches(), actual.getNumBranches());
+			assertEquals(expected.getNumLeaves(), actual.getNumLeaves());
+			for (int i = 0; i < expected.getTotalNodeCount(); i++) {
+				TreeNode e = expected.getNodeByNodeNum(i);
+				TreeNode a = actual.getNodeByNodeNum(i);
+				assertEquals(e.getName(), a.getName());
+				assertEquals(e.getState(), a.getState());
+				assertEquals(e.getTime(), a.getTime());
+				assertEquals(e.numberChildren(), a.numberChildren());
+				if (!e.isRoot()) {
+					assertEquals(e.parent().getNodeNum(), a.parent().getNodeNum());
+					assertEquals(e.getPathState(), a.getPathState());
+					assertEquals(e.getPathTime(), a.getPathTime());
+				}
+			}
+		}
+	}
+	
+	public void testRemoveOutgroup() {
+		scanner.scan(TREES[2]);
+		Tree tree = scanner.toTree(new OutgroupSpec(new String[] {"bushbaby"}));
+		assertEquals(2, tree.getRoot().numberChildren());
+		assertEquals(5, tree.getNumLeaves());
+		assertEquals(8, tree.getNumBranches());
+	}
+	
+	public void testError() {
+		try {
+			scanner.scan("((A_A:0.1:A,B_A:0.1:A)_A;");
+			fail();
+		} catch (IllegalArgumentException e) {
+			//unbalanced brackets
+		}
+	}
+	
+	/**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    protected void tearDown() {
+         scanner = null;
+    }
+
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Base class of the tests of the sources of trees (MapBinReader, MapPrefetcher, MapArchive): a temporary
+ * directory for the converted chain, and the comparison of every tree of a source with the tree read from
+ * the .map files.
+ * @author Hui-Jie Lee
+ *
+ */
+public abstract class MappingSourceTestCase extends TestCase {
+
+	/** Number of sites of the test and neutral chains */
+	protected static final int N = 4;
+	/** Number of trees per site of the test and neutral chains */
+	protected static final int C = 2;
+
+	/** Temporary directory, deleted with its files after every test case */
+	protected File dir;
+
+	/**
+	 * Sets up the test by creating the temporary directory.
+	 */
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("map", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	/**
+	 * Assert that two sources hold the same trees: same topology, and the same names, states, times, path
+	 * states and path times of every node, for the C trees of each site.
+	 * Both sources are closed, also when an assertion fails; their byte counts can still be read.
+	 * @param expectedSource source of the expected trees, e.g. the .map files
+	 * @param actualSource source under test
+	 * @param sites sites to compare, in the order they are opened
+	 * @throws IOException
+	 */
+	protected static void assertSameTrees(MappingSource expectedSource, MappingSource actualSource, int[] sites)
+			throws IOException {
+		try {
+			assertEquals(expectedSource.getTemplate().getFingerprint(), actualSource.getTemplate().getFingerprint());
+			Tree expected = expectedSource.getTemplate().newTree();
+			Tree actual = actualSource.getTemplate().newTree();
+			for (int s = 0; s < sites.length; s++) {
+				expectedSource.openSite(sites[s]);
+				actualSource.openSite(sites[s]);
+				for (int j = 0; j < C; j++) {
+					expectedSource.next(expected);
+					actualSource.next(actual);
+					assertSameTree(expected, actual);
+				}
+			}
+		} finally {
+			try {
+				expectedSource.close();
+			} finally {
+				actualSource.close();
+			}
+		}
+	}
+
+	/**
+	 * Assert that two trees of the same topology have the same nodes
+	 * @param expected expected tree
+	 * @param actual tree under test
+	 */
+	protected static void assertSameTree(Tree expected, Tree actual) {
+		assertEquals(expected.getTotalNodeCount(), actual.getTotalNodeCount());
+		for (int n = 0; n < expected.getTotalNodeCount(); n++) {
+			TreeNode e = expected.getNodeByNodeNum(n);
+			TreeNode a = actual.getNodeByNodeNum(n);
+			assertEquals(e.getName(), a.getName());
+			assertEquals(e.getState(), a.getState());
+			assertEquals(e.getTime(), a.getTime());
+			if (!e.isRoot()) {
+				assertEquals(e.getPathState(), a.getPathState());
+				assertEquals(e.getPathTime(), a.getPathTime());
+			}
+		}
+	}
+
+	/**
+	 * Return the sites 0 to N-1 in order
+	 * @return sites
+	 */
+	protected static int[] allSites() {
+		int[] sites = new int[N];
+		for (int i = 0; i < N; i++) {
+			sites[i] = i;
+		}
+		return sites;
+	}
+
+	/**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    protected void tearDown() {
+    	File[] files = dir.listFiles();
+    	for (int i = 0; i < files.length; i++) {
+    		files[i].delete();
+    	}
+    	dir.delete();
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for OutgroupSpec. The branch mask is compared with the numbering
+ * of the trees after Tree.removeOutgroup().
+ * @author Hui-Jie Lee
+ *
+ */
+public class OutgroupSpecTest extends TestCase {
+
+	/** Unrooted trees: outgroup as the last child and as the middle child of the root */
+	private static final String[] TREES = new String[] {
+		"(((human_A:0.100993:A,orangutan_A:0.0694486:A)_A:0.198984:A,(rhesus_A:0.195176:A,baboon_A:0.233133:A)_A:0.171989:A)_A:0.406658:A,marmoset_A:0.297841:A,bushbaby_G:3.73678e-05:G:0.490021:A)_A;",
+		"((a_A:0.1:A,b_A:0.1:A)_A:0.2:A,(o1_A:0.1:A,o2_A:0.1:A)_A:0.3:A,c_A:0.4:A)_A;"
+	};
+
+	/** Outgroup of each tree */
+	private static final OutgroupSpec[] OUTGROUPS = new OutgroupSpec[] {
+		new OutgroupSpec(new String[] {"bushbaby"}),
+		new OutgroupSpec(new String[] {"o1", "o2"})
+	};
+
+	public void testLoad() throws Exception {
+		OutgroupSpec spec = OutgroupSpec.load(new File("example/outgroup.txt"));
+		assertEquals(3, spec.size());
+		assertEquals("E", spec.getTaxon(0));
+		assertTrue(spec.contains("G"));
+		assertFalse(spec.contains("A"));
+		assertTrue(OutgroupSpec.NONE.isEmpty());
+	}
+
+	public void testBranchMask() {
+		for (int t = 0; t < TREES.length; t++) {
+			Tree full = new TreeParser(new StringReader(TREES[t]), OutgroupSpec.NONE).tokenize();
+			Tree pruned = new TreeParser(new StringReader(TREES[t]), OUTGROUPS[t]).tokenize();
+			int[] mask = OUTGROUPS[t].branchMask(full);
+			assertEquals(full.getTotalNodeCount(), mask.length);
+			int kept = 0;
+			for (int n = 0; n < mask.length; n++) {
+				TreeNode node = full.getNodeByNodeNum(n);
+				if (mask[n] < 0) {
+					assertTrue(node.isLeaf() ? OUTGROUPS[t].contains(node.getName()) : !node.isRoot());
+					continue;
+				}
+				kept++;
+				TreeNode same = pruned.getNodeByNodeNum(mask[n]);
+				assertEquals(node.getName(), same.getName());
+				assertEquals(node.getTime(), same.getTime());
+				assertEquals(node.isRoot(), same.isRoot());
+			}
+			assertEquals(pruned.getTotalNodeCount(), kept);
+		}
+	}
+
+	public void testIdentityWithoutOutgroup() {
+		Tree full = new TreeParser(new StringReader(TREES[0]), OutgroupSpec.NONE).tokenize();
+		int[] mask = OutgroupSpec.NONE.branchMask(full);
+		for (int n = 0; n < mask.length; n++) {
+			assertEquals(n, mask[n]);
+		}
+	}
+}
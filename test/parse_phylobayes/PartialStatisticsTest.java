@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for PartialStatistics. The test chain (option 1) and the neutral chain (option 2) are run in
+ * shards, the partial files are written to a temporary directory, read back and merged, and the merged
+ * run is compared with the run over all the sites.
+ * @author Hui-Jie Lee
+ *
+ */
+public class PartialStatisticsTest extends TestCase {
+
+	/** Temporary directory holding the partial files */
+	private File dir;
+
+	/**
+	 * Sets up the PartialStatisticsTest.
+	 */
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("partial", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	/**
+	 * Run a shard of a chain of 4 sites and 2 iterations, write its partial file and read it back.
+	 */
+	private PartialStatistics shard(String name, int option, int from, int to) throws IOException {
+		RunOptions options = new RunOptions();
+		options.setSites(from, to);
+		MappingParser parse = new MappingParser(4, 2, name, option, "", options);
+		File file = new File(dir, name + ".sites_" + from + "-" + to + ".partial");
+		parse.getPartialStatistics().write(file);
+		return PartialStatistics.read(file);
+	}
+
+	private void assertSameRun(MappingParser expected, MappingParser actual) {
+		assertTrue(Arrays.deepEquals(expected.getNumberOfChanges(), actual.getNumberOfChanges()));
+		assertTrue(Arrays.deepEquals(expected.getChangesInGroups(), actual.getChangesInGroups()));
+		assertTrue(Arrays.deepEquals(expected.getBranchLengths(), actual.getBranchLengths()));
+		double[][][] expTime = expected.getTimeStates();
+		double[][][] actTime = actual.getTimeStates();
+		double[][][] expTheta = expected.getTheta();
+		double[][][] actTheta = actual.getTheta();
+		for (int i = 0; i < expTime.length; i++) {
+			for (int j = 0; j < expTime[i].length; j++) {
+				for (int k = 0; k < expTime[i][j].length; k++) {
+					//the sums are added in another order, equal up to rounding
+					assertEquals(expTime[i][j][k], actTime[i][j][k], 1e-12);
+				}
+			}
+		}
+		for (int i = 0; i < expTheta.length; i++) {
+			for (int j = 0; j < expTheta[i].length; j++) {
+				for (int k = 0; k < expTheta[i][j].length; k++) {
+					assertEquals(expTheta[i][j][k], actTheta[i][j][k], 1e-12);
+				}
+			}
+		}
+	}
+
+	public void testMergeSingleSite() throws IOException {
+		ArrayList<PartialStatistics> shards = new ArrayList<PartialStatistics>();
+		//in any order
+		shards.add(shard("test", 1, 2, 4));
+		shards.add(shard("test", 1, 0, 2));
+		assertSameRun(new MappingParser(4, 2, "test", 1, ""), new MappingParser(PartialStatistics.merge(shards)));
+	}
+
+	public void testMergeTriplet() throws IOException {
+		//4 sites: windows 0 and 1
+		ArrayList<PartialStatistics> shards = new ArrayList<PartialStatistics>();
+		shards.add(shard("neutral", 2, 0, 1));
+		shards.add(shard("neutral", 2, 1, 2));
+		assertSameRun(new MappingParser(4, 2, "neutral", 2, ""), new MappingParser(PartialStatistics.merge(shards)));
+	}
+
+	public void testGapAndOverlap() throws IOException {
+		ArrayList<PartialStatistics> gap = new ArrayList<PartialStatistics>();
+		gap.add(shard("test", 1, 0, 1));
+		gap.add(shard("test", 1, 2, 4));
+		try {
+			PartialStatistics.merge(gap);
+			fail("Missing site 1 not reported");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Missing sites 1:2"));
+		}
+		ArrayList<PartialStatistics> overlap = new ArrayList<PartialStatistics>();
+		overlap.add(shard("test", 1, 0, 3));
+		overlap.add(shard("test", 1, 2, 4));
+		try {
+			PartialStatistics.merge(overlap);
+			fail("Overlapping site 2 not reported");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Overlapping sites 2:3"));
+		}
+		ArrayList<PartialStatistics> end = new ArrayList<PartialStatistics>();
+		end.add(shard("test", 1, 0, 3));
+		try {
+			PartialStatistics.merge(end);
+			fail("Missing site 3 not reported");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Missing sites 3:4"));
+		}
+	}
+
+	public void testDifferentOutgroup() throws IOException {
+		PartialStatistics a = shard("neutral", 2, 0, 1);
+		PartialStatistics b = shard("neutral", 2, 1, 2);
+		ArrayList<PartialStatistics> shards = new ArrayList<PartialStatistics>();
+		shards.add(new PartialStatistics(2, 3, 4, 2, 0, 1, a.getTemplate(),
+				new OutgroupSpec(new String[] {"bushbaby"}), a.getStatistics()));
+		shards.add(new PartialStatistics(2, 3, 4, 2, 1, 2, b.getTemplate(),
+				new OutgroupSpec(new String[] {"marmoset"}), b.getStatistics()));
+		try {
+			PartialStatistics.merge(shards);
+			fail("Outgroups of the same size but different taxa merged");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Partial files of different runs"));
+		}
+	}
+
+	/**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+}
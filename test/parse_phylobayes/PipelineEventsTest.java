@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for PipelineEvents: the events of a run of MappingParser in a recording.
+ * @author Hui-Jie Lee
+ *
+ */
+public class PipelineEventsTest extends TestCase {
+
+	public void testEvents() throws Exception {
+		File file = File.createTempFile("pipeline", ".jfr");
+		file.deleteOnExit();
+		Recording recording = new Recording();
+		String[] names = {"Site", "TreeTokenize", "TreeClassify", "Accumulate", "Covariance"};
+		for (String name : names) {
+			//every tree, whatever its time
+			recording.enable("parse_phylobayes." + name).withThreshold(Duration.ZERO);
+		}
+		recording.start();
+		MappingParser parse = new MappingParser(4, 2, "test", 1, "");
+		parse.getCovarianceMatrix(0, 1);
+		recording.stop();
+		recording.dump(file.toPath());
+		recording.close();
+
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+		for (RecordedEvent event : events) {
+			String name = event.getEventType().getName();
+			counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+			if (name.equals("parse_phylobayes.Accumulate")) {
+				assertEquals(0, event.getInt("from"));
+				assertEquals(4, event.getInt("to"));
+				assertEquals(8, event.getLong("trees"));
+				assertTrue(event.getLong("bytes") > 0);
+			} else if (name.equals("parse_phylobayes.TreeClassify")) {
+				assertTrue(event.getInt("sample") < 2);
+				assertTrue(event.getInt("changes") >= 0);
+			} else if (name.equals("parse_phylobayes.Covariance")) {
+				assertTrue(event.getBoolean("grouped"));
+				assertEquals(parse.getBranchNum(), event.getInt("branches"));
+				assertEquals(2, event.getInt("iterations"));
+			}
+		}
+		//4 sites of 2 samples
+		assertEquals(Integer.valueOf(4), counts.get("parse_phylobayes.Site"));
+		assertEquals(Integer.valueOf(8), counts.get("parse_phylobayes.TreeTokenize"));
+		assertEquals(Integer.valueOf(8), counts.get("parse_phylobayes.TreeClassify"));
+		assertEquals(Integer.valueOf(1), counts.get("parse_phylobayes.Accumulate"));
+		assertEquals(Integer.valueOf(1), counts.get("parse_phylobayes.Covariance"));
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for ReportExporter.
+ * @author Hui-Jie Lee
+ *
+ */
+public class ReportExporterTest extends TestCase {
+
+	/** Number of branches */
+	private static final int B = 3;
+	/** Number of iterations */
+	private static final int C = 5;
+
+	/** Number of changes of 2 types */
+	private int[] changes;
+	/** Proportions of time of 2 states */
+	private double[] prop;
+	/** Report of changes and prop */
+	private ReportExporter report;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		Random random = new Random(7);
+		changes = new int[2 * B * C];
+		prop = new double[2 * B * C];
+		for (int i = 0; i < changes.length; i++) {
+			changes[i] = random.nextInt(1000) - 10;
+			prop[i] = random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+		}
+		changes[0] = Integer.MIN_VALUE;
+		changes[1] = Integer.MAX_VALUE;
+		report = new ReportExporter(B, C);
+		report.add("changes", changes, 2);
+		report.add("proportion", prop, 2);
+	}
+
+	public void testParseQuantities() {
+		assertEquals(ReportExporter.COUNTS | ReportExporter.THETA_SS, ReportExporter.parseQuantities("counts,theta_ss"));
+		assertEquals(ReportExporter.ALL, ReportExporter.parseQuantities("all"));
+		try {
+			ReportExporter.parseQuantities("counts,time");
+			fail("unknown quantity");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	public void testTsv() throws Exception {
+		StringWriter out = new StringWriter();
+		report.writeTsv(out);
+		String[] lines = out.toString().split("\n");
+		assertEquals(1 + 4 * B, lines.length);
+		assertEquals("quantity\ttype\tbranch\t0\t1\t2\t3\t4", lines[0]);
+		SampleLayout layout = new SampleLayout(B, C);
+		for (int g = 0; g < 2; g++) {
+			for (int j = 0; j < B; j++) {
+				String[] counts = lines[1 + g * B + j].split("\t");
+				String[] props = lines[1 + (2 + g) * B + j].split("\t");
+				assertEquals("changes", counts[0]);
+				assertEquals("proportion", props[0]);
+				assertEquals(Integer.toString(g), counts[1]);
+				assertEquals(Integer.toString(j), props[2]);
+				for (int k = 0; k < C; k++) {
+					assertEquals(changes[layout.offset(g, j) + k], Integer.parseInt(counts[3 + k]));
+					assertEquals(prop[layout.offset(g, j) + k], Double.parseDouble(props[3 + k]));
+				}
+			}
+		}
+	}
+
+	public void testBinaryGzip() throws Exception {
+		File file = File.createTempFile("report", ".bin.gz");
+		file.deleteOnExit();
+		report.write(file, true);
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+		try {
+			for (int i = 0; i < ReportExporter.MAGIC.length; i++) {
+				assertEquals(ReportExporter.MAGIC[i], in.readByte());
+			}
+			assertEquals(B, in.readInt());
+			assertEquals(C, in.readInt());
+			assertEquals(2, in.readInt());
+			assertEquals("changes", in.readUTF());
+			assertEquals('I', in.readByte());
+			assertEquals(2, in.readInt());
+			for (int i = 0; i < changes.length; i++) {
+				assertEquals(changes[i], in.readInt());
+			}
+			assertEquals("proportion", in.readUTF());
+			assertEquals('D', in.readByte());
+			assertEquals(2, in.readInt());
+			for (int i = 0; i < prop.length; i++) {
+				assertEquals(prop[i], in.readDouble());
+			}
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testExportReport() throws Exception {
+		MappingParser parse = new MappingParser(4, 2, "test", 1, "");
+		File file = File.createTempFile("report", ".tsv.gz");
+		file.deleteOnExit();
+		parse.exportReport(ReportExporter.COUNTS | ReportExporter.THETA, file, false);
+		InputStream stream = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+		int[][][] changes = parse.getNumberOfChanges();
+		double[][][] theta = parse.getTheta();
+		int lines = 0;
+		try {
+			in.readLine();
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] row = line.split("\t");
+				int g = Integer.parseInt(row[1]);
+				int j = Integer.parseInt(row[2]);
+				for (int k = 0; k < 2; k++) {
+					if (row[0].equals("changes")) {
+						assertEquals(changes[g][j][k], Integer.parseInt(row[3 + k]));
+					} else if (row[0].equals("theta")) {
+						assertEquals(Double.doubleToLongBits(theta[g][j][k]), Double.doubleToLongBits(Double.parseDouble(row[3 + k])));
+					}
+				}
+				lines++;
+			}
+		} finally {
+			in.close();
+		}
+		//12 types and 6 groups of changes, 12 types of theta
+		assertEquals((12 + 6 + 12) * parse.getBranchNum(), lines);
+	}
+}
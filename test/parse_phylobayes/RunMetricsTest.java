@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for RunMetrics.
+ * @author Hui-Jie Lee
+ *
+ */
+public class RunMetricsTest extends TestCase {
+
+	public void testRecorders() throws Exception {
+		final RunMetrics metrics = new RunMetrics(2);
+		RunMetrics.Recorder rec = metrics.recorder();
+		assertSame(rec, metrics.recorder());
+		long t = System.nanoTime() - 2000000000L;
+		rec.stop(RunMetrics.TOKENIZE, t);
+		rec.trees(6);
+		rec.site(1024 * 1024);
+		Thread other = new Thread("worker") {
+			public void run() {
+				RunMetrics.Recorder rec = metrics.recorder();
+				rec.trees(4);
+				rec.site(1024 * 1024);
+				byte[][] garbage = new byte[100][];
+				for (int i = 0; i < garbage.length; i++) {
+					garbage[i] = new byte[10000];
+				}
+				rec.updateAllocation();
+			}
+		};
+		other.start();
+		other.join();
+
+		String line = metrics.logLine();
+		assertTrue(line, line.contains(" 2 sites "));
+		assertTrue(line, line.contains(" 10 trees"));
+		assertTrue(line, line.contains("2.0 MB"));
+		assertTrue(line, line.contains("tokenize 2.0 s"));
+
+		String json = metrics.toJson();
+		assertTrue(json, json.contains("\"sites\": 2,"));
+		assertTrue(json, json.contains("\"trees\": 10,"));
+		assertTrue(json, json.contains("\"bytes_read\": 2097152,"));
+		assertTrue(json, json.contains("\"thread\": \"worker\""));
+		assertTrue(json, json.contains("\"threads\": 2,"));
+		//the worker allocated at least 100 x 10000 bytes
+		int worker = json.indexOf("\"thread\": \"worker\"");
+		int allocated = json.indexOf("\"allocated_bytes\": ", worker) + "\"allocated_bytes\": ".length();
+		long bytes = Long.parseLong(json.substring(allocated, json.indexOf(',', allocated)));
+		assertTrue(json, bytes == -1 || bytes >= 1000000);
+	}
+
+	public void testLog() throws Exception {
+		RunMetrics metrics = new RunMetrics(1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		metrics.startLog(1, new PrintStream(bytes, true));
+		Thread.sleep(1500);
+		metrics.stopLog();
+		assertTrue(bytes.toString(), bytes.toString().startsWith("[metrics 1 s] 0 sites"));
+	}
+}
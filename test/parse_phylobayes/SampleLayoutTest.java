@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for SampleLayout.
+ * @author Hui-Jie Lee
+ *
+ */
+public class SampleLayoutTest extends TestCase {
+
+	public void testOffsets() {
+		SampleLayout layout = new SampleLayout(3, 5);
+		int[] a = layout.newInts(2);
+		assertEquals(2 * 3 * 5, a.length);
+		assertEquals(15, layout.typeStride());
+		assertEquals((1 * 3 + 2) * 5, layout.offset(1, 2));
+		a[layout.offset(1, 2) + 4] = 7;
+		assertEquals(7, layout.toJagged(a)[1][2][4]);
+	}
+
+	public void testOverflow() {
+		//8 types x 100000 branches x 10000 iterations > 2^31 - 1
+		SampleLayout layout = new SampleLayout(100000, 10000);
+		try {
+			layout.newDoubles(8);
+			fail("Overflow not reported");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("--moments streaming"));
+		}
+		try {
+			new SampleLayout(100000, 100000);
+			fail("Overflow of a row of types not reported");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Microbenchmark of the per-site statistics of SingleSiteParser.
+ * Reports trees/sec and bytes allocated per tree for
+ *  1. the per-type implementation: for each of the 12 substitution types and each branch, an array of the
+ *     changes on all branches (TreeNode.getNumberOfChanges(from, to)), and the same for the time, branch length
+ *     and proportion of each state, as Tree and SingleSiteParser did before TransitionKernel
+ *  2. new SingleSiteParser(tree), which reads the statistics that Tree computes once per tree with TransitionKernel
+ * and checks that both give the same results.
+ * Run with: java parse_phylobayes.SingleSiteParserBenchmark [map file] [seconds per case]
+ * @author Hui-Jie Lee
+ *
+ */
+public class SingleSiteParserBenchmark {
+
+	/** Trees read from the .map file */
+	private static ArrayList<Tree> trees = new ArrayList<Tree>();
+	/** Prevents the JIT from removing the work */
+	private static double sink;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args.length > 0 ? args[0] : "example/neutral_0.map");
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+
+		MapFileReader reader = new MapFileReader(file.getAbsoluteFile().getParentFile());
+		reader.open(file.getName());
+		MappingScanner scanner = new MappingScanner();
+		TopologyTemplate template = null;
+		while (reader.nextLine()) {
+			if (reader.getLineLength() == 0) continue;
+			scanner.scan(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+			if (template == null) {
+				template = new TopologyTemplate(scanner);
+			}
+			Tree tree = template.newTree();
+			template.fill(tree, scanner);
+			trees.add(tree);
+		}
+		reader.close();
+		System.out.println(trees.size() + " trees from " + file);
+
+		for (int i = 0; i < trees.size(); i++) {
+			check(trees.get(i));
+		}
+		for (int round = 0; round < 2; round++) { //first round is warm-up
+			System.out.println(round == 0 ? "warm-up" : "measure");
+			run("per-type TreeNode methods", 0, seconds);
+			run("SingleSiteParser (kernel)", 1, seconds);
+		}
+		System.out.println(sink == 42 ? "" : " ");
+	}
+
+	/**
+	 * Per-type implementation of the statistics of SingleSiteParser: one call per substitution type and branch,
+	 * each walking every branch of the tree.
+	 * @param tree tree
+	 * @return {numberOfChanges, timeOfStates, branchLengths, propStates}
+	 */
+	private static Object[] perType(Tree tree) {
+		int numBranches = tree.getNumBranches();
+		int[][] changes = new int[12][numBranches];
+		for (int i = 0; i < 12; i++) {
+			for (int j = 0; j < numBranches; j++) {
+				changes[i][j] = numberOfChanges(tree, SingleSiteParser.SUBSTITUTION_ORDER[i].substring(0, 1),
+						SingleSiteParser.SUBSTITUTION_ORDER[i].substring(1, 2))[j];
+			}
+		}
+		double[][] times = new double[4][numBranches];
+		double[][] prop = new double[4][numBranches];
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < numBranches; j++) {
+				times[i][j] = timeOfState(tree, SingleSiteParser.NUCLEOTIDE_ORDER[i])[j];
+				prop[i][j] = propState(tree, SingleSiteParser.NUCLEOTIDE_ORDER[i])[j];
+			}
+		}
+		double[] br = new double[numBranches];
+		for (int j = 0; j < numBranches; j++) {
+			br[j] = branchLength(tree)[j];
+		}
+		return new Object[] {changes, times, br, prop};
+	}
+
+	private static int[] numberOfChanges(Tree tree, String from, String to) {
+		int[] changes = new int[tree.getNumBranches()];
+		for (int i = 0; i < changes.length; i++) {
+			changes[i] = tree.getNodeByNodeNum(i).getNumberOfChanges(from, to);
+		}
+		return changes;
+	}
+
+	private static double[] timeOfState(Tree tree, String type) {
+		double[] times = new double[tree.getNumBranches()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = tree.getNodeByNodeNum(i).getTimeOfState(type);
+		}
+		return times;
+	}
+
+	private static double[] branchLength(Tree tree) {
+		double[] br = new double[tree.getNumBranches()];
+		for (int i = 0; i < br.length; i++) {
+			br[i] = tree.getNodeByNodeNum(i).getBranchLength();
+		}
+		return br;
+	}
+
+	private static double[] propState(Tree tree, String type) {
+		double[] prop = new double[tree.getNumBranches()];
+		for (int i = 0; i < prop.length; i++) {
+			prop[i] = tree.getNodeByNodeNum(i).getTimeOfState(type) / tree.getNodeByNodeNum(i).getBranchLength();
+		}
+		return prop;
+	}
+
+	/**
+	 * Check that the kernel gives the same statistics as the per-type implementation
+	 * @param tree tree
+	 */
+	private static void check(Tree tree) {
+		Object[] expected = perType(tree);
+		SingleSiteParser site = new SingleSiteParser(tree);
+		if (!Arrays.deepEquals((int[][]) expected[0], site.getNumberOfChanges())
+				|| !Arrays.deepEquals((double[][]) expected[1], site.getTimeOfStates())
+				|| !Arrays.equals((double[]) expected[2], site.getBranchLengths())
+				|| !Arrays.deepEquals((double[][]) expected[3], site.getPropStates())) {
+			throw new IllegalStateException("SingleSiteParser differs from the per-type implementation");
+		}
+	}
+
+	/**
+	 * Run one case for the given time and print trees/sec and bytes/tree
+	 * @param label name of the case
+	 * @param mode 0: per-type, 1: SingleSiteParser
+	 * @param seconds duration
+	 */
+	private static void run(String label, int mode, double seconds) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long count = 0;
+		long alloc0 = mx.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long stop = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < stop) {
+			for (int i = 0; i < trees.size(); i++) {
+				if (mode == 0) {
+					sink += ((double[]) perType(trees.get(i))[2])[0];
+				} else {
+					trees.get(i).clearStatistics();
+					sink += new SingleSiteParser(trees.get(i)).getBranchLengths()[0];
+				}
+			}
+			count += trees.size();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long alloc = mx.getThreadAllocatedBytes(thread) - alloc0;
+		System.out.println(String.format("  %-28s %12.0f trees/s %10.0f bytes/tree", label, count / elapsed, (double) alloc / count));
+	}
+
+}
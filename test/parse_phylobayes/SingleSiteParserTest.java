@@ -79,6 +79,25 @@ public class SingleSiteParserTest extends TestCase {
 		}
 	}
 	
+	public void testKernelMatchesTree() {
+		//the one-pass kernel gives the same counts and times as the per-type methods of Tree
+		int[] counts = new int[16];
+		double[] dwell = new double[4];
+		for (int j = 0; j < tree.getNumBranches(); j++) {
+			TransitionKernel.count(tree.getNodeByNodeNum(j), counts, dwell);
+			for (int i = 0; i < 12; i++) {
+				String type = SingleSiteParser.SUBSTITUTION_ORDER[i];
+				int from = "AGCT".indexOf(type.charAt(0));
+				int to = "AGCT".indexOf(type.charAt(1));
+				assertEquals(i, TransitionKernel.substitutionType(from, to));
+				assertEquals(tree.getNumberOfChanges(type.substring(0, 1), type.substring(1, 2))[j], counts[4 * from + to]);
+			}
+			for (int i = 0; i < 4; i++) {
+				assertEquals(tree.getTimeOfState(SingleSiteParser.NUCLEOTIDE_ORDER[i])[j], dwell[i]);
+			}
+		}
+	}
+	
 	/**
      * Tears down the test fixture.
      * (Called after every test case method.)
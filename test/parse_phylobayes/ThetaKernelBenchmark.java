@@ -0,0 +1,407 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Microbenchmark of the theta and covariance kernels of MappingParser on synthetic sums, by default for a tree
+ * of 200 taxa (397 branches) and 1,000 MCMC samples, option 2 (4 types, 9 groups, 3 states).
+ * Reports the time and the bytes allocated to compute theta, theta_ss and the covariance matrices of all
+ * types and groups for
+ *  1. the jagged implementation: [type][branch][iteration] arrays, as MappingParser did before SampleLayout
+ *  2. MappingParser on the flat arrays of SampleLayout
+ *  3. MappingParser with streaming moments (--moments streaming), whose "theta" time includes the covariance
+ * and checks that they give the same results. It also compares theta and theta_ss of ThetaKernel with the loops
+ * of MappingParser before it, one if per element for the iterations without change, on the flat arrays and
+ * without the allocation of the outputs.
+ * Run with: java parse_phylobayes.ThetaKernelBenchmark [number of taxa] [number of samples] [rounds]
+ * @author Hui-Jie Lee
+ *
+ */
+public class ThetaKernelBenchmark {
+
+	/** Prevents the JIT from removing the work */
+	private static double sink;
+	/** Sums of the jagged implementation: number of changes, changes in groups, proportion of states */
+	private static int[][][] numberOfChanges;
+	private static int[][][] changesInGroups;
+	private static double[][][] propStates;
+
+	public static void main(String[] args) throws Exception {
+		int taxa = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int C = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		PartialStatistics sums = synthetic(taxa, C);
+		int branchNum = sums.getStatistics().getLayout().getBranchNum();
+		System.out.println(taxa + " taxa, " + branchNum + " branches, " + C + " samples");
+		SampleLayout layout = sums.getStatistics().getLayout();
+		numberOfChanges = layout.toJagged(sums.getStatistics().getNumberOfChanges());
+		changesInGroups = layout.toJagged(sums.getStatistics().getChangesInGroups());
+		propStates = layout.toJagged(sums.getStatistics().getPropStates());
+
+		check(sums);
+		for (int round = 0; round < 2; round++) { //first round is warm-up
+			System.out.println(round == 0 ? "warm-up" : "measure");
+			run("jagged arrays", 0, sums, rounds);
+			run("flat arrays (SampleLayout)", 1, sums, rounds);
+			run("streaming moments", 2, sums, rounds);
+			runTheta(sums, rounds);
+		}
+		System.out.println(sink == 42 ? "" : " ");
+	}
+
+	/**
+	 * Random sums of option 2 on a caterpillar tree
+	 * @param taxa number of taxa
+	 * @param C number of samples
+	 * @return sums over the sites
+	 */
+	private static PartialStatistics synthetic(int taxa, int C) {
+		//unrooted caterpillar in preorder: the root has a leaf, the first internal node and the last leaf
+		int numNodes = 2 * taxa - 2;
+		int[] parent = new int[numNodes];
+		String[] names = new String[numNodes];
+		int n = 0;
+		parent[n] = -1;
+		names[n++] = "";
+		parent[n] = 0;
+		names[n++] = "t0";
+		int internal = 0;
+		for (int t = 1; t < taxa - 2; t++) {
+			parent[n] = internal;
+			names[n] = "";
+			internal = n++;
+			parent[n] = internal;
+			names[n++] = "t" + t;
+		}
+		parent[n] = internal;
+		names[n++] = "t" + (taxa - 2);
+		parent[n] = 0;
+		names[n++] = "t" + (taxa - 1);
+		TopologyTemplate template = new TopologyTemplate(parent, names, 0L);
+		int branchNum = template.newTree().getNumBranches();
+
+		SiteAccumulator acc = new SiteAccumulator(4, 3, 9, branchNum, C, OutgroupSpec.NONE.branchMask(template.newTree()));
+		Random random = new Random(1);
+		fill(acc.getNumberOfChanges(), random);
+		fill(acc.getChangesInGroups(), random);
+		fill(acc.getTimeStates(), random);
+		fill(acc.getPropStates(), random);
+		fill(acc.getBranchLengths(), random);
+		return new PartialStatistics(2, 3, 1000, C, 0, 998, template, OutgroupSpec.NONE, acc);
+	}
+
+	private static void fill(int[] a, Random random) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = random.nextInt(5);
+		}
+	}
+
+	private static void fill(double[] a, Random random) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = 0.01 + random.nextDouble() * 100;
+		}
+	}
+
+	/**
+	 * Jagged implementation of MappingParser.calculateTheta() and calculateThetaSS() for option 2,
+	 * on the jagged copies of the sums
+	 * @return {theta, theta_var, theta_ss, theta_ss_var}
+	 */
+	private static double[][][][] jaggedTheta() {
+		int branchNum = propStates[0].length;
+		int C = propStates[0][0].length;
+		double[][][] theta = new double[4][branchNum][C];
+		double[][][] theta_var = new double[4][branchNum][C];
+		double[][][] theta_ss = new double[9][branchNum][C];
+		double[][][] theta_ss_var = new double[9][branchNum][C];
+		for (int j = 0; j < branchNum; j++) {
+			for (int k = 0; k < C; k++) {
+				for (int i = 0; i < 4; i++) {
+					double prop = (i < 2) ? propStates[0][j][k] + propStates[1][j][k] : propStates[2][j][k];
+					if (numberOfChanges[i][j][k] == 0 && prop == 0) {
+						theta[i][j][k] = 0;
+						theta_var[i][j][k] = 0;
+					} else {
+						theta[i][j][k] = numberOfChanges[i][j][k] / prop;
+						theta_var[i][j][k] = theta[i][j][k] / prop;
+					}
+				}
+				for (int i = 0; i < 9; i++) {
+					double prop = propStates[(i < 4) ? i / 2 : (i < 6) ? i / 5 : 2][j][k];
+					if (changesInGroups[i][j][k] == 0 && prop == 0) {
+						theta_ss[i][j][k] = 0;
+						theta_ss_var[i][j][k] = 0;
+					} else {
+						theta_ss[i][j][k] = changesInGroups[i][j][k] / prop;
+						theta_ss_var[i][j][k] = theta_ss[i][j][k] / prop;
+					}
+				}
+			}
+		}
+		return new double[][][][] {theta, theta_var, theta_ss, theta_ss_var};
+	}
+
+	/**
+	 * Jagged implementation of MappingParser.getCovarianceMatrix() for all types and groups
+	 * @param thetas {theta, theta_var, theta_ss, theta_ss_var}
+	 * @return covariance matrices of the types and then of the groups
+	 */
+	private static double[][][] jaggedCovariance(double[][][][] thetas) {
+		double[][][] cov = new double[13][][];
+		for (int g = 0; g < 4; g++) {
+			cov[g] = covariance(thetas[0][g], thetas[1][g]);
+		}
+		for (int g = 0; g < 9; g++) {
+			cov[4 + g] = covariance(thetas[2][g], thetas[3][g]);
+		}
+		return cov;
+	}
+
+	private static double[][] covariance(double[][] thetaG, double[][] thetaG_var) {
+		int branchNum = thetaG.length;
+		int C = thetaG[0].length;
+		double[] theta_bar = new double[branchNum];
+		double[] theta_var_bar = new double[branchNum];
+		for (int i = 0; i < branchNum; i++) {
+			for (int j = 0; j < C; j++) {
+				theta_bar[i] += thetaG[i][j];
+				theta_var_bar[i] += thetaG_var[i][j];
+			}
+			theta_bar[i] = theta_bar[i] / C;
+			theta_var_bar[i] = theta_var_bar[i] / C;
+		}
+		double[][] cov = new double[branchNum][branchNum];
+		for (int i = 0; i < branchNum; i++) {
+			double sum = 0;
+			for (int k = 0; k < C; k++) {
+				sum += Math.pow((thetaG[i][k] - theta_bar[i]), 2);
+			}
+			cov[i][i] = sum / (C-1) + theta_var_bar[i];
+		}
+		for (int i = 0; i < branchNum; i++) {
+			for (int j = 0; j < branchNum; j++) {
+				if (i != j) {
+					double sum = 0;
+					for (int k = 0; k < C; k++) {
+						sum += thetaG[i][k] * thetaG[j][k];
+					}
+					cov[i][j] = (sum - theta_bar[i]*theta_bar[j]*C) / (C-1);
+				}
+			}
+		}
+		return cov;
+	}
+
+	/**
+	 * MappingParser.calculateTheta() and calculateThetaSS() of option 2 before ThetaKernel, on the flat arrays
+	 * @param acc sums over the sites
+	 * @param out {theta, theta_var, theta_ss, theta_ss_var}, overwritten
+	 */
+	private static void branchTheta(SiteAccumulator acc, double[][] out) {
+		SampleLayout layout = acc.getLayout();
+		int branchNum = layout.getBranchNum();
+		int C = layout.getC();
+		int[] changes = acc.getNumberOfChanges();
+		int[] groups = acc.getChangesInGroups();
+		double[] prop = acc.getPropStates();
+		double[] theta = out[0];
+		double[] theta_var = out[1];
+		double[] theta_ss = out[2];
+		double[] theta_ss_var = out[3];
+		for (int j = 0; j < branchNum; j++) {
+			int prop0 = layout.offset(0, j);
+			int prop1 = layout.offset(1, j);
+			int prop2 = layout.offset(2, j);
+			for (int i = 0; i < 4; i++) {
+				int row = layout.offset(i, j);
+				for (int k = 0; k < C; k++) {
+					double time = (i < 2) ? prop[prop0+k] + prop[prop1+k] : prop[prop2+k];
+					if (changes[row+k] == 0 && time == 0) {
+						theta[row+k] = 0;
+						theta_var[row+k] = 0;
+					} else {
+						theta[row+k] = changes[row+k] / time;
+						theta_var[row+k] = theta[row+k] / time;
+					}
+				}
+			}
+		}
+		for (int g = 0; g < 9; g++) {
+			for (int j = 0; j < branchNum; j++) {
+				int row = layout.offset(g, j);
+				int p = layout.offset((g < 4) ? g / 2 : (g < 6) ? g / 5 : 2, j);
+				for (int k = 0; k < C; k++) {
+					if (groups[row+k] == 0 && prop[p+k] == 0) {
+						theta_ss[row+k] = 0;
+						theta_ss_var[row+k] = 0;
+					} else {
+						theta_ss[row+k] = groups[row+k] / prop[p+k];
+						theta_ss_var[row+k] = theta_ss[row+k] / prop[p+k];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * MappingParser.calculateTheta() and calculateThetaSS() of option 2 with ThetaKernel
+	 * @param acc sums over the sites
+	 * @param out {theta, theta_var, theta_ss, theta_ss_var}, overwritten
+	 */
+	private static void kernelTheta(SiteAccumulator acc, double[][] out) {
+		SampleLayout layout = acc.getLayout();
+		int branchNum = layout.getBranchNum();
+		ThetaKernel kernel = new ThetaKernel(layout.getC());
+		for (int j = 0; j < branchNum; j++) {
+			kernel.loadTime(acc.getPropStates(), layout.offset(0, j));
+			kernel.addTime(acc.getPropStates(), layout.offset(1, j));
+			for (int i = 0; i < 4; i++) {
+				if (i == 2) {
+					kernel.loadTime(acc.getPropStates(), layout.offset(2, j));
+				}
+				kernel.loadChanges(acc.getNumberOfChanges(), layout.offset(i, j));
+				kernel.ratioOrZero();
+				kernel.store(out[0], out[1], layout.offset(i, j));
+			}
+		}
+		for (int g = 0; g < 9; g++) {
+			for (int j = 0; j < branchNum; j++) {
+				kernel.loadChanges(acc.getChangesInGroups(), layout.offset(g, j));
+				kernel.loadTime(acc.getPropStates(), layout.offset((g < 4) ? g / 2 : (g < 6) ? g / 5 : 2, j));
+				kernel.ratioOrZero();
+				kernel.store(out[2], out[3], layout.offset(g, j));
+			}
+		}
+	}
+
+	/**
+	 * Allocate the outputs of branchTheta() and kernelTheta()
+	 * @param layout layout of the sums
+	 * @return {theta, theta_var, theta_ss, theta_ss_var}
+	 */
+	private static double[][] newTheta(SampleLayout layout) {
+		return new double[][] {layout.newDoubles(4), layout.newDoubles(4), layout.newDoubles(9), layout.newDoubles(9)};
+	}
+
+	/**
+	 * Covariance matrices of MappingParser on the flat arrays
+	 * @param parse MappingParser made from the sums, which computes theta
+	 * @return covariance matrices of the types and then of the groups
+	 */
+	private static double[][][] flatCovariance(MappingParser parse) {
+		double[][][] cov = new double[13][][];
+		for (int g = 0; g < 4; g++) {
+			cov[g] = parse.getCovarianceMatrix(g, 0);
+		}
+		for (int g = 0; g < 9; g++) {
+			cov[4 + g] = parse.getCovarianceMatrix(g, 1);
+		}
+		return cov;
+	}
+
+	/**
+	 * Options of the streaming moments
+	 * @return options
+	 */
+	private static RunOptions streaming() {
+		RunOptions options = new RunOptions();
+		options.setStreaming(true);
+		return options;
+	}
+
+	/**
+	 * Check that the implementations give the same covariance matrices
+	 * @param sums sums over the sites
+	 */
+	private static void check(PartialStatistics sums) {
+		double[][][] expected = jaggedCovariance(jaggedTheta());
+		double[][][] actual = flatCovariance(new MappingParser(sums));
+		if (!Arrays.deepEquals(actual, flatCovariance(new MappingParser(sums, streaming())))) {
+			throw new IllegalStateException("Streaming moments differ from the stored samples");
+		}
+		double[][] branch = newTheta(sums.getStatistics().getLayout());
+		double[][] kernel = newTheta(sums.getStatistics().getLayout());
+		branchTheta(sums.getStatistics(), branch);
+		kernelTheta(sums.getStatistics(), kernel);
+		if (!Arrays.deepEquals(branch, kernel)
+				|| !Arrays.deepEquals(sums.getStatistics().getLayout().toJagged(kernel[0]), new MappingParser(sums).getTheta())) {
+			throw new IllegalStateException("ThetaKernel differs from the loops with one if per element");
+		}
+		for (int g = 0; g < expected.length; g++) {
+			for (int i = 0; i < expected[g].length; i++) {
+				for (int j = 0; j < expected[g].length; j++) {
+					//the kernel centres the samples before the products, equal up to rounding
+					double scale = Math.sqrt(expected[g][i][i] * expected[g][j][j]);
+					if (Math.abs(expected[g][i][j] - actual[g][i][j]) > 1e-9 * scale) {
+						throw new IllegalStateException("Flat arrays differ from the jagged implementation");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run one case and print the time and the bytes allocated per round, for theta and theta_ss and for
+	 * the covariance matrices
+	 * @param label name of the case
+	 * @param mode 0: jagged, 1: flat, 2: streaming moments
+	 * @param sums sums over the sites
+	 * @param rounds number of rounds
+	 */
+	private static void run(String label, int mode, PartialStatistics sums, int rounds) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long thetaTime = 0;
+		long covTime = 0;
+		long alloc0 = mx.getThreadAllocatedBytes(thread);
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			double[][][][] thetas = null;
+			MappingParser parse = null;
+			if (mode == 0) {
+				thetas = jaggedTheta();
+			} else if (mode == 1) {
+				parse = new MappingParser(sums);
+			} else {
+				parse = new MappingParser(sums, streaming());
+			}
+			long middle = System.nanoTime();
+			double[][][] cov = (mode == 0) ? jaggedCovariance(thetas) : flatCovariance(parse);
+			covTime += System.nanoTime() - middle;
+			thetaTime += middle - start;
+			sink += cov[0][0][1];
+		}
+		long alloc = mx.getThreadAllocatedBytes(thread) - alloc0;
+		System.out.println(String.format("  %-28s theta %8.1f ms  covariance %8.1f ms  %6.0f MB/round", label,
+				thetaTime / 1e6 / rounds, covTime / 1e6 / rounds, alloc / (1024.0 * 1024.0) / rounds));
+	}
+
+	/**
+	 * Print the time per round of theta and theta_ss with one if per element and with ThetaKernel, into
+	 * outputs allocated once
+	 * @param sums sums over the sites
+	 * @param rounds number of rounds
+	 */
+	private static void runTheta(PartialStatistics sums, int rounds) {
+		double[][] out = newTheta(sums.getStatistics().getLayout());
+		long branchTime = 0;
+		long kernelTime = 0;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			branchTheta(sums.getStatistics(), out);
+			long middle = System.nanoTime();
+			kernelTheta(sums.getStatistics(), out);
+			kernelTime += System.nanoTime() - middle;
+			sink += out[0][1];
+			branchTime += middle - start;
+		}
+		System.out.println(String.format("  theta and theta_ss: one if per element %8.1f ms  ThetaKernel %8.1f ms",
+				branchTime / 1e6 / rounds, kernelTime / 1e6 / rounds));
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for ThetaKernel.
+ * @author Hui-Jie Lee
+ *
+ */
+public class ThetaKernelTest extends TestCase {
+
+	/** Number of iterations in a row */
+	private static final int C = 301;
+
+	/** Two rows of changes, with and without change */
+	private int[] changes;
+	/** Two rows of time, with and without time */
+	private double[] time;
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		Random random = new Random(3);
+		changes = new int[2 * C];
+		time = new double[2 * C];
+		for (int i = 0; i < changes.length; i++) {
+			changes[i] = random.nextInt(3);
+			time[i] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10;
+		}
+	}
+
+	public void testRatioOrZero() {
+		//the rows of the output are at another offset than the inputs
+		ThetaKernel kernel = new ThetaKernel(C);
+		double[] theta = new double[3 * C];
+		double[] var = new double[3 * C];
+		kernel.loadChanges(changes, C);
+		kernel.loadTime(time, 0);
+		kernel.addTime(time, C);
+		kernel.ratioOrZero();
+		kernel.store(theta, var, 2 * C);
+		for (int k = 0; k < C; k++) {
+			double d = time[k] + time[C + k];
+			double expected = (changes[C + k] == 0 && d == 0) ? 0 : changes[C + k] / d;
+			double expectedVar = (changes[C + k] == 0 && d == 0) ? 0 : expected / d;
+			//same bits: a change in no time gives infinity
+			assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(theta[2 * C + k]));
+			assertEquals(Double.doubleToLongBits(expectedVar), Double.doubleToLongBits(var[2 * C + k]));
+		}
+		assertTrue(Arrays.equals(new double[2 * C], Arrays.copyOf(theta, 2 * C)));
+	}
+
+	public void testRatioOrZeroSign() {
+		//no change in a time that is slightly negative by rounding, or 0 of either sign
+		ThetaKernel kernel = new ThetaKernel(4);
+		double[] theta = new double[4];
+		double[] var = new double[4];
+		kernel.loadChanges(new int[] {0, 0, 0, 1}, 0);
+		kernel.loadTime(new double[] {-1e-17, -0.0, -1.0, -1e-17}, 0);
+		kernel.ratioOrZero();
+		kernel.store(theta, var, 0);
+		assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(theta[0]));
+		assertEquals(Double.doubleToLongBits(0.0), Double.doubleToLongBits(theta[1]));
+		assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(theta[2]));
+		assertEquals(Double.doubleToLongBits(1 / -1e-17), Double.doubleToLongBits(theta[3]));
+		assertEquals(Double.doubleToLongBits(0.0 / -1e-17 / -1e-17), Double.doubleToLongBits(var[0]));
+		assertEquals(Double.doubleToLongBits(0.0), Double.doubleToLongBits(var[1]));
+	}
+
+	public void testRatio() {
+		ThetaKernel kernel = new ThetaKernel(C);
+		double[] theta = new double[C];
+		double[] var = new double[C];
+		kernel.loadChanges(changes, 0);
+		kernel.loadTime(time, C);
+		kernel.ratio();
+		kernel.store(theta, var, 0);
+		for (int k = 0; k < C; k++) {
+			double expected = changes[k] / time[C + k];
+			//no change in no time is NaN
+			assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(theta[k]));
+			assertEquals(Double.doubleToLongBits(expected / time[C + k]), Double.doubleToLongBits(var[k]));
+		}
+	}
+}
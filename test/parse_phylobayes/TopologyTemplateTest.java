@@ -0,0 +1,75 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for TopologyTemplate. The trees filled into the template are compared with
+ * the trees built by TreeParser.
+ * @author Hui-Jie Lee
+ *
+ */
+public class TopologyTemplateTest extends TestCase {
+
+	/** Two trees with the same topology and a third tree with another topology */
+	private static final String[] TREES = new String[] {
+		"(((human_A:0.100993:A,orangutan_A:0.0694486:A)_A:0.198984:A,(rhesus_A:0.195176:A,baboon_A:0.233133:A)_A:0.171989:A)_A:0.406658:A,marmoset_A:0.297841:A,bushbaby_G:3.73678e-05:G:0.490021:A)_A;",
+		"(((human_A:0.101652:A,orangutan_A:0.175401:A)_A:0.649724:A,(rhesus_G:0.00557255:G:0.314872:A,baboon_G:0.136734:G:0.279524:A)_A:0.27683:A)_A:1.42672:A:0.197287:T:0.302921:A:0.677233:T:0.683041:C:0.366039:G:0.300407:A:1.29285:T,marmoset_C:0.0890465:C:1.71246:A:0.0718244:G:0.685267:A:2.21303:T,bushbaby_G:0.146267:G:1.23497:T:0.433369:C:0.174881:G:1.14392:T:0.192338:C:0.350913:G:0.364961:A:0.508608:C:1.1939:G:1.20611:T:0.687221:G:0.548099:T)_T;",
+		"(((human_A:0.1:A,rhesus_A:0.1:A)_A:0.2:A,(orangutan_A:0.1:A,baboon_A:0.1:A)_A:0.1:A)_A:0.4:A,marmoset_A:0.2:A,bushbaby_G:0.1:A)_A;"
+	};
+
+	/** A MappingScanner to perform tests */
+	private MappingScanner scanner;
+	/** Template built from the first tree */
+	private TopologyTemplate template;
+
+	/**
+	 * Sets up the TopologyTemplateTest by building the template from the first tree. 
+	 */
+	protected void setUp() throws Exception {
+		scanner = new MappingScanner();
+		scanner.scan(TREES[0]);
+		template = new TopologyTemplate(scanner);
+	}
+
+	public void testFill() {
+		Tree actual = template.newTree();
+		//fill the same tree twice, the second fill must replace the first one
+		for (int t = 0; t < 2; t++) {
+			scanner.scan(TREES[t]);
+			template.fill(actual, scanner);
+			Tree expected = new TreeParser(new StringReader(TREES[t]), OutgroupSpec.NONE).tokenize();
+			assertEquals(expected.getTotalNodeCount(), actual.getTotalNodeCount());
+			for (int i = 0; i < expected.getTotalNodeCount(); i++) {
+				TreeNode e = expected.getNodeByNodeNum(i);
+				TreeNode a = actual.getNodeByNodeNum(i);
+				assertEquals(e.getName(), a.getName());
+				assertEquals(e.getState(), a.getState());
+				assertEquals(e.getTime(), a.getTime());
+				if (!e.isRoot()) {
+					assertEquals(e.parent().getNodeNum(), a.parent().getNodeNum());
+					assertEquals(e.getPathState(), a.getPathState());
+					assertEquals(e.getPathTime(), a.getPathTime());
+				}
+			}
+		}
+	}
+
+	public void testRejectOtherTopology() {
+		scanner.scan(TREES[1]);
+		assertTrue(template.matches(scanner));
+		//same number of nodes, leaves swapped between clades
+		scanner.scan(TREES[2]);
+		assertFalse(template.matches(scanner));
+		try {
+			template.fill(template.newTree(), scanner);
+			fail();
+		} catch (IllegalArgumentException e) {
+			//topology differs
+		}
+	}
+}
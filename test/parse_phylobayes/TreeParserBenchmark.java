@@ -0,0 +1,104 @@
+/**
+ * 
+ */
+package parse_phylobayes;
+
+import java.io.File;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Benchmark of the tree tokenizers: TreeParser (StreamTokenizer) against MappingScanner.
+ * Reports trees/sec and bytes allocated per tree for
+ *  1. TreeParser.tokenize()
+ *  2. MappingScanner.scan() only
+ *  3. MappingScanner.scan() followed by toTree()
+ *  4. MappingScanner.scan() followed by TopologyTemplate.fill()
+ * Run with: java parse_phylobayes.TreeParserBenchmark [map file] [seconds per case]
+ * @author Hui-Jie Lee
+ *
+ */
+public class TreeParserBenchmark {
+	
+	/** Trees read from the .map file */
+	private static ArrayList<String> lines = new ArrayList<String>();
+	/** Same trees as bytes */
+	private static ArrayList<byte[]> bytes = new ArrayList<byte[]>();
+	/** Prevents the JIT from removing the work */
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args.length > 0 ? args[0] : "example/neutral_0.map");
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		
+		MapFileReader reader = new MapFileReader(file.getAbsoluteFile().getParentFile());
+		reader.open(file.getName());
+		while (reader.nextLine()) {
+			if (reader.getLineLength() == 0) continue;
+			byte[] b = new byte[reader.getLineLength()];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = reader.getBuffer().get(reader.getLineStart() + i);
+			}
+			bytes.add(b);
+			lines.add(new String(b, "US-ASCII"));
+		}
+		reader.close();
+		System.out.println(lines.size() + " trees from " + file);
+		
+		for (int round = 0; round < 2; round++) { //first round is warm-up
+			System.out.println(round == 0 ? "warm-up" : "measure");
+			run("TreeParser.tokenize", 0, seconds);
+			run("MappingScanner.scan", 1, seconds);
+			run("MappingScanner.scan+toTree", 2, seconds);
+			run("MappingScanner.scan+fill", 3, seconds);
+		}
+		System.out.println(sink == 42 ? "" : " ");
+	}
+	
+	/**
+	 * Run one case for the given time and print trees/sec and bytes/tree
+	 * @param label name of the case
+	 * @param mode 0: TreeParser, 1: scan, 2: scan + toTree, 3: scan + fill
+	 * @param seconds duration
+	 */
+	private static void run(String label, int mode, double seconds) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		MappingScanner scanner = new MappingScanner();
+		ByteBuffer[] buffers = new ByteBuffer[bytes.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(bytes.get(i));
+		}
+		scanner.scan(buffers[0], 0, bytes.get(0).length);
+		TopologyTemplate template = new TopologyTemplate(scanner);
+		Tree filled = template.newTree();
+		long trees = 0;
+		long alloc0 = mx.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long stop = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < stop) {
+			for (int i = 0; i < buffers.length; i++) {
+				if (mode == 0) {
+					Tree t = new TreeParser(new StringReader(lines.get(i)), "").tokenize();
+					sink += t.getNumBranches();
+				} else {
+					scanner.scan(buffers[i], 0, bytes.get(i).length);
+					sink += scanner.getNumNodes();
+					if (mode == 2) {
+						sink += scanner.toTree(OutgroupSpec.NONE).getNumBranches();
+					} else if (mode == 3) {
+						template.fill(filled, scanner);
+						sink += filled.getNumBranches();
+					}
+				}
+			}
+			trees += buffers.length;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long alloc = mx.getThreadAllocatedBytes(thread) - alloc0;
+		System.out.println(String.format("  %-28s %12.0f trees/s %10.0f bytes/tree", label, trees / elapsed, (double) alloc / trees));
+	}
+
+}
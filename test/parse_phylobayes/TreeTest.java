@@ -86,6 +86,38 @@ public class TreeTest extends TestCase {
 	}
 	
 	
+	public void testEvents() {
+		//C_A:0.3:A:0.1:T:0.1:T below a node in state T: events stored from the parent down
+		TreeNode node = tree.getNodeByNodeNum(2);
+		assertEquals(2, node.getNumEvents());
+		assertEquals('T', node.getEventState(0));
+		assertEquals('A', node.getEventState(1));
+		assertEquals(0.1, node.getEventTime(0));
+		assertEquals(0.1, node.getEventTime(1));
+		assertEquals('A', node.getStateCode());
+		
+		byte[] states = {'T', 'T', 'A'};
+		byte[] next = {'T', 'A', 'A'};
+		double[] durations = {0.1, 0.1, 0.3};
+		BranchPath path = new BranchPath().reset(node);
+		assertEquals(3, path.getNumSegments());
+		int s = 0;
+		while (path.next()) {
+			assertEquals(states[s], path.getState());
+			assertEquals(next[s], path.getNextState());
+			assertEquals(durations[s], path.getDuration());
+			s++;
+		}
+		assertEquals(3, s);
+		
+		//a branch without event has one segment
+		path.reset(tree.getNodeByNodeNum(3));
+		assertTrue(path.next());
+		assertEquals('T', path.getState());
+		assertEquals(0.5, path.getDuration());
+		assertFalse(path.next());
+	}
+	
 	public void testGetNumberOfChanges() {
 		int[] change = new int[] {0,0,0,0,0,0,0,0,0,0,0,0};
 		assertTrue(Arrays.equals(change, tree.getNumberOfChanges("A","G")));
@@ -142,6 +174,20 @@ public class TreeTest extends TestCase {
 		assertTrue(Arrays.equals(br, tree.getBranchLength()));
 	}
 	
+	public void testStatisticsCache() {
+		//computed once per tree
+		assertSame(tree.getBranchLength(), tree.getBranchLength());
+		assertSame(tree.getTimeOfState("C"), tree.getTimeOfState("C"));
+		assertSame(tree.getNumberOfChanges("G", "C"), tree.getNumberOfChanges("G", "C"));
+		//and again after the paths change
+		tree.getNodeByNodeNum(3).setTime(0.25);
+		tree.clearStatistics();
+		assertEquals(0.25, tree.getBranchLength()[3]);
+		assertEquals(0.25, tree.getTimeOfState("T")[3]);
+		assertEquals(1.0, tree.getPropState("T")[3]);
+		assertNull(tree.getNodeByNodeNum(tree.getTotalNodeCount()));
+	}
+	
 	public void testGetPropOfState() {
 		double[] prop = new double[] {0,0,0.3/0.5,0,0,0,0,0,0,0,0,0};
 		assertTrue(Arrays.equals(prop, tree.getPropState("A")));
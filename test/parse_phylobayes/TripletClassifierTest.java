@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package parse_phylobayes;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for TripletClassifier.
+ * @author Hui-Jie Lee
+ *
+ */
+public class TripletClassifierTest extends TestCase {
+
+	private static int triplet(String s) {
+		return TripletClassifier.encode((byte) s.charAt(0), (byte) s.charAt(1), (byte) s.charAt(2));
+	}
+
+	public void testEncode() {
+		for (int t = 0; t < TripletClassifier.NUM_TRIPLETS; t++) {
+			assertEquals(t, triplet(TripletClassifier.decode(t)));
+		}
+		assertEquals("ACG", TripletClassifier.decode(triplet("ACG")));
+		assertEquals(triplet("ATG"), TripletClassifier.replace(triplet("ACG"), 1, (byte) 'T'));
+		assertEquals(triplet("TCG"), TripletClassifier.replace(triplet("ACG"), 0, (byte) 'T'));
+		assertEquals(triplet("ACA"), TripletClassifier.replace(triplet("ACG"), 2, (byte) 'A'));
+		assertTrue(TripletClassifier.isCpG(triplet("CGA")));
+		assertTrue(TripletClassifier.isCpG(triplet("ACG")));
+		assertFalse(TripletClassifier.isCpG(triplet("GCA")));
+		try {
+			triplet("ANG");
+			fail("N is not a nucleotide");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	public void testCpGScheme() {
+		TripletClassifier c = TripletClassifier.CPG;
+		//non-CpG transversions
+		assertEquals(0, c.getType(triplet("AAA"), triplet("ATA")));
+		assertEquals(2, c.getGroup(triplet("AAA"), triplet("ATA")));
+		assertEquals(3, c.getGroup(triplet("TAT"), triplet("TCT")));
+		assertEquals(0, c.getGroup(triplet("AGA"), triplet("ACA")));
+		assertEquals(1, c.getGroup(triplet("ACA"), triplet("AAA")));
+		//non-CpG transitions
+		assertEquals(1, c.getType(triplet("ACA"), triplet("ATA")));
+		assertEquals(4, c.getGroup(triplet("ACA"), triplet("ATA")));
+		assertEquals(5, c.getGroup(triplet("TTT"), triplet("TCT")));
+		//CpG transversion and transition, the context is the triplet before the change
+		assertEquals(2, c.getType(triplet("ACG"), triplet("AGG")));
+		assertEquals(6, c.getGroup(triplet("ACG"), triplet("AGG")));
+		assertEquals(7, c.getGroup(triplet("CGT"), triplet("CTT")));
+		assertEquals(3, c.getType(triplet("ACG"), triplet("ATG")));
+		assertEquals(8, c.getGroup(triplet("CGA"), triplet("CAA")));
+		//a change of the flanking positions only is not counted
+		assertEquals(-1, c.getType(triplet("ACA"), triplet("GCA")));
+		assertEquals(-1, c.getGroup(triplet("ACA"), triplet("ACG")));
+		//dwell states
+		assertEquals(0, c.getDwellState(triplet("ACA")));
+		assertEquals(1, c.getDwellState(triplet("ATA")));
+		assertEquals(2, c.getDwellState(triplet("ACG")));
+	}
+
+	public void testOtherScheme() throws Exception {
+		//one type and one group: any change of the second position, one dwell state
+		byte[] type = new byte[TripletClassifier.NUM_TRIPLETS * TripletClassifier.NUM_TRIPLETS];
+		byte[] group = new byte[type.length];
+		for (int before = 0; before < TripletClassifier.NUM_TRIPLETS; before++) {
+			for (int after = 0; after < TripletClassifier.NUM_TRIPLETS; after++) {
+				boolean changed = TripletClassifier.decode(before).charAt(1) != TripletClassifier.decode(after).charAt(1);
+				type[TripletClassifier.NUM_TRIPLETS * before + after] = (byte) (changed ? 0 : -1);
+				group[TripletClassifier.NUM_TRIPLETS * before + after] = (byte) (changed ? 0 : -1);
+			}
+		}
+		TripletClassifier any = new TripletClassifier(type, group, new byte[TripletClassifier.NUM_TRIPLETS], 1, 1, 1, 0);
+		Tree[] trees = new Tree[3];
+		trees[0] = new TreeParser(new StringReader("((a_G:1:G,b_G:1:G)_G:1:G,c_A:0.5:A:0.5:G,d_G:2:G)_G;"), "").tokenize();
+		trees[1] = new TreeParser(new StringReader("((a_C:1:C,b_C:1:C)_C:1:C,c_T:0.5:T:0.5:C,d_C:2:C)_C;"), "").tokenize();
+		trees[2] = new TreeParser(new StringReader("((a_C:1:C,b_C:1:C)_C:1:C,c_C:1:C,d_C:2:C)_C;"), "").tokenize();
+		TripletParser sites = new TripletParser(trees, any);
+		assertEquals(1, sites.getNumberOfChanges().length);
+		assertEquals(1, sites.getNumberOfChanges()[0][2]); //C -> T at site 2 on branch c
+		assertEquals(0, sites.getNumberOfChanges()[0][3]);
+		assertEquals(1.0, sites.getTimeOfStates()[0][2]);
+	}
+}
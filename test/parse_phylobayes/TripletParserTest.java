@@ -76,6 +76,31 @@ public class TripletParserTest extends TestCase {
 		assertEquals(state, sites.getPathStateAtBranch(4));		
 	}
 
+	public void testEventsAtTheSameTime() throws Exception {
+		//branch c: site 1 has two events at t = 0.5 (G -> T -> A), site 2 one event at t = 0.5 (C -> T)
+		Tree[] tied = new Tree[3];
+		tied[0] = new TreeParser(new StringReader("((a_G:1:G,b_G:1:G)_G:1:G,c_A:0.5:A:0:T:0.5:G,d_G:2:G)_G;"), "").tokenize();
+		tied[1] = new TreeParser(new StringReader("((a_C:1:C,b_C:1:C)_C:1:C,c_T:0.5:T:0.5:C,d_C:2:C)_C;"), "").tokenize();
+		tied[2] = new TreeParser(new StringReader("((a_C:1:C,b_C:1:C)_C:1:C,c_C:1:C,d_C:2:C)_C;"), "").tokenize();
+		TripletParser triplet = new TripletParser(tied);
+		
+		//no event is lost, tied events are applied in the order of the sites
+		ArrayList<String> state = new ArrayList<String>();
+		state.add("GCC");
+		state.add("TCC"); //t = 0.5, site 1 from G -> T
+		state.add("ACC"); //t = 0.5, site 1 from T -> A
+		state.add("ATC"); //t = 0.5, site 2 from C -> T
+		state.add("ATC"); //site at current node
+		assertEquals(state, triplet.getPathStateAtBranch(2));
+		
+		ArrayList<Double> time = new ArrayList<Double>();
+		time.add(0.5);
+		time.add(0.0);
+		time.add(0.0);
+		time.add(0.5);
+		assertEquals(time, triplet.getPathTimeAtBranch(2));
+	}
+	
 	public void testGetPathTimeAtBranch(){
 		/**
 		 * site1: marmoset_C:0.0890465:C:1.71246:A:0.0718244:G:0.685267:A:2.21303:T